@@ -0,0 +1,18 @@
+package com.github.mbreban.vault;
+
+import org.springframework.http.client.ClientHttpRequest;
+
+/**
+ * A request that takes a connection or a concurrency slot once its body
+ * outgrows its buffer, before it is executed.
+ */
+interface AbortableRequest extends ClientHttpRequest {
+
+    /**
+     * Gives back what the request holds when it will not be executed, e.g.
+     * because the caller failed to write its body. Does nothing once the
+     * request was executed.
+     */
+    public void abort();
+
+}
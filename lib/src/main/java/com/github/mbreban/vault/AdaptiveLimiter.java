@@ -0,0 +1,147 @@
+package com.github.mbreban.vault;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit for the requests sent to Vault, adjusted with additive
+ * increase, multiplicative decrease (AIMD).
+ *
+ * The limit grows by one request per window of successful requests, and is
+ * halved when Vault throttles a request (429 and 503 responses, I/O errors).
+ * Responses much slower than the fastest one seen are an early sign of
+ * queueing in Vault and shrink the limit gently, before quotas kick in.
+ * The fastest latency is tracked per {@link Endpoint}, so a slow RSA
+ * signature is not taken for queueing behind fast key reads.
+ */
+final class AdaptiveLimiter {
+
+    static final int INITIAL_LIMIT = 20;
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 200;
+
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double SLOW_BACKOFF_RATIO = 0.95;
+
+    // Latency above this multiple of the fastest latency counts as queueing
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // The fastest latency drifts up by this ratio per sample, so it follows
+    // a cluster whose baseline got slower
+    private static final double MIN_LATENCY_DRIFT = 1.001;
+
+    /**
+     * Classes of requests with their own latency baseline.
+     */
+    enum Endpoint {
+        SIGN, VERIFY, READ, LIST, OTHER
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private final double[] minLatencyNanos = new double[Endpoint.values().length];
+
+    AdaptiveLimiter() {
+        this(INITIAL_LIMIT);
+    }
+
+    AdaptiveLimiter(int initialLimit) {
+        this.limit = initialLimit;
+        Arrays.fill(minLatencyNanos, Double.MAX_VALUE);
+    }
+
+    /**
+     * Waits until a request may be sent.
+     */
+    void acquire() throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a Vault request slot");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a request that succeeded.
+     *
+     * @param endpoint the class of the request, whose latency is compared
+     *        only with requests of the same class.
+     */
+    void onSuccess(Endpoint endpoint, long latencyNanos) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= limit / 2;
+            inFlight--;
+
+            int i = endpoint.ordinal();
+            minLatencyNanos[i] = Math.min(latencyNanos, minLatencyNanos[i] * MIN_LATENCY_DRIFT);
+            if (latencyNanos > minLatencyNanos[i] * LATENCY_TOLERANCE) {
+                limit = Math.max(MIN_LIMIT, limit * SLOW_BACKOFF_RATIO);
+            } else if (saturated) {
+                // The limit only grows while it is the bottleneck
+                limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a request that Vault throttled.
+     */
+    void onThrottled() {
+        lock.lock();
+        try {
+            inFlight--;
+            limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a request whose outcome says nothing about the load of Vault,
+     * e.g. a 404 response.
+     */
+    void onIgnored() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.mbreban.vault;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts the aliases listed by {@link VaultKeyStoreSpi} to usable keys,
+ * e.g. signing keys with a certificate chain. Transit keys this provider
+ * cannot represent, such as AES or HMAC keys, never match.
+ */
+public final class AliasFilter {
+
+    /**
+     * What the filter needs to know about a key, cached per alias.
+     */
+    record KeyClass(String type, boolean signing, boolean certificateChain) {
+
+        // Not found, or of a type VaultKey does not support
+        static final KeyClass UNUSABLE = new KeyClass(null, false, false);
+
+        static KeyClass of(KeyCache.Entry entry) {
+            return new KeyClass(entry.key.getType(), entry.key.isSupportsSigning(),
+                    entry.getCertificateChain().length > 0);
+        }
+
+        // An existing key VaultKey cannot represent, e.g. "aes256-gcm96"
+        static KeyClass unsupported(String type) {
+            return new KeyClass(type, false, false);
+        }
+
+        boolean isUnsupported() {
+            return type != null && !VaultKey.isAsymmetric(type);
+        }
+    }
+
+    private final boolean signing;
+    private final boolean certificateChain;
+    private final Set<String> types;
+
+    private AliasFilter(Builder builder) {
+        this.signing = builder.signing;
+        this.certificateChain = builder.certificateChain;
+        this.types = Collections.unmodifiableSet(new HashSet<>(builder.types));
+    }
+
+    /**
+     * Parses a comma-separated list of "signing", "certificate" and
+     * "type:&lt;vault key type&gt;" conditions, e.g. "signing,type:rsa-2048,type:ecdsa-p256".
+     * A key matches when it meets every condition and has one of the listed types, if any.
+     */
+    public static AliasFilter parse(String spec) {
+        Builder builder = new Builder();
+        for (String condition : spec.split(",")) {
+            condition = condition.trim();
+            if (condition.isEmpty()) {
+                continue;
+            }
+            if (condition.equals("signing")) {
+                builder.setSigning(true);
+            } else if (condition.equals("certificate")) {
+                builder.setCertificateChain(true);
+            } else if (condition.startsWith("type:")) {
+                builder.addType(condition.substring("type:".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown alias filter condition: " + condition);
+            }
+        }
+        return builder.build();
+    }
+
+    boolean matches(KeyClass keyClass) {
+        if (!VaultKey.isAsymmetric(keyClass.type())) {
+            return false;
+        }
+        if (signing && !keyClass.signing()) {
+            return false;
+        }
+        if (certificateChain && !keyClass.certificateChain()) {
+            return false;
+        }
+        return types.isEmpty() || types.contains(keyClass.type());
+    }
+
+    public boolean isSigning() {
+        return signing;
+    }
+
+    public boolean isCertificateChain() {
+        return certificateChain;
+    }
+
+    public Set<String> getTypes() {
+        return types;
+    }
+
+    public static class Builder {
+
+        boolean signing;
+        boolean certificateChain;
+        final Set<String> types = new HashSet<>();
+
+        /**
+         * @param signing whether to keep only keys that support signing.
+         */
+        public Builder setSigning(boolean signing) {
+            this.signing = signing;
+            return this;
+        }
+
+        /**
+         * @param certificateChain whether to keep only keys whose latest version has a certificate chain.
+         */
+        public Builder setCertificateChain(boolean certificateChain) {
+            this.certificateChain = certificateChain;
+            return this;
+        }
+
+        /**
+         * @param type a Vault key type to keep, e.g. "rsa-2048" or "ed25519".
+         */
+        public Builder addType(String type) {
+            this.types.add(type);
+            return this;
+        }
+
+        public AliasFilter build() {
+            return new AliasFilter(this);
+        }
+    }
+}
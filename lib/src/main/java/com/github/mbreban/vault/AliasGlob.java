@@ -0,0 +1,77 @@
+package com.github.mbreban.vault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Comma-separated list of alias patterns, where "*" matches any run of
+ * characters and "?" a single character, e.g. "release-*,signer".
+ */
+final class AliasGlob implements Predicate<String> {
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    AliasGlob(String globs) {
+        for (String glob : globs.split(",")) {
+            glob = glob.trim();
+            if (glob.isEmpty()) {
+                continue;
+            }
+            if (glob.indexOf('*') < 0 && glob.indexOf('?') < 0) {
+                names.add(glob);
+            } else {
+                patterns.add(toPattern(glob));
+            }
+        }
+    }
+
+    private static Pattern toPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return true if every entry is a plain alias, so no listing is needed.
+     */
+    boolean isLiteral() {
+        return patterns.isEmpty();
+    }
+
+    /**
+     * @return the plain aliases of the list.
+     */
+    List<String> names() {
+        return names;
+    }
+
+    @Override
+    public boolean test(String alias) {
+        if (names.contains(alias)) {
+            return true;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(alias).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -8,6 +8,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class AsymetricKeyVersion {
 
+    // SimpleDateFormat is not thread-safe, keep one per thread instead of one per call
+    private static final ThreadLocal<SimpleDateFormat> CREATION_TIME_FORMAT = ThreadLocal.withInitial(
+            () -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"));
+
     @JsonProperty("certificate_chain")
     private String certificateChain;
 
@@ -20,6 +24,9 @@ public class AsymetricKeyVersion {
     @JsonProperty("public_key")
     private String publicKey;
 
+    private volatile boolean creationTimeParsed;
+    private volatile Date creationTimeDate;
+
     public String getCertificateChain() {
         return certificateChain;
     }
@@ -38,9 +45,16 @@ public class AsymetricKeyVersion {
     }
 
     public Date getCreationTimeDate() {
+        if (!creationTimeParsed) {
+            creationTimeDate = parseCreationTime(creationTime);
+            creationTimeParsed = true;
+        }
+        return creationTimeDate != null ? new Date(creationTimeDate.getTime()) : null;
+    }
+
+    private static Date parseCreationTime(String creationTime) {
         try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            return sdf.parse(creationTime);
+            return CREATION_TIME_FORMAT.get().parse(creationTime);
         } catch (ParseException e) {
             e.printStackTrace();
             return null;
@@ -49,6 +63,7 @@ public class AsymetricKeyVersion {
 
     public void setCreationTime(String datetimeCreation) {
         this.creationTime = datetimeCreation;
+        this.creationTimeParsed = false;
     }
 
     public String getName() {
@@ -1,13 +1,40 @@
 package com.github.mbreban.vault;
 
+import java.io.InputStream;
 import java.util.List;
 
 public interface Client {
 
+    /**
+     * Version number used to request the latest version of a key.
+     */
+    public static final int LATEST_VERSION = 0;
+
     public VaultStatus status() throws VaultException;
 
     public VaultKey read(String keyname);
 
+    /**
+     * Reads a key but only materializes a single version of it; the other
+     * versions are discarded while the response is read.
+     *
+     * @param keyname the name of the key to read.
+     * @param version the version to keep, or {@link #LATEST_VERSION}.
+     * @return the key, or null if it does not exist.
+     * @throws UnsupportedKeyTypeException if the key exists but is not an
+     * rsa, ecdsa or ed25519 key.
+     */
+    public VaultKey read(String keyname, int version);
+
+    /**
+     * Reads only the latest version number of a key and a fingerprint of its
+     * certificate chain, without materializing any of its versions.
+     *
+     * @param keyname the name of the key to read.
+     * @return the revision, or null if the key does not exist.
+     */
+    public KeyRevision revision(String keyname);
+
     public List<String> list();
 
     /**
@@ -22,6 +49,16 @@ public interface Client {
      */
     public byte[] sign(String keyName, byte[] bytes, String hashAlgorithm, String signatureAlgorithm, boolean prehashed, String saltLength);
 
+    /**
+     * Signs a message that is not prehashed, streaming it to Vault instead of
+     * holding the encoded request in memory next to the message.
+     *
+     * @param keyName the name of the key to use for signing.
+     * @param message the message.
+     * @return the signature bytes.
+     */
+    public byte[] sign(String keyName, InputStream message);
+
     /**
      * @param keyName the name of the key that was used to generate the signature.
      * @param plaintext the plaintext data.
@@ -33,6 +70,56 @@ public interface Client {
      */
     public boolean verify(String keyName, byte[] plaintext, String hashAlgorithm, String signatureAlgorithm, boolean prehashed, byte[] signature);
 
+    /**
+     * @param keyName the name of the key that was used to generate the signature.
+     * @param message the message, streamed to Vault.
+     * @param signature the signature to verify.
+     * @return true if the signature is valid, false otherwise.
+     */
+    public boolean verify(String keyName, InputStream message, byte[] signature);
+
+    /**
+     * @param keyName the name of the symmetric key wrapping the data key.
+     * @param bits the size of the data key.
+     * @return the data key, in plaintext and wrapped.
+     */
+    public VaultDataKey generateDataKey(String keyName, int bits);
+
+    /**
+     * @param keyName the name of the symmetric key.
+     * @param ciphertext the ciphertext, e.g. a wrapped data key.
+     * @return the decrypted bytes.
+     */
+    public byte[] decrypt(String keyName, String ciphertext);
+
+    /**
+     * Computes the HMAC of every input in a single "batch_input" request.
+     *
+     * @param keyName the name of the key.
+     * @param hashAlgorithm the hash algorithm, e.g. "sha2-256".
+     * @param inputs the inputs.
+     * @return the HMACs in the "vault:vN:..." form, in the order of the inputs.
+     */
+    public List<String> hmac(String keyName, String hashAlgorithm, List<byte[]> inputs);
+
+    /**
+     * Verifies the HMAC of every input in a single "batch_input" request.
+     *
+     * @param keyName the name of the key.
+     * @param hashAlgorithm the hash algorithm, e.g. "sha2-256".
+     * @param inputs the inputs.
+     * @param hmacs the HMACs to verify in the "vault:vN:..." form, so
+     *        HMACs computed before a rotation are checked with their version.
+     * @return whether each HMAC is valid; a malformed HMAC is invalid.
+     */
+    public boolean[] verifyHmac(String keyName, String hashAlgorithm, List<byte[]> inputs, List<String> hmacs);
+
+    /**
+     * @param bytes the number of random bytes, at most 128 KiB.
+     * @return random bytes generated by Vault.
+     */
+    public byte[] random(int bytes);
+
     public void authenticate(String token);
 
 }
@@ -0,0 +1,200 @@
+package com.github.mbreban.vault;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Clients shared by address and token, counted by reference.
+ *
+ * A client whose last lease was released is kept for an idle timeout, so
+ * key stores created one after another reuse its connections; it is dropped
+ * by the next acquire or release after that, and closed if it is
+ * {@link Closeable}.
+ */
+final class ClientRegistry {
+
+    static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(5);
+
+    private record Key(String address, String tokenHash) {
+    }
+
+    private static final class Holder {
+
+        final Client client;
+        // Changed when the client is moved to a rotated token
+        Key key;
+        int references;
+        // References taken by key stores following a token sink, by sink
+        final Map<Path, Integer> followers = new HashMap<>();
+        long idleSince;
+
+        Holder(Key key, Client client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+
+    /**
+     * A reference to a shared client, released once.
+     */
+    static final class Lease {
+
+        private final Holder holder;
+        private final Path sink;
+        private boolean released;
+        final Client client;
+
+        private Lease(Holder holder, Path sink) {
+            this.holder = holder;
+            this.sink = sink;
+            this.client = holder.client;
+        }
+    }
+
+    private final Function<String, Client> factory;
+    private final long idleTimeoutNanos;
+
+    private final Map<Key, Holder> clients = new HashMap<>();
+
+    ClientRegistry(Function<String, Client> factory, Duration idleTimeout) {
+        this.factory = factory;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+    }
+
+    /**
+     * @param token the token, or null for an unauthenticated client.
+     */
+    synchronized Lease acquire(String address, String token) {
+        return acquire(address, token, null);
+    }
+
+    /**
+     * @param token the token, or null for an unauthenticated client.
+     * @param sink the token sink the lease follows, or null.
+     */
+    synchronized Lease acquire(String address, String token, Path sink) {
+        long now = System.nanoTime();
+        evictIdle(now);
+
+        Key key = new Key(address, hash(token));
+        Holder holder = clients.get(key);
+        if (holder == null) {
+            Client client = factory.apply(address);
+            if (token != null) {
+                client.authenticate(token);
+            }
+            holder = new Holder(key, client);
+            clients.put(key, holder);
+        }
+        holder.references++;
+        if (sink != null) {
+            holder.followers.merge(sink, 1, Integer::sum);
+        }
+        return new Lease(holder, sink);
+    }
+
+    /**
+     * Moves the lease to a rotated token.
+     *
+     * When every lease of the client follows the same token sink, they all
+     * move to the new token anyway: the client is re-authenticated in place
+     * and keeps its connections. Otherwise, e.g. for the unauthenticated
+     * client or a client shared with key stores using another token, the
+     * lease is released and the client of the new token is acquired.
+     *
+     * @param sink the token sink the token was read from.
+     * @return the lease to use from now on, which may be the same.
+     */
+    synchronized Lease rotate(Lease lease, String token, Path sink) {
+        Holder holder = lease.holder;
+        Key key = new Key(holder.key.address(), hash(token));
+        if (key.equals(holder.key) && Objects.equals(lease.sink, sink)) {
+            return lease;
+        }
+
+        boolean inPlace = !lease.released
+                && clients.get(key) == null
+                && clients.get(holder.key) == holder
+                && !holder.key.tokenHash().isEmpty()
+                && sink != null
+                && sink.equals(lease.sink)
+                && holder.followers.getOrDefault(lease.sink, 0) == holder.references;
+        if (!inPlace) {
+            release(lease);
+            return acquire(key.address(), token, sink);
+        }
+
+        holder.client.authenticate(token);
+        clients.remove(holder.key);
+        holder.key = key;
+        clients.put(key, holder);
+        return lease;
+    }
+
+    synchronized void release(Lease lease) {
+        long now = System.nanoTime();
+        Holder holder = lease.holder;
+        if (!lease.released && clients.get(holder.key) == holder) {
+            holder.references--;
+            if (lease.sink != null) {
+                holder.followers.computeIfPresent(lease.sink, (sink, count) -> count > 1 ? count - 1 : null);
+            }
+            if (holder.references == 0) {
+                holder.idleSince = now;
+            }
+        }
+        lease.released = true;
+        evictIdle(now);
+    }
+
+    synchronized int size() {
+        return clients.size();
+    }
+
+    private void evictIdle(long now) {
+        Iterator<Holder> it = clients.values().iterator();
+        while (it.hasNext()) {
+            Holder holder = it.next();
+            if (holder.references == 0 && now - holder.idleSince >= idleTimeoutNanos) {
+                it.remove();
+                close(holder.client);
+            }
+        }
+    }
+
+    // Pooled connections are closed now rather than when the client is collected
+    private static void close(Client client) {
+        if (client instanceof Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Tokens are not kept as map keys
+    private static String hash(String token) {
+        if (token == null) {
+            return "";
+        }
+        try {
+            MessageDigest digest = HashAlgorithmRef.newMessageDigest(HashAlgorithmRef.SHA2_256.JCA_NAME);
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProviderException(e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.mbreban.vault;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Unwrapped data keys by wrapped key, bounded by entry count, total size and
+ * lifetime, least recently used first out. Evicted keys are zeroed.
+ *
+ * Entries are scoped to the client that unwrapped them, so a key unwrapped
+ * with one Vault token is not served to another. They hold that client
+ * weakly; expired entries and those of collected clients are zeroed on the
+ * next put, those of a released client by {@link #forget(Client, long)}.
+ */
+final class DataKeyCache {
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long lifetimeNanos;
+
+    private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    DataKeyCache(int maxEntries, long maxBytes, long lifetimeNanos) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.lifetimeNanos = lifetimeNanos;
+    }
+
+    private static final class CacheKey {
+
+        private final WeakReference<Client> client;
+        private final int clientHash;
+        private final String keyName;
+        private final String wrapped;
+
+        CacheKey(Client client, String keyName, String wrapped) {
+            this.client = new WeakReference<>(client);
+            this.clientHash = System.identityHashCode(client);
+            this.keyName = keyName;
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey other) || clientHash != other.clientHash
+                    || !keyName.equals(other.keyName) || !wrapped.equals(other.wrapped)) {
+                return false;
+            }
+            Client current = client.get();
+            return current != null && current == other.client.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientHash, keyName, wrapped);
+        }
+    }
+
+    private static final class Entry {
+
+        final byte[] key;
+        final long createdAt;
+        final long size;
+
+        Entry(byte[] key, long createdAt, long size) {
+            this.key = key;
+            this.createdAt = createdAt;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @return a copy of the unwrapped key, or null if absent or expired.
+     */
+    synchronized byte[] get(Client client, String keyName, String wrapped, long now) {
+        CacheKey cacheKey = new CacheKey(client, keyName, wrapped);
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.createdAt >= lifetimeNanos) {
+            remove(cacheKey);
+            return null;
+        }
+        return entry.key.clone();
+    }
+
+    synchronized void put(Client client, String keyName, String wrapped, byte[] key, long now) {
+        sweep(null, now);
+        CacheKey cacheKey = new CacheKey(client, keyName, wrapped);
+        long size = key.length + wrapped.length();
+        if (size > maxBytes || maxEntries <= 0) {
+            return;
+        }
+
+        remove(cacheKey);
+        entries.put(cacheKey, new Entry(key.clone(), now, size));
+        bytes += size;
+
+        Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Entry evicted = it.next().getValue();
+            it.remove();
+            evict(evicted);
+        }
+    }
+
+    /**
+     * Zeroes and drops the data keys of a client, along with expired ones
+     * and those of collected clients.
+     *
+     * @param client the released client, or null to only sweep.
+     */
+    synchronized void forget(Client client, long now) {
+        sweep(client, now);
+    }
+
+    private void sweep(Client client, long now) {
+        Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<CacheKey, Entry> next = it.next();
+            Client owner = next.getKey().client.get();
+            if (owner == null || owner == client || now - next.getValue().createdAt >= lifetimeNanos) {
+                it.remove();
+                evict(next.getValue());
+            }
+        }
+    }
+
+    private void remove(CacheKey cacheKey) {
+        Entry entry = entries.remove(cacheKey);
+        if (entry != null) {
+            evict(entry);
+        }
+    }
+
+    private void evict(Entry entry) {
+        bytes -= entry.size;
+        Arrays.fill(entry.key, (byte) 0);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            Arrays.fill(entry.key, (byte) 0);
+        }
+        entries.clear();
+        bytes = 0;
+    }
+}
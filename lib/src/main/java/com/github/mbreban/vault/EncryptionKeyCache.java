@@ -0,0 +1,179 @@
+package com.github.mbreban.vault;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The data key currently used to seal messages, per client and Vault key.
+ * A data key is reused for a bounded number of messages, bytes and time,
+ * then replaced by a fresh one from "transit/datakey". Every message still
+ * gets its own random IV; the message bound keeps the probability of an IV
+ * collision under AES-GCM negligible.
+ *
+ * Entries hold their client weakly, as {@link VerifyCache} does; expired
+ * entries and those of collected clients are zeroed on the next lease or
+ * put, those of a released client by {@link #forget(Client, long)}.
+ */
+final class EncryptionKeyCache {
+
+    private final long maxMessages;
+    private final long maxBytes;
+    private final long lifetimeNanos;
+
+    private final HashMap<CacheKey, Entry> entries = new HashMap<>();
+
+    EncryptionKeyCache(long maxMessages, long maxBytes, long lifetimeNanos) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.lifetimeNanos = lifetimeNanos;
+    }
+
+    private static final class CacheKey {
+
+        private final WeakReference<Client> client;
+        private final int clientHash;
+        private final String keyName;
+
+        CacheKey(Client client, String keyName) {
+            this.client = new WeakReference<>(client);
+            this.clientHash = System.identityHashCode(client);
+            this.keyName = keyName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey other) || clientHash != other.clientHash || !keyName.equals(other.keyName)) {
+                return false;
+            }
+            Client current = client.get();
+            return current != null && current == other.client.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientHash, keyName);
+        }
+    }
+
+    /**
+     * A data key handed to one message. The plaintext key is a copy, to be
+     * zeroed by the caller.
+     */
+    static final class Lease {
+
+        private final Entry entry;
+        final byte[] plaintext;
+        final String wrapped;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+            this.plaintext = entry.key.clone();
+            this.wrapped = entry.wrapped;
+        }
+
+        /**
+         * Accounts the bytes sealed with this data key.
+         */
+        void sealed(long bytes) {
+            synchronized (entry) {
+                entry.bytes += bytes;
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final byte[] key;
+        final String wrapped;
+        final long createdAt;
+        long messages;
+        long bytes;
+
+        Entry(byte[] key, String wrapped, long createdAt) {
+            this.key = key;
+            this.wrapped = wrapped;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * @return the current data key for one more message, or null if there
+     *         is none or it is used up.
+     */
+    synchronized Lease lease(Client client, String keyName, long now) {
+        sweep(null, now);
+        CacheKey cacheKey = new CacheKey(client, keyName);
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.messages >= maxMessages || entry.bytes >= maxBytes || now - entry.createdAt >= lifetimeNanos) {
+                entries.remove(cacheKey);
+                Arrays.fill(entry.key, (byte) 0);
+                return null;
+            }
+            entry.messages++;
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * Makes a fresh data key the current one and leases it for one message.
+     */
+    synchronized Lease put(Client client, String keyName, VaultDataKey dataKey, long now) {
+        sweep(null, now);
+        Entry entry = new Entry(dataKey.getPlaintext().clone(), dataKey.getCiphertext(), now);
+        entry.messages = 1;
+        Lease lease = new Lease(entry);
+        if (maxMessages <= 1) {
+            Arrays.fill(entry.key, (byte) 0);
+            return lease;
+        }
+        Entry previous = entries.put(new CacheKey(client, keyName), entry);
+        if (previous != null) {
+            Arrays.fill(previous.key, (byte) 0);
+        }
+        return lease;
+    }
+
+    /**
+     * Zeroes and drops the data keys of a client, along with expired ones
+     * and those of collected clients.
+     *
+     * @param client the released client, or null to only sweep.
+     */
+    synchronized void forget(Client client, long now) {
+        sweep(client, now);
+    }
+
+    private void sweep(Client client, long now) {
+        Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<CacheKey, Entry> next = it.next();
+            Client owner = next.getKey().client.get();
+            Entry entry = next.getValue();
+            synchronized (entry) {
+                if (owner == null || owner == client || now - entry.createdAt >= lifetimeNanos) {
+                    it.remove();
+                    Arrays.fill(entry.key, (byte) 0);
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            Arrays.fill(entry.key, (byte) 0);
+        }
+        entries.clear();
+    }
+}
@@ -1,10 +1,53 @@
 package com.github.mbreban.vault;
 
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class HashAlgorithmRef {
 
+    // Never updated, only cloned
+    private static final Map<String, MessageDigest> DIGEST_PROTOTYPES = new ConcurrentHashMap<>();
+
+    // Vault name and DER DigestInfo prefix of each digest algorithm
+    private static final Object[][] DIGEST_INFO_PREFIXES = {
+        { SHA1.VAULT_NAME, digestInfoPrefix(new byte[] { 0x2b, 0x0e, 0x03, 0x02, 0x1a }, 20) },
+        { SHA2_224.VAULT_NAME, digestInfoPrefix(nistHashOid(0x04), 28) },
+        { SHA2_256.VAULT_NAME, digestInfoPrefix(nistHashOid(0x01), 32) },
+        { SHA2_384.VAULT_NAME, digestInfoPrefix(nistHashOid(0x02), 48) },
+        { SHA2_512.VAULT_NAME, digestInfoPrefix(nistHashOid(0x03), 64) },
+        { SHA3_224.VAULT_NAME, digestInfoPrefix(nistHashOid(0x07), 28) },
+        { SHA3_256.VAULT_NAME, digestInfoPrefix(nistHashOid(0x08), 32) },
+        { SHA3_384.VAULT_NAME, digestInfoPrefix(nistHashOid(0x09), 48) },
+        { SHA3_512.VAULT_NAME, digestInfoPrefix(nistHashOid(0x0a), 64) },
+    };
+
+    /**
+     * Returns a new digest cloned from a per-algorithm prototype, so providers
+     * are looked up once per algorithm instead of once per signature engine.
+     *
+     * @param name the JCA standard name of the digest.
+     */
+    static MessageDigest newMessageDigest(String name) throws NoSuchAlgorithmException {
+        MessageDigest prototype = DIGEST_PROTOTYPES.get(name);
+        if (prototype == null) {
+            prototype = MessageDigest.getInstance(name);
+            MessageDigest previous = DIGEST_PROTOTYPES.putIfAbsent(name, prototype);
+            if (previous != null) {
+                prototype = previous;
+            }
+        }
+
+        try {
+            return (MessageDigest) prototype.clone();
+        } catch (CloneNotSupportedException e) {
+            return MessageDigest.getInstance(name);
+        }
+    }
+
     static String getVaultDigestAlgorithmFromStandardName(String name)
             throws NoSuchAlgorithmException {
         String algorithmUpper = name.toUpperCase(Locale.US);
@@ -32,6 +75,113 @@ final class HashAlgorithmRef {
         }
     }
 
+    /**
+     * @param name the JCA standard name of an HMAC, e.g. "HmacSHA256" or "HmacSHA3-256".
+     * @return the Vault name of the digest algorithm.
+     */
+    static String getVaultDigestAlgorithmFromHmacName(String name) throws NoSuchAlgorithmException {
+        String algorithmUpper = name.toUpperCase(Locale.US);
+        if (!algorithmUpper.startsWith("HMAC")) {
+            throw new NoSuchAlgorithmException("Unsupported algorithm: " + name);
+        }
+
+        // HmacSHA256 names SHA-256, while HmacSHA3-256 names SHA3-256
+        String digest = algorithmUpper.substring(4);
+        if (digest.startsWith("SHA") && !digest.startsWith("SHA3-") && !digest.startsWith("SHA-")) {
+            digest = "SHA-" + digest.substring(3);
+        }
+        return getVaultDigestAlgorithmFromStandardName(digest);
+    }
+
+    /**
+     * Infers the digest algorithm from the digest length; SHA-2 is assumed
+     * when SHA-2 and SHA-3 digests have the same length.
+     *
+     * @return the Vault name of the algorithm, or null if no digest has this length.
+     */
+    static String getVaultDigestAlgorithmFromDigestLength(int length) {
+        switch (length) {
+            case 20:
+                return SHA1.VAULT_NAME;
+            case 28:
+                return SHA2_224.VAULT_NAME;
+            case 32:
+                return SHA2_256.VAULT_NAME;
+            case 48:
+                return SHA2_384.VAULT_NAME;
+            case 64:
+                return SHA2_512.VAULT_NAME;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the digest length in bytes of the algorithm, given its Vault name.
+     */
+    static int getDigestLengthFromVaultName(String name) throws NoSuchAlgorithmException {
+        switch (name) {
+            case SHA1.VAULT_NAME:
+                return 20;
+            case SHA2_224.VAULT_NAME:
+            case SHA3_224.VAULT_NAME:
+                return 28;
+            case SHA2_256.VAULT_NAME:
+            case SHA3_256.VAULT_NAME:
+                return 32;
+            case SHA2_384.VAULT_NAME:
+            case SHA3_384.VAULT_NAME:
+                return 48;
+            case SHA2_512.VAULT_NAME:
+            case SHA3_512.VAULT_NAME:
+                return 64;
+            default:
+                throw new NoSuchAlgorithmException("Unsupported algorithm: " + name);
+        }
+    }
+
+    /**
+     * Matches the DER prefix of a PKCS#1 DigestInfo (RFC 8017, section 9.2).
+     *
+     * @return the Vault name of the algorithm, or null if {@code digestInfo}
+     * is not a DigestInfo of a supported algorithm.
+     */
+    static String getVaultDigestAlgorithmFromDigestInfo(byte[] digestInfo) {
+        for (Object[] ref : DIGEST_INFO_PREFIXES) {
+            byte[] prefix = (byte[]) ref[1];
+            if (digestInfo.length == prefix.length + (prefix[prefix.length - 1] & 0xff)
+                    && Arrays.equals(digestInfo, 0, prefix.length, prefix, 0, prefix.length)) {
+                return (String) ref[0];
+            }
+        }
+        return null;
+    }
+
+    // 2.16.840.1.101.3.4.2.n
+    private static byte[] nistHashOid(int n) {
+        return new byte[] { 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, (byte) n };
+    }
+
+    // SEQUENCE { SEQUENCE { OID, NULL }, OCTET STRING }, without the digest
+    private static byte[] digestInfoPrefix(byte[] oid, int digestLength) {
+        int algIdLength = 2 + oid.length + 2;
+        byte[] prefix = new byte[2 + 2 + algIdLength + 2];
+        int i = 0;
+        prefix[i++] = 0x30;
+        prefix[i++] = (byte) (2 + algIdLength + 2 + digestLength);
+        prefix[i++] = 0x30;
+        prefix[i++] = (byte) algIdLength;
+        prefix[i++] = 0x06;
+        prefix[i++] = (byte) oid.length;
+        System.arraycopy(oid, 0, prefix, i, oid.length);
+        i += oid.length;
+        prefix[i++] = 0x05;
+        prefix[i++] = 0x00;
+        prefix[i++] = 0x04;
+        prefix[i] = (byte) digestLength;
+        return prefix;
+    }
+
     static String getJcaDigestAlgorithmStandardNameFromVaultName(String name)
             throws NoSuchAlgorithmException {
         switch (name) {
@@ -58,6 +208,11 @@ final class HashAlgorithmRef {
         }
     }
 
+    /**
+     * Vault hash algorithm signing the input as is, only valid with PKCS#1 v1.5.
+     */
+    static final String NONE_VAULT_NAME = "none";
+
     static final class SHA1 {
 
         static final String JCA_NAME = "SHA-1";
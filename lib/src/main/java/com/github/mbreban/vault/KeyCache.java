@@ -0,0 +1,205 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keys and certificate chains read by {@link VaultKeyStoreSpi}, by alias,
+ * the aliases recently found missing, and how each alias was classified
+ * for {@link AliasFilter}.
+ */
+final class KeyCache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // When each missing alias was looked up
+    private final Map<String, Long> missing = new ConcurrentHashMap<>();
+
+    // Kept until the alias changes, unlike the entries
+    private final Map<String, AliasFilter.KeyClass> classes = new ConcurrentHashMap<>();
+
+    private volatile long ttlNanos;
+
+    private volatile long missingTtlNanos;
+
+    KeyCache(long ttlNanos, long missingTtlNanos) {
+        this.ttlNanos = ttlNanos;
+        this.missingTtlNanos = missingTtlNanos;
+    }
+
+    void setTtlNanos(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    void setMissingTtlNanos(long missingTtlNanos) {
+        this.missingTtlNanos = missingTtlNanos;
+    }
+
+    /**
+     * @return the entry for the alias, or null if absent or expired.
+     */
+    Entry get(String alias, long now) {
+        Entry entry = entries.get(alias);
+        if (entry == null || now - entry.loadedAt >= ttlNanos) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the entry for the alias, even if expired, or null if absent.
+     */
+    Entry peek(String alias) {
+        return entries.get(alias);
+    }
+
+    void put(String alias, Entry entry) {
+        missing.remove(alias);
+        entries.put(alias, entry);
+        classes.remove(alias);
+    }
+
+    AliasFilter.KeyClass getKeyClass(String alias) {
+        return classes.get(alias);
+    }
+
+    void putKeyClass(String alias, AliasFilter.KeyClass keyClass) {
+        classes.put(alias, keyClass);
+    }
+
+    void putKeyClassIfAbsent(String alias, AliasFilter.KeyClass keyClass) {
+        classes.putIfAbsent(alias, keyClass);
+    }
+
+    void putMissing(String alias, long now) {
+        missing.put(alias, now);
+    }
+
+    /**
+     * @return true if the alias was found missing less than the missing TTL ago.
+     */
+    boolean isMissing(String alias, long now) {
+        Long since = missing.get(alias);
+        if (since == null) {
+            return false;
+        }
+        if (now - since >= missingTtlNanos) {
+            missing.remove(alias, since);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the entry only if it was not changed concurrently.
+     */
+    boolean replace(String alias, Entry expected, Entry entry) {
+        if (entries.replace(alias, expected, entry)) {
+            classes.remove(alias);
+            return true;
+        }
+        return false;
+    }
+
+    boolean remove(String alias, Entry expected) {
+        if (entries.remove(alias, expected)) {
+            classes.remove(alias);
+            return true;
+        }
+        return false;
+    }
+
+    void invalidate(String alias) {
+        entries.remove(alias);
+        missing.remove(alias);
+        classes.remove(alias);
+    }
+
+    void clear() {
+        entries.clear();
+        missing.clear();
+        classes.clear();
+    }
+
+    Collection<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    Set<String> aliases() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    static final class Entry {
+
+        final VaultKey key;
+        final long loadedAt;
+        // When the key was read from Vault, kept by refreshed()
+        final long readAt;
+
+        private volatile Certificate[] chain;
+
+        Entry(VaultKey key, long loadedAt) {
+            this(key, null, loadedAt);
+        }
+
+        Entry(VaultKey key, Certificate[] chain, long loadedAt) {
+            this(key, chain, loadedAt, loadedAt);
+        }
+
+        private Entry(VaultKey key, Certificate[] chain, long loadedAt, long readAt) {
+            this.key = key;
+            this.chain = chain;
+            this.loadedAt = loadedAt;
+            this.readAt = readAt;
+        }
+
+        /**
+         * @return a copy of this entry, with the same key and chain, loaded at {@code now}.
+         */
+        Entry refreshed(long now) {
+            return new Entry(key, chain, now, readAt);
+        }
+
+        /**
+         * @return the certificate chain of the latest key version, parsed on first use.
+         */
+        Certificate[] getCertificateChain() {
+            Certificate[] certs = this.chain;
+            if (certs == null) {
+                AsymetricKeyVersion kv = key.getKeyVersion(key.getLatestVersion());
+                if (kv == null || kv.getCertificateChain() == null) {
+                    certs = new Certificate[0];
+                } else {
+                    certs = parseCertificateChain(kv.getCertificateChain().getBytes(StandardCharsets.UTF_8));
+                }
+                this.chain = certs;
+            }
+            return certs.clone();
+        }
+    }
+
+    static Certificate[] parseCertificateChain(byte[] bytes) {
+        final Collection<X509Certificate> x509Certs = toCertificates(bytes);
+        return x509Certs.toArray(new Certificate[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<X509Certificate> toCertificates(byte[] bytes) {
+        try {
+            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+            return (Collection<X509Certificate>) certFactory.generateCertificates(new ByteArrayInputStream(bytes));
+        } catch (CertificateException e) {
+            return new ArrayList<>();
+        }
+    }
+}
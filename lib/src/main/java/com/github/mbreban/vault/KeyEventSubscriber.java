@@ -0,0 +1,225 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Subscribes to the transit events of the Vault event notification stream
+ * ("sys/events/subscribe") and reports the keys they refer to.
+ *
+ * The connection is re-established with an exponential backoff when it is
+ * closed or fails; the handler is told about both transitions so it can
+ * fall back to polling in the meantime.
+ */
+final class KeyEventSubscriber implements WebSocket.Listener {
+
+    static final String EVENT_TYPE = "transit*";
+
+    private static final Duration MIN_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+
+    interface Handler {
+
+        /**
+         * @param name the name of the changed key, or null if it cannot be
+         * told from the event.
+         */
+        void onKeyChanged(String name);
+
+        /**
+         * @param reconnected true if the stream was previously lost, in which
+         * case events may have been missed.
+         */
+        void onConnected(boolean reconnected);
+
+        void onDisconnected();
+    }
+
+    private final URI uri;
+    // Read on each connection, so a rotated token is used by the next reconnection
+    private volatile String token;
+    private final Handler handler;
+
+    private final HttpClient httpClient;
+    private final ScheduledExecutorService executor;
+
+    private final StringBuilder message = new StringBuilder();
+
+    private WebSocket webSocket;
+    private long backoffMillis = MIN_BACKOFF.toMillis();
+    private boolean disconnected;
+    private boolean stopped;
+
+    /**
+     * @param address the Vault address, e.g. "http://127.0.0.1:8200".
+     * @param token the Vault token, or null.
+     * @param handler receives the events, called from the subscriber threads.
+     */
+    KeyEventSubscriber(URI address, String token, Handler handler) {
+        this.uri = toEventsUri(address);
+        this.token = token;
+        this.handler = handler;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vault-event-subscriber");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder().executor(executor).build();
+    }
+
+    void setToken(String token) {
+        this.token = token;
+    }
+
+    static URI toEventsUri(URI address) {
+        String scheme = "https".equalsIgnoreCase(address.getScheme()) ? "wss" : "ws";
+        String base = address.toString().substring(address.getScheme().length());
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return URI.create(scheme + base + "/v1/sys/events/subscribe/" + EVENT_TYPE + "?json=true");
+    }
+
+    URI getUri() {
+        return uri;
+    }
+
+    void start() {
+        executor.execute(this::connect);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (webSocket != null) {
+            webSocket.abort();
+            webSocket = null;
+        }
+        executor.shutdownNow();
+    }
+
+    private void connect() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+
+        WebSocket.Builder builder = httpClient.newWebSocketBuilder();
+        if (token != null) {
+            builder.header("X-Vault-Token", token);
+        }
+        builder.buildAsync(uri, this).whenComplete((ws, e) -> {
+            if (e != null) {
+                onLost();
+            }
+        });
+    }
+
+    private void onLost() {
+        boolean notify;
+        synchronized (this) {
+            webSocket = null;
+            if (stopped) {
+                return;
+            }
+            notify = !disconnected;
+            disconnected = true;
+
+            long delay = backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF.toMillis());
+            executor.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+        }
+        if (notify) {
+            handler.onDisconnected();
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket ws) {
+        boolean reconnected;
+        synchronized (this) {
+            if (stopped) {
+                ws.abort();
+                return;
+            }
+            webSocket = ws;
+            reconnected = disconnected;
+            disconnected = false;
+            backoffMillis = MIN_BACKOFF.toMillis();
+        }
+        handler.onConnected(reconnected);
+        ws.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+        message.append(data);
+        if (last) {
+            String text = message.toString();
+            message.setLength(0);
+            try {
+                handleEvent(text);
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+        onLost();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket ws, Throwable error) {
+        onLost();
+    }
+
+    private void handleEvent(String text) throws IOException {
+        JsonNode data = KeyVersions.MAPPER.readTree(text).path("data");
+        String eventType = data.path("event_type").asText("");
+        if (!eventType.startsWith("transit/")) {
+            return;
+        }
+
+        JsonNode metadata = data.path("event").path("metadata");
+        String mountPath = data.path("plugin_info").path("mount_path").asText("");
+        handler.onKeyChanged(keyName(metadata, mountPath));
+    }
+
+    /**
+     * Uses the "name" metadata when present, otherwise the segment following
+     * "keys/" in the request path, e.g. "transit/keys/my-key/rotate".
+     */
+    static String keyName(JsonNode metadata, String mountPath) {
+        String name = metadata.path("name").asText(null);
+        if (name != null && !name.isEmpty()) {
+            return name;
+        }
+
+        String path = metadata.path("path").asText("");
+        if (!mountPath.isEmpty() && path.startsWith(mountPath)) {
+            path = path.substring(mountPath.length());
+        }
+        int start = path.indexOf("keys/");
+        if (start < 0) {
+            return null;
+        }
+        start += "keys/".length();
+        int end = path.indexOf('/', start);
+        name = end < 0 ? path.substring(start) : path.substring(start, end);
+        return name.isEmpty() ? null : name;
+    }
+}
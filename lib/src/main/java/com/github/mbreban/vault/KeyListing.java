@@ -0,0 +1,59 @@
+package com.github.mbreban.vault;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable snapshot of the key names of a transit mount.
+ */
+final class KeyListing {
+
+    private final String[] names;
+    // Same names, sorted for membership lookups
+    private final String[] sorted;
+    private final long createdAt;
+
+    KeyListing(List<String> names, long createdAt) {
+        this.names = names.toArray(new String[0]);
+        this.sorted = this.names.clone();
+        Arrays.sort(this.sorted);
+        this.createdAt = createdAt;
+    }
+
+    boolean contains(String name) {
+        return Arrays.binarySearch(sorted, name) >= 0;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    boolean isExpired(long now, long ttlNanos) {
+        return now - createdAt >= ttlNanos;
+    }
+
+    /**
+     * @return an enumeration walking the snapshot in place, without copying it.
+     */
+    Enumeration<String> enumeration() {
+        return new Enumeration<String>() {
+
+            private int index;
+
+            @Override
+            public boolean hasMoreElements() {
+                return index < names.length;
+            }
+
+            @Override
+            public String nextElement() {
+                if (index >= names.length) {
+                    throw new NoSuchElementException();
+                }
+                return names[index++];
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.mbreban.vault;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Latest version of a transit key and a fingerprint of the certificate
+ * chain of that version. Setting a certificate chain does not bump the key
+ * version, so a cached key is current only if both match.
+ *
+ * The fingerprint is a SHA-256 of the DER certificates, so chains encoded
+ * differently, e.g. restored from a {@link KeyStoreSnapshot}, still match.
+ */
+public final class KeyRevision {
+
+    private static final String BEGIN = "-----BEGIN CERTIFICATE-----";
+    private static final String END = "-----END CERTIFICATE-----";
+
+    private final int latestVersion;
+    private final byte[] chainFingerprint;
+
+    /**
+     * @param certificateChain the PEM chain of the latest version, or null.
+     */
+    KeyRevision(int latestVersion, String certificateChain) {
+        this.latestVersion = latestVersion;
+        this.chainFingerprint = fingerprint(certificateChain);
+    }
+
+    /**
+     * @return the revision of a key read from Vault.
+     */
+    static KeyRevision of(VaultKey key) {
+        AsymetricKeyVersion kv = key.getKeyVersion(key.getLatestVersion());
+        return new KeyRevision(key.getLatestVersion(), kv != null ? kv.getCertificateChain() : null);
+    }
+
+    public int getLatestVersion() {
+        return latestVersion;
+    }
+
+    /**
+     * @return a digest of the DER certificates of the chain, or null without certificates.
+     */
+    static byte[] fingerprint(String pem) {
+        if (pem == null || pem.indexOf(BEGIN) < 0) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = HashAlgorithmRef.newMessageDigest(HashAlgorithmRef.SHA2_256.JCA_NAME);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProviderException(e);
+        }
+        int from = 0;
+        while (true) {
+            int begin = pem.indexOf(BEGIN, from);
+            if (begin < 0) {
+                break;
+            }
+            int end = pem.indexOf(END, begin);
+            if (end < 0) {
+                break;
+            }
+            String base64 = pem.substring(begin + BEGIN.length(), end);
+            digest.update(Base64.getMimeDecoder().decode(base64.getBytes(StandardCharsets.US_ASCII)));
+            from = end + END.length();
+        }
+        return digest.digest();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof KeyRevision other && latestVersion == other.latestVersion
+                && Arrays.equals(chainFingerprint, other.chainFingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * latestVersion + Arrays.hashCode(chainFingerprint);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRevision[latestVersion=" + latestVersion + ", certificateChain="
+                + (chainFingerprint != null) + "]";
+    }
+}
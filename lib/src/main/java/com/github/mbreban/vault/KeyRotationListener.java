@@ -0,0 +1,16 @@
+package com.github.mbreban.vault;
+
+/**
+ * Receives the keys refreshed by the rotation watcher of {@link VaultKeyStoreSpi}.
+ */
+public interface KeyRotationListener {
+
+    /**
+     * Called from the watcher thread after the cached entry was replaced.
+     *
+     * @param alias the alias of the key.
+     * @param key the rotated key, or null if the key was deleted.
+     */
+    public void onKeyRotated(String alias, VaultKey key);
+
+}
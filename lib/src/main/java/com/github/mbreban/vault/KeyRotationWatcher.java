@@ -0,0 +1,150 @@
+package com.github.mbreban.vault;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the revision of the keys held by a {@link KeyCache} and re-reads
+ * only the keys that were rotated, got a new certificate chain, or were
+ * deleted.
+ *
+ * Entries whose revision did not change are marked as freshly loaded, so the
+ * cache TTL only matters for keys the watcher cannot reach. They are still
+ * read again once {@link #MAX_REFRESH_AGE} old, for the metadata the
+ * revision does not cover.
+ */
+final class KeyRotationWatcher {
+
+    static final Duration MAX_REFRESH_AGE = Duration.ofHours(1);
+
+    private final Client client;
+    private final KeyCache cache;
+    private final Runnable onChange;
+
+    private final List<KeyRotationListener> listeners = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService executor;
+
+    KeyRotationWatcher(Client client, KeyCache cache, Runnable onChange) {
+        this.client = client;
+        this.cache = cache;
+        this.onChange = onChange;
+    }
+
+    void addListener(KeyRotationListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(KeyRotationListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts polling, or reschedules it if already started.
+     */
+    synchronized void start(Duration interval) {
+        stop();
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vault-key-rotation-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = interval.toMillis();
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (RuntimeException e) {
+                // Keep the schedule alive, the next poll retries
+                e.printStackTrace();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Checks every cached key once.
+     *
+     * @return the number of entries that were replaced or removed.
+     */
+    int poll() {
+        int changed = 0;
+        for (String alias : cache.aliases()) {
+            KeyCache.Entry entry = cache.peek(alias);
+            if (entry == null) {
+                continue;
+            }
+
+            try {
+                if (refresh(alias, entry)) {
+                    changed++;
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (changed > 0 && onChange != null) {
+            onChange.run();
+        }
+        return changed;
+    }
+
+    private boolean refresh(String alias, KeyCache.Entry entry) {
+        KeyRevision revision = client.revision(alias);
+        long now = System.nanoTime();
+        if (revision != null && revision.equals(KeyRevision.of(entry.key))) {
+            if (now - entry.readAt < MAX_REFRESH_AGE.toNanos()) {
+                cache.replace(alias, entry, entry.refreshed(now));
+                return false;
+            }
+            VaultKey key = client.read(alias, Client.LATEST_VERSION);
+            if (key != null && KeyRevision.of(key).equals(revision)) {
+                // Same key and chain, listeners are not told
+                cache.replace(alias, entry, new KeyCache.Entry(key, now));
+                return false;
+            }
+            return replace(alias, entry, key);
+        }
+
+        return replace(alias, entry, revision == null ? null : client.read(alias, Client.LATEST_VERSION));
+    }
+
+    /**
+     * Replaces or removes the entry of a changed key, and notifies the listeners.
+     */
+    private boolean replace(String alias, KeyCache.Entry entry, VaultKey key) {
+        if (key == null) {
+            if (!cache.remove(alias, entry)) {
+                return false;
+            }
+        } else {
+            KeyCache.Entry rotated = new KeyCache.Entry(key, System.nanoTime());
+            // Parse the chain here rather than on the signing path
+            rotated.getCertificateChain();
+            if (!cache.replace(alias, entry, rotated)) {
+                return false;
+            }
+        }
+
+        for (KeyRotationListener listener : listeners) {
+            listener.onKeyRotated(alias, key);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,297 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk snapshot of the key metadata and certificate chains cached by
+ * {@link VaultKeyStoreSpi}, used to warm start short-lived processes.
+ *
+ * The file is a compact binary encoding followed by a CRC32 of its content:
+ *
+ * <pre>
+ * int    magic
+ * short  format version
+ * long   save time (epoch millis)
+ * int    entry count
+ * entry  entries[entry count]
+ * int    crc32
+ * </pre>
+ *
+ * Only public material is stored: key metadata, the latest public key and
+ * its certificate chain in DER.
+ */
+final class KeyStoreSnapshot {
+
+    private static final int MAGIC = 0x564a4b53; // "VJKS"
+    private static final short FORMAT_VERSION = 1;
+
+    private static final int FLAG_ALLOW_PLAINTEXT_BACKUP = 1;
+    private static final int FLAG_DELETION_ALLOWED = 1 << 1;
+    private static final int FLAG_DERIVED = 1 << 2;
+    private static final int FLAG_EXPORTABLE = 1 << 3;
+    private static final int FLAG_IMPORTED_KEY = 1 << 4;
+    private static final int FLAG_SUPPORTS_DECRYPTION = 1 << 5;
+    private static final int FLAG_SUPPORTS_DERIVATION = 1 << 6;
+    private static final int FLAG_SUPPORTS_ENCRYPTION = 1 << 7;
+    private static final int FLAG_SUPPORTS_SIGNING = 1 << 8;
+
+    final long savedAt;
+    final List<Record> records;
+
+    private KeyStoreSnapshot(long savedAt, List<Record> records) {
+        this.savedAt = savedAt;
+        this.records = records;
+    }
+
+    static final class Record {
+
+        final VaultKey key;
+        final Certificate[] chain;
+
+        Record(VaultKey key, Certificate[] chain) {
+            this.key = key;
+            this.chain = chain;
+        }
+    }
+
+    /**
+     * @param path the snapshot file.
+     * @param client the client to attach to the restored keys.
+     * @return the snapshot, or null if the file does not exist.
+     * @throws IOException if the file is truncated, corrupted or of another format version.
+     */
+    static KeyStoreSnapshot read(Path path, Client client) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < Integer.BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size");
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int contentLength = (int) size - Integer.BYTES;
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, contentLength));
+            if ((int) crc.getValue() != buffer.getInt(contentLength)) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+
+            return decode(buffer.slice(0, contentLength), client);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static KeyStoreSnapshot decode(ByteBuffer buffer, Client client) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a keystore snapshot");
+            }
+            if (buffer.getShort() != FORMAT_VERSION) {
+                throw new IOException("Unsupported snapshot format version");
+            }
+
+            long savedAt = buffer.getLong();
+            int count = buffer.getInt();
+
+            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+            List<Record> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                records.add(decodeRecord(buffer, client, certFactory));
+            }
+            return new KeyStoreSnapshot(savedAt, Collections.unmodifiableList(records));
+        } catch (BufferUnderflowException | CertificateException | VaultException e) {
+            throw new IOException("Invalid snapshot: " + e.getMessage());
+        }
+    }
+
+    private static Record decodeRecord(ByteBuffer buffer, Client client, CertificateFactory certFactory)
+            throws CertificateException, VaultException {
+        String name = getString(buffer);
+        String type = getString(buffer);
+        int flags = buffer.getShort();
+        int autoRotatePeriod = buffer.getInt();
+        int latestVersion = buffer.getInt();
+        int minAvailableVersion = buffer.getInt();
+        int minDecryptionVersion = buffer.getInt();
+        int minEncryptionVersion = buffer.getInt();
+
+        String versionName = getString(buffer);
+        String creationTime = getString(buffer);
+        String publicKey = getString(buffer);
+
+        int certCount = buffer.getShort();
+        Certificate[] chain = new Certificate[certCount];
+        StringBuilder pemChain = new StringBuilder();
+        for (int i = 0; i < certCount; i++) {
+            byte[] der = getBytes(buffer);
+            chain[i] = certFactory.generateCertificate(new ByteArrayInputStream(der));
+            appendPem(pemChain, der);
+        }
+
+        Map<String, Object> keys = new HashMap<>();
+        if (publicKey != null) {
+            Map<String, Object> version = new HashMap<>();
+            version.put("certificate_chain", pemChain.toString());
+            version.put("creation_time", creationTime);
+            version.put("name", versionName);
+            version.put("public_key", publicKey);
+            keys.put(String.valueOf(latestVersion), version);
+        }
+
+        VaultKey key = new VaultKey.Builder()
+                .setClient(client)
+                .setAllowPlaintextBackup((flags & FLAG_ALLOW_PLAINTEXT_BACKUP) != 0)
+                .setAutoRotatePeriod(autoRotatePeriod)
+                .setDeletionAllowed((flags & FLAG_DELETION_ALLOWED) != 0)
+                .setDerived((flags & FLAG_DERIVED) != 0)
+                .setExportable((flags & FLAG_EXPORTABLE) != 0)
+                .setImportedKey((flags & FLAG_IMPORTED_KEY) != 0)
+                .setKeys(keys)
+                .setLatestVersion(latestVersion)
+                .setMinAvailableVersion(minAvailableVersion)
+                .setMinDecryptionVersion(minDecryptionVersion)
+                .setMinEncryptionVersion(minEncryptionVersion)
+                .setName(name)
+                .setSupportsDecryption((flags & FLAG_SUPPORTS_DECRYPTION) != 0)
+                .setSupportsDerivation((flags & FLAG_SUPPORTS_DERIVATION) != 0)
+                .setSupportsEncryption((flags & FLAG_SUPPORTS_ENCRYPTION) != 0)
+                .setSupportsSigning((flags & FLAG_SUPPORTS_SIGNING) != 0)
+                .setType(type)
+                .build();
+
+        return new Record(key, chain);
+    }
+
+    /**
+     * Writes the entries to a temporary file next to {@code path} and moves it
+     * in place, so readers never observe a partially written snapshot.
+     */
+    static void write(Path path, Collection<KeyCache.Entry> entries, long savedAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+        out.writeLong(savedAt);
+        out.writeInt(entries.size());
+        for (KeyCache.Entry entry : entries) {
+            encodeRecord(out, entry.key, entry.getCertificateChain());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void encodeRecord(DataOutputStream out, VaultKey key, Certificate[] chain) throws IOException {
+        int flags = 0;
+        flags |= key.isAllowPlaintextBackup() ? FLAG_ALLOW_PLAINTEXT_BACKUP : 0;
+        flags |= key.isDeletionAllowed() ? FLAG_DELETION_ALLOWED : 0;
+        flags |= key.isDerived() ? FLAG_DERIVED : 0;
+        flags |= key.isExportable() ? FLAG_EXPORTABLE : 0;
+        flags |= key.isImportedKey() ? FLAG_IMPORTED_KEY : 0;
+        flags |= key.isSupportsDecryption() ? FLAG_SUPPORTS_DECRYPTION : 0;
+        flags |= key.isSupportsDerivation() ? FLAG_SUPPORTS_DERIVATION : 0;
+        flags |= key.isSupportsEncryption() ? FLAG_SUPPORTS_ENCRYPTION : 0;
+        flags |= key.isSupportsSigning() ? FLAG_SUPPORTS_SIGNING : 0;
+
+        putString(out, key.getName());
+        putString(out, key.getType());
+        out.writeShort(flags);
+        out.writeInt(key.getAutoRotatePeriod());
+        out.writeInt(key.getLatestVersion());
+        out.writeInt(key.getMinAvailableVersion());
+        out.writeInt(key.getMinDecryptionVersion());
+        out.writeInt(key.getMinEncryptionVersion());
+
+        AsymetricKeyVersion kv = key.getKeyVersion(key.getLatestVersion());
+        putString(out, kv != null ? kv.getName() : null);
+        putString(out, kv != null ? kv.getCreationTimeString() : null);
+        putString(out, kv != null ? kv.getPublicKey() : null);
+
+        out.writeShort(chain.length);
+        try {
+            for (Certificate cert : chain) {
+                putBytes(out, cert.getEncoded());
+            }
+        } catch (CertificateEncodingException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static void appendPem(StringBuilder sb, byte[] der) {
+        sb.append("-----BEGIN CERTIFICATE-----\n");
+        sb.append(Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(der));
+        sb.append("\n-----END CERTIFICATE-----\n");
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        putBytes(out, value != null ? value.getBytes(StandardCharsets.UTF_8) : null);
+    }
+
+    private static void putBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = getBytes(buffer);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
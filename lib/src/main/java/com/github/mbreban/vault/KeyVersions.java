@@ -0,0 +1,71 @@
+package com.github.mbreban.vault;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compact, int-keyed view of the "keys" field of a transit key.
+ *
+ * Versions are kept in a sorted int array and each entry is only converted
+ * to an {@link AsymetricKeyVersion} the first time it is requested.
+ */
+final class KeyVersions {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final KeyVersions EMPTY = new KeyVersions(new int[0], new Object[0]);
+
+    private final int[] versions;
+    private final Object[] raw;
+    private final AtomicReferenceArray<AsymetricKeyVersion> parsed;
+
+    private KeyVersions(int[] versions, Object[] raw) {
+        this.versions = versions;
+        this.raw = raw;
+        this.parsed = new AtomicReferenceArray<>(versions.length);
+    }
+
+    static KeyVersions from(Map<String, Object> keys) {
+        if (keys == null || keys.isEmpty()) {
+            return EMPTY;
+        }
+
+        int[] versions = new int[keys.size()];
+        int i = 0;
+        for (String version : keys.keySet()) {
+            versions[i++] = Integer.parseInt(version);
+        }
+        Arrays.sort(versions);
+
+        Object[] raw = new Object[versions.length];
+        for (Map.Entry<String, Object> entry : keys.entrySet()) {
+            int index = Arrays.binarySearch(versions, Integer.parseInt(entry.getKey()));
+            raw[index] = entry.getValue();
+        }
+
+        return new KeyVersions(versions, raw);
+    }
+
+    AsymetricKeyVersion get(int version) {
+        int index = Arrays.binarySearch(versions, version);
+        if (index < 0) {
+            return null;
+        }
+
+        AsymetricKeyVersion kv = parsed.get(index);
+        if (kv == null) {
+            kv = MAPPER.convertValue(raw[index], AsymetricKeyVersion.class);
+            if (!parsed.compareAndSet(index, null, kv)) {
+                kv = parsed.get(index);
+            }
+        }
+        return kv;
+    }
+
+    boolean isEmpty() {
+        return versions.length == 0;
+    }
+}
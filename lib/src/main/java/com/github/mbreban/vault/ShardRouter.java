@@ -0,0 +1,165 @@
+package com.github.mbreban.vault;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Maps key names to the transit mount, on one Vault cluster or another,
+ * that holds them: first by an explicit table of aliases or patterns, then
+ * by consistent hashing over the shards. Adding a shard only moves the keys
+ * the new shard takes over.
+ */
+final class ShardRouter {
+
+    // Points per shard on the hash ring, to spread keys evenly
+    private static final int VIRTUAL_NODES = 128;
+
+    /**
+     * A transit mount on a Vault cluster, written "mount@address", or just
+     * "mount" for the default address.
+     */
+    record Shard(String mount, String address) {
+
+        static Shard parse(String spec, String defaultAddress) {
+            spec = spec.trim();
+            int at = spec.indexOf('@');
+            // Addresses start with a scheme, mounts do not contain ':'
+            if (at > 0 && spec.lastIndexOf(':', at) < 0) {
+                return new Shard(trimSlashes(spec.substring(0, at)), spec.substring(at + 1));
+            }
+            if (spec.contains("://")) {
+                return new Shard(VaultClient.DEFAULT_MOUNT, spec);
+            }
+            return new Shard(trimSlashes(spec), defaultAddress);
+        }
+
+        private static String trimSlashes(String mount) {
+            int start = 0;
+            int end = mount.length();
+            while (start < end && mount.charAt(start) == '/') {
+                start++;
+            }
+            while (end > start && mount.charAt(end - 1) == '/') {
+                end--;
+            }
+            return mount.substring(start, end);
+        }
+
+        /**
+         * @return the spec, parsed back to this shard by {@link #parse(String, String)}.
+         */
+        String spec() {
+            return mount + "@" + address;
+        }
+    }
+
+    private record Route(AliasGlob aliases, Shard shard) {
+    }
+
+    private final List<Shard> shards;
+    private final List<Route> routes;
+    private final TreeMap<Long, Shard> ring = new TreeMap<>();
+
+    /**
+     * @param shards the shards keys are hashed over, at least one.
+     * @param routes aliases or patterns and the shard they live on, checked in order.
+     */
+    ShardRouter(List<Shard> shards, Map<String, Shard> routes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        Set<Shard> all = new LinkedHashSet<>(shards);
+        this.routes = new ArrayList<>();
+        for (Map.Entry<String, Shard> route : routes.entrySet()) {
+            this.routes.add(new Route(new AliasGlob(route.getKey()), route.getValue()));
+            all.add(route.getValue());
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(all));
+
+        for (Shard shard : new LinkedHashSet<>(shards)) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.putIfAbsent(hash(shard.spec() + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * Parses "transit,transit-2,transit@https://vault-b:8200" for the hashed
+     * shards, and "release-*=transit-2,signer=transit@https://vault-b:8200"
+     * for the routes.
+     *
+     * @param routes the routes, or null.
+     */
+    static ShardRouter parse(String shards, String routes, String defaultAddress) {
+        List<Shard> hashed = new ArrayList<>();
+        for (String spec : shards.split(",")) {
+            if (!spec.isBlank()) {
+                hashed.add(Shard.parse(spec, defaultAddress));
+            }
+        }
+
+        Map<String, Shard> table = new LinkedHashMap<>();
+        if (routes != null) {
+            for (String route : routes.split(",")) {
+                if (route.isBlank()) {
+                    continue;
+                }
+                int equals = route.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Invalid shard route: " + route);
+                }
+                table.put(route.substring(0, equals).trim(), Shard.parse(route.substring(equals + 1), defaultAddress));
+            }
+        }
+        return new ShardRouter(hashed, table);
+    }
+
+    /**
+     * @return every shard, hashed or routed to, in configuration order.
+     */
+    List<Shard> shards() {
+        return shards;
+    }
+
+    /**
+     * @return true if some shard is on another cluster than the address.
+     */
+    boolean spansOtherThan(String address) {
+        for (Shard shard : shards) {
+            if (!shard.address().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Shard route(String keyName) {
+        for (Route route : routes) {
+            if (route.aliases().test(keyName)) {
+                return route.shard();
+            }
+        }
+        Map.Entry<Long, Shard> entry = ring.ceilingEntry(hash(keyName));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static long hash(String value) {
+        try {
+            MessageDigest digest = HashAlgorithmRef.newMessageDigest(HashAlgorithmRef.SHA2_256.JCA_NAME);
+            return ByteBuffer.wrap(digest.digest(value.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProviderException(e);
+        }
+    }
+}
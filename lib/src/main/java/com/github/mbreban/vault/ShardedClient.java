@@ -0,0 +1,167 @@
+package com.github.mbreban.vault;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Client spreading keys over several transit mounts and clusters, as
+ * routed by a {@link ShardRouter}. Every shard has its own client, and so
+ * its own connection pool and concurrency limit. Calls on a key go to the
+ * shard of the key; the listing merges the keys each shard owns.
+ */
+final class ShardedClient implements Client {
+
+    private final ShardRouter router;
+    private final Map<ShardRouter.Shard, Client> clients = new LinkedHashMap<>();
+
+    ShardedClient(ShardRouter router, Function<ShardRouter.Shard, Client> factory) {
+        this.router = router;
+        for (ShardRouter.Shard shard : router.shards()) {
+            clients.put(shard, factory.apply(shard));
+        }
+    }
+
+    private Client clientFor(String keyName) {
+        return clients.get(router.route(keyName));
+    }
+
+    /**
+     * Releases the shared client of every shard, and the data keys unwrapped
+     * through this client.
+     */
+    void release() {
+        for (Client client : clients.values()) {
+            if (client instanceof SharedClient shared) {
+                shared.release();
+            }
+        }
+        VaultEnvelopeCipher.forget(this);
+    }
+
+    /**
+     * Moves every shard to a renewed token, see {@link SharedClient#rotate(String, Path)}.
+     */
+    void rotate(String token, Path sink) {
+        for (Client client : clients.values()) {
+            if (client instanceof SharedClient shared) {
+                shared.rotate(token, sink);
+            } else {
+                client.authenticate(token);
+            }
+        }
+    }
+
+    @Override
+    public void authenticate(String token) {
+        for (Client client : clients.values()) {
+            client.authenticate(token);
+        }
+    }
+
+    /**
+     * @return the status of the first shard that is not ready, or else of the first shard.
+     */
+    @Override
+    public VaultStatus status() throws VaultException {
+        VaultStatus first = null;
+        for (Client client : clients.values()) {
+            VaultStatus status = client.status();
+            if (!Boolean.TRUE.equals(status.isInitialized()) || !Boolean.FALSE.equals(status.isSealed())) {
+                return status;
+            }
+            if (first == null) {
+                first = status;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public VaultKey read(String keyname) {
+        return clientFor(keyname).read(keyname);
+    }
+
+    @Override
+    public VaultKey read(String keyname, int version) {
+        return clientFor(keyname).read(keyname, version);
+    }
+
+    @Override
+    public KeyRevision revision(String keyname) {
+        return clientFor(keyname).revision(keyname);
+    }
+
+    /**
+     * Keys found on a shard they are not routed to are left out, since
+     * every other call on them would go to another shard.
+     */
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<ShardRouter.Shard, Client> entry : clients.entrySet()) {
+            List<String> keys = entry.getValue().list();
+            if (keys == null) {
+                continue;
+            }
+            for (String name : keys) {
+                if (router.route(name).equals(entry.getKey())) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public byte[] sign(String keyName, byte[] bytes, String hashAlgorithm, String signatureAlgorithm,
+            boolean prehashed, String saltLength) {
+        return clientFor(keyName).sign(keyName, bytes, hashAlgorithm, signatureAlgorithm, prehashed, saltLength);
+    }
+
+    @Override
+    public byte[] sign(String keyName, InputStream message) {
+        return clientFor(keyName).sign(keyName, message);
+    }
+
+    @Override
+    public boolean verify(String keyName, byte[] plaintext, String hashAlgorithm, String signatureAlgorithm,
+            boolean prehashed, byte[] signature) {
+        return clientFor(keyName).verify(keyName, plaintext, hashAlgorithm, signatureAlgorithm, prehashed, signature);
+    }
+
+    @Override
+    public boolean verify(String keyName, InputStream message, byte[] signature) {
+        return clientFor(keyName).verify(keyName, message, signature);
+    }
+
+    @Override
+    public VaultDataKey generateDataKey(String keyName, int bits) {
+        return clientFor(keyName).generateDataKey(keyName, bits);
+    }
+
+    @Override
+    public byte[] decrypt(String keyName, String ciphertext) {
+        return clientFor(keyName).decrypt(keyName, ciphertext);
+    }
+
+    @Override
+    public List<String> hmac(String keyName, String hashAlgorithm, List<byte[]> inputs) {
+        return clientFor(keyName).hmac(keyName, hashAlgorithm, inputs);
+    }
+
+    @Override
+    public boolean[] verifyHmac(String keyName, String hashAlgorithm, List<byte[]> inputs, List<String> hmacs) {
+        return clientFor(keyName).verifyHmac(keyName, hashAlgorithm, inputs, hmacs);
+    }
+
+    // Random bytes are not tied to a key
+    @Override
+    public byte[] random(int bytes) {
+        return clients.values().iterator().next().random(bytes);
+    }
+}
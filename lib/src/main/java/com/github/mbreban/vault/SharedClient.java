@@ -0,0 +1,183 @@
+package com.github.mbreban.vault;
+
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client handed to each key store by {@link VaultProvider}: calls go to the
+ * client the {@link ClientRegistry} shares for the current address and
+ * token, so key stores with the same credentials share one connection pool.
+ *
+ * {@link #authenticate(String)} moves to the shared client of the new token
+ * instead of re-authenticating a client other key stores use. The lease is
+ * released by {@link #release()}, or once this client is unreachable.
+ */
+final class SharedClient implements Client {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ClientRegistry registry;
+    private final String address;
+
+    // Also referenced by the cleaning action, which must not reach this object
+    private final AtomicReference<ClientRegistry.Lease> lease = new AtomicReference<>();
+
+    SharedClient(ClientRegistry registry, String address) {
+        this.registry = registry;
+        this.address = address;
+        CLEANER.register(this, new Release(registry, lease));
+    }
+
+    private static final class Release implements Runnable {
+
+        private final ClientRegistry registry;
+        private final AtomicReference<ClientRegistry.Lease> lease;
+
+        Release(ClientRegistry registry, AtomicReference<ClientRegistry.Lease> lease) {
+            this.registry = registry;
+            this.lease = lease;
+        }
+
+        @Override
+        public void run() {
+            ClientRegistry.Lease current = lease.getAndSet(null);
+            if (current != null) {
+                registry.release(current);
+            }
+            // This client is collected, its cached data keys can be swept
+            VaultEnvelopeCipher.forget(null);
+        }
+    }
+
+    private Client delegate() {
+        while (true) {
+            ClientRegistry.Lease current = lease.get();
+            if (current != null) {
+                return current.client;
+            }
+
+            // Used before any authentication
+            ClientRegistry.Lease acquired = registry.acquire(address, null);
+            if (lease.compareAndSet(null, acquired)) {
+                return acquired.client;
+            }
+            registry.release(acquired);
+        }
+    }
+
+    /**
+     * Releases the shared client and the data keys unwrapped through it; the
+     * next call acquires an unauthenticated one.
+     */
+    synchronized void release() {
+        ClientRegistry.Lease current = lease.getAndSet(null);
+        if (current != null) {
+            registry.release(current);
+        }
+        VaultEnvelopeCipher.forget(this);
+    }
+
+    /**
+     * Moves to a token read from a Vault Agent token sink. When every key
+     * store sharing the client follows that sink, the client is
+     * re-authenticated in place and keeps its connections; otherwise this
+     * client moves to the shared client of the new token, see
+     * {@link ClientRegistry#rotate}.
+     */
+    synchronized void rotate(String token, Path sink) {
+        ClientRegistry.Lease current = lease.get();
+        if (current == null) {
+            authenticate(token, sink);
+            return;
+        }
+        // Only replaced from null outside of this lock
+        lease.set(registry.rotate(current, token, sink));
+    }
+
+    @Override
+    public void authenticate(String token) {
+        authenticate(token, null);
+    }
+
+    private synchronized void authenticate(String token, Path sink) {
+        ClientRegistry.Lease previous = lease.getAndSet(registry.acquire(address, token, sink));
+        if (previous != null) {
+            registry.release(previous);
+        }
+    }
+
+    @Override
+    public VaultStatus status() throws VaultException {
+        return delegate().status();
+    }
+
+    @Override
+    public VaultKey read(String keyname) {
+        return delegate().read(keyname);
+    }
+
+    @Override
+    public VaultKey read(String keyname, int version) {
+        return delegate().read(keyname, version);
+    }
+
+    @Override
+    public KeyRevision revision(String keyname) {
+        return delegate().revision(keyname);
+    }
+
+    @Override
+    public List<String> list() {
+        return delegate().list();
+    }
+
+    @Override
+    public byte[] sign(String keyName, byte[] bytes, String hashAlgorithm, String signatureAlgorithm,
+            boolean prehashed, String saltLength) {
+        return delegate().sign(keyName, bytes, hashAlgorithm, signatureAlgorithm, prehashed, saltLength);
+    }
+
+    @Override
+    public byte[] sign(String keyName, InputStream message) {
+        return delegate().sign(keyName, message);
+    }
+
+    @Override
+    public boolean verify(String keyName, byte[] plaintext, String hashAlgorithm, String signatureAlgorithm,
+            boolean prehashed, byte[] signature) {
+        return delegate().verify(keyName, plaintext, hashAlgorithm, signatureAlgorithm, prehashed, signature);
+    }
+
+    @Override
+    public boolean verify(String keyName, InputStream message, byte[] signature) {
+        return delegate().verify(keyName, message, signature);
+    }
+
+    @Override
+    public VaultDataKey generateDataKey(String keyName, int bits) {
+        return delegate().generateDataKey(keyName, bits);
+    }
+
+    @Override
+    public byte[] decrypt(String keyName, String ciphertext) {
+        return delegate().decrypt(keyName, ciphertext);
+    }
+
+    @Override
+    public List<String> hmac(String keyName, String hashAlgorithm, List<byte[]> inputs) {
+        return delegate().hmac(keyName, hashAlgorithm, inputs);
+    }
+
+    @Override
+    public boolean[] verifyHmac(String keyName, String hashAlgorithm, List<byte[]> inputs, List<String> hmacs) {
+        return delegate().verifyHmac(keyName, hashAlgorithm, inputs, hmacs);
+    }
+
+    @Override
+    public byte[] random(int bytes) {
+        return delegate().random(bytes);
+    }
+}
@@ -0,0 +1,294 @@
+package com.github.mbreban.vault;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Admission control for the signatures sent to Vault by the clients of a
+ * provider, so a burst of low-priority signatures cannot starve critical
+ * ones.
+ *
+ * A signature runs when a slot is free overall, for its tenant and for its
+ * key. Otherwise it waits in the bounded queue of its priority, and is shed
+ * when that queue is full. Freed slots go to the highest priority first, and
+ * within a priority to the oldest waiter whose bulkheads have room, so a hot
+ * key or tenant does not block the others.
+ */
+public final class SigningScheduler {
+
+    public enum Priority {
+        CRITICAL,
+        NORMAL,
+        BULK;
+
+        static Priority parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Counters of one priority since the scheduler was created.
+     *
+     * @param admitted signatures that ran, queued or not.
+     * @param shed signatures rejected because the queue was full.
+     * @param queued signatures waiting now.
+     * @param totalQueueNanos time spent queued by the admitted signatures.
+     * @param maxQueueNanos longest time an admitted signature spent queued.
+     */
+    public record Stats(long admitted, long shed, int queued, long totalQueueNanos, long maxQueueNanos) {
+
+        public double meanQueueMillis() {
+            return admitted == 0 ? 0 : totalQueueNanos / 1e6 / admitted;
+        }
+    }
+
+    static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private record Rule(AliasGlob aliases, Priority priority) {
+    }
+
+    private static final class Waiter {
+
+        final Object tenant;
+        final String key;
+        final Condition admitted;
+        final long enqueued = System.nanoTime();
+        boolean granted;
+
+        Waiter(Object tenant, String key, Condition admitted) {
+            this.tenant = tenant;
+            this.key = key;
+            this.admitted = admitted;
+        }
+    }
+
+    private static final class Counters {
+
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        long admitted;
+        long shed;
+        long totalQueueNanos;
+        long maxQueueNanos;
+
+        void admit(long queueNanos) {
+            admitted++;
+            totalQueueNanos += queueNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+        }
+    }
+
+    private final int concurrency;
+    private final int tenantConcurrency;
+    private final int keyConcurrency;
+    private final int queueSize;
+    private final List<Rule> rules = new ArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Priority, Counters> counters = new EnumMap<>(Priority.class);
+
+    // Only holds the tenants and keys with signatures running
+    private final Map<Object, Integer> tenantsRunning = new IdentityHashMap<>();
+    private final Map<String, Integer> keysRunning = new HashMap<>();
+    private int running;
+
+    /**
+     * @param concurrency the signatures running at once, overall.
+     * @param tenantConcurrency the signatures running at once for a tenant.
+     * @param keyConcurrency the signatures running at once with a key.
+     * @param queueSize the signatures waiting at once, per priority.
+     */
+    SigningScheduler(int concurrency, int tenantConcurrency, int keyConcurrency, int queueSize) {
+        if (concurrency < 1 || tenantConcurrency < 1 || keyConcurrency < 1 || queueSize < 0) {
+            throw new IllegalArgumentException("Invalid signing limits");
+        }
+        this.concurrency = concurrency;
+        this.tenantConcurrency = tenantConcurrency;
+        this.keyConcurrency = keyConcurrency;
+        this.queueSize = queueSize;
+        for (Priority priority : Priority.values()) {
+            counters.put(priority, new Counters());
+        }
+    }
+
+    /**
+     * Parses "concurrency=32,tenant=16,key=4,queue=256"; omitted tenant and
+     * key limits default to the overall one.
+     */
+    static SigningScheduler parse(String limits) {
+        Map<String, Integer> values = new HashMap<>();
+        for (String entry : limits.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Invalid signing limit: " + entry);
+            }
+            values.put(entry.substring(0, equals).trim(), Integer.parseInt(entry.substring(equals + 1).trim()));
+        }
+        Integer concurrency = values.remove("concurrency");
+        if (concurrency == null) {
+            throw new IllegalArgumentException("Missing signing concurrency: " + limits);
+        }
+        SigningScheduler scheduler = new SigningScheduler(concurrency,
+                values.getOrDefault("tenant", concurrency), values.getOrDefault("key", concurrency),
+                values.getOrDefault("queue", DEFAULT_QUEUE_SIZE));
+        values.keySet().removeAll(List.of("tenant", "key", "queue"));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown signing limits: " + values.keySet());
+        }
+        return scheduler;
+    }
+
+    /**
+     * Sets the priority of keys from "release-*=critical,ci-*=bulk" rules,
+     * checked in order; other keys are {@link Priority#NORMAL}.
+     */
+    void setPriorities(String priorities) {
+        rules.clear();
+        for (String rule : priorities.split(",")) {
+            if (rule.isBlank()) {
+                continue;
+            }
+            int equals = rule.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Invalid signing priority: " + rule);
+            }
+            rules.add(new Rule(new AliasGlob(rule.substring(0, equals)), Priority.parse(rule.substring(equals + 1))));
+        }
+    }
+
+    Priority priorityOf(String keyName) {
+        for (Rule rule : rules) {
+            if (rule.aliases().test(keyName)) {
+                return rule.priority();
+            }
+        }
+        return Priority.NORMAL;
+    }
+
+    public Stats stats(Priority priority) {
+        lock.lock();
+        try {
+            Counters c = counters.get(priority);
+            return new Stats(c.admitted, c.shed, c.queue.size(), c.totalQueueNanos, c.maxQueueNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs a signature once admitted.
+     *
+     * @param tenant the caller sharing the tenant bulkhead, compared by identity.
+     * @param key the key sharing the key bulkhead.
+     * @throws RejectedExecutionException if the queue of the priority is
+     * full, or the caller was interrupted while queued.
+     */
+    <T> T run(Object tenant, String key, Priority priority, Supplier<T> call) {
+        acquire(tenant, key, priority);
+        try {
+            return call.get();
+        } finally {
+            release(tenant, key);
+        }
+    }
+
+    private boolean fits(Object tenant, String key) {
+        return running < concurrency
+                && tenantsRunning.getOrDefault(tenant, 0) < tenantConcurrency
+                && keysRunning.getOrDefault(key, 0) < keyConcurrency;
+    }
+
+    private void take(Object tenant, String key) {
+        running++;
+        tenantsRunning.merge(tenant, 1, Integer::sum);
+        keysRunning.merge(key, 1, Integer::sum);
+    }
+
+    private void acquire(Object tenant, String key, Priority priority) {
+        lock.lock();
+        try {
+            Counters c = counters.get(priority);
+            // Waiters that fit are admitted as soon as slots free up, so
+            // whatever is queued cannot run now either
+            if (fits(tenant, key)) {
+                take(tenant, key);
+                c.admit(0);
+                return;
+            }
+            if (c.queue.size() >= queueSize) {
+                c.shed++;
+                throw new RejectedExecutionException(
+                        "Signing queue full for %s priority, signature with %s shed".formatted(priority, key));
+            }
+
+            Waiter waiter = new Waiter(tenant, key, lock.newCondition());
+            c.queue.addLast(waiter);
+            try {
+                while (!waiter.granted) {
+                    waiter.admitted.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.granted) {
+                    // Hand the slots over to the next waiter
+                    untake(tenant, key);
+                    dispatch();
+                } else {
+                    c.queue.remove(waiter);
+                }
+                throw new RejectedExecutionException("Interrupted while queued for signing with " + key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Object tenant, String key) {
+        lock.lock();
+        try {
+            untake(tenant, key);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void untake(Object tenant, String key) {
+        running--;
+        tenantsRunning.computeIfPresent(tenant, (t, n) -> n > 1 ? n - 1 : null);
+        keysRunning.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void dispatch() {
+        long now = System.nanoTime();
+        for (Priority priority : Priority.values()) {
+            Counters c = counters.get(priority);
+            for (Iterator<Waiter> it = c.queue.iterator(); it.hasNext() && running < concurrency;) {
+                Waiter waiter = it.next();
+                if (fits(waiter.tenant, waiter.key)) {
+                    it.remove();
+                    take(waiter.tenant, waiter.key);
+                    c.admit(now - waiter.enqueued);
+                    waiter.granted = true;
+                    waiter.admitted.signal();
+                }
+            }
+            if (running >= concurrency) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.mbreban.vault;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces the snapshot rewrites of a key store: a rewrite requested on
+ * the lookup path runs on a background thread after a short delay, once
+ * for all the keys read meanwhile. Pending rewrites are flushed when the
+ * key store is closed and when the JVM exits, so short-lived processes
+ * still leave a snapshot for the next run.
+ */
+final class SnapshotWriter {
+
+    static final long DELAY_MILLIS = 500;
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "vault-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Set<SnapshotWriter> PENDING = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (SnapshotWriter writer : PENDING) {
+                writer.flush();
+            }
+        }, "vault-snapshot-flush"));
+    }
+
+    private final Runnable write;
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    SnapshotWriter(Runnable write) {
+        this.write = write;
+    }
+
+    /**
+     * Requests a rewrite, unless one is already pending.
+     */
+    void schedule() {
+        if (pending.compareAndSet(false, true)) {
+            PENDING.add(this);
+            EXECUTOR.schedule(this::flush, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs the pending rewrite, if any, on the calling thread.
+     */
+    void flush() {
+        // Requests made from now on are covered by this rewrite
+        PENDING.remove(this);
+        if (!pending.compareAndSet(true, false)) {
+            return;
+        }
+        // A later rewrite waits for this one, so the newest content wins
+        synchronized (this) {
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Byte buffer kept in memory up to a threshold, then moved to a temporary
+ * file, so arbitrarily large inputs do not have to fit in the heap.
+ *
+ * The temporary file is created with the default permissions of
+ * {@link Files#createTempFile}, readable by the owner only on POSIX systems,
+ * and deleted on {@link #reset()} and {@link #close()}.
+ */
+final class SpillBuffer implements Closeable {
+
+    private final int threshold;
+
+    private final Memory memory = new Memory();
+
+    private Path file;
+
+    private OutputStream fileOut;
+
+    private long size;
+
+    SpillBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    // Exposes the internal array to read it without copying
+    private static final class Memory extends ByteArrayOutputStream {
+
+        InputStream open() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (file == null && memory.size() + len > threshold) {
+            spill();
+        }
+        if (file != null) {
+            fileOut.write(b, off, len);
+        } else {
+            memory.write(b, off, len);
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("vault-jce-", ".tmp");
+        fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+        memory.writeTo(fileOut);
+        memory.reset();
+    }
+
+    long size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return a stream over the bytes written so far; it must be closed before
+     * {@link #reset()}.
+     */
+    InputStream openStream() throws IOException {
+        if (file == null) {
+            return memory.open();
+        }
+        fileOut.flush();
+        return Files.newInputStream(file);
+    }
+
+    /**
+     * Discards the content and deletes the temporary file, if any.
+     */
+    void reset() throws IOException {
+        memory.reset();
+        size = 0;
+        if (file != null) {
+            try {
+                fileOut.close();
+            } finally {
+                Files.deleteIfExists(file);
+                file = null;
+                fileOut = null;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reset();
+    }
+}
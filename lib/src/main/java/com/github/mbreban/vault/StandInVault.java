@@ -0,0 +1,120 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for Vault serving a single RSA key, enough for
+ * {@link StartupProbe} to load a key store, read the key and its
+ * certificate chain, and sign. Signatures are zeros.
+ *
+ * Used to train the AppCDS archive of the container image and by the
+ * startup benchmark, so both exercise the same code paths. The key and
+ * its self-signed certificate are throwaway values, trusted nowhere.
+ */
+final class StandInVault {
+
+    static final String KEY_TYPE = "rsa-2048";
+
+    private static final String CERTIFICATE = """
+-----BEGIN CERTIFICATE-----
+MIIC3zCCAcegAwIBAgIIBzyYbOJ7p3owDQYJKoZIhvcNAQELBQAwHTEbMBkGA1UE
+AxMSdmF1bHQtamNlLXN0YW5kLWluMCAXDTI2MTAxOTA3MjI1MFoYDzIxMjYwOTI1
+MDcyMjUwWjAdMRswGQYDVQQDExJ2YXVsdC1qY2Utc3RhbmQtaW4wggEiMA0GCSqG
+SIb3DQEBAQUAA4IBDwAwggEKAoIBAQCnKrSlWYpta+Vws3d6apbC6A6KV4iN/Ap4
+Bp93v5i0LxLQNOYCc/BEt/7s0pHcgTQxhWxX18wT/MnKTf38wyq1QxyhXQEsefP1
+TjY/gTOwVyGCdIcb0rrjxfDmD7ruFwo3DvmPzPcEO+2UF0SJNwB9bWFhE7CTPzzx
+NPLAO7soSOz2ALW3cqLJrr/bquSQGG1Mr8BCkzcxyUTgPyHQR9pE9S0sreDb9hza
+dR/jL6tPW4xLIBMKctDst/A9Mjt1QgW2u2n0kDm5P/VU29yLu3J5gIvt3lc8N09N
+pEp9XKTjpNmxv7rMRybsnexGKkbqBLurdw4wzAzPAA+vjUFNt4RFAgMBAAGjITAf
+MB0GA1UdDgQWBBTNaJdpuhc5B8TUvtRMtJCdThCXMTANBgkqhkiG9w0BAQsFAAOC
+AQEApbGyr/tXLItSN+rDTGowVJS6aeZyAKIjkqmgpoUcQ8tNNwqu2L6qlfvFDeJF
+0dqMA3EvCwVCaRRirctLFCuzgSBJAjMV1HQW980bpo9BJzFPjb8tqzHNcavJ32BG
+QK2lkR8C2+PQvXEzoAN6bsZT/7rwGHdjeizrbwladKpRZWq+lY+llCTPFM2y3osf
+1MOHQ8B4rbUWodlLgGIaKJVrZZMScE0D3TTRmMDRlwTa62pht7Mgxs6K873XMRSP
+yi2x+UK7r9h9HElteOAZRnJ1S9tM6+axq/hh0iJEQIdcCBSquAn41o6V+zbmKDAA
+/OQVtVKGytI0DTT1g0cK67iH3w==
+-----END CERTIFICATE-----
+""";
+
+    private static final String PUBLIC_KEY = """
+-----BEGIN PUBLIC KEY-----
+MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEApyq0pVmKbWvlcLN3emqW
+wugOileIjfwKeAafd7+YtC8S0DTmAnPwRLf+7NKR3IE0MYVsV9fME/zJyk39/MMq
+tUMcoV0BLHnz9U42P4EzsFchgnSHG9K648Xw5g+67hcKNw75j8z3BDvtlBdEiTcA
+fW1hYROwkz888TTywDu7KEjs9gC1t3Kiya6/26rkkBhtTK/AQpM3MclE4D8h0Efa
+RPUtLK3g2/Yc2nUf4y+rT1uMSyATCnLQ7LfwPTI7dUIFtrtp9JA5uT/1VNvci7ty
+eYCL7d5XPDdPTaRKfVyk46TZsb+6zEcm7J3sRipG6gS7q3cOMMwMzwAPr41BTbeE
+RQIDAQAB
+-----END PUBLIC KEY-----
+""";
+
+    private StandInVault() {
+    }
+
+    /**
+     * Starts the stand-in on a free loopback port.
+     *
+     * @param alias the name of the key it serves.
+     */
+    static HttpServer start(String alias) throws IOException {
+        Map<String, String> version = new LinkedHashMap<>();
+        version.put("certificate_chain", CERTIFICATE);
+        version.put("creation_time", "2024-09-10T12:41:48.827291072+02:00");
+        version.put("name", KEY_TYPE);
+        version.put("public_key", PUBLIC_KEY);
+
+        Map<String, Object> key = new LinkedHashMap<>();
+        key.put("keys", Collections.singletonMap("1", version));
+        key.put("latest_version", 1);
+        key.put("min_decryption_version", 1);
+        key.put("name", alias);
+        key.put("supports_signing", true);
+        key.put("type", KEY_TYPE);
+
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("initialized", true);
+        health.put("sealed", false);
+        health.put("standby", false);
+        health.put("performance_standby", false);
+        health.put("server_time_utc", System.currentTimeMillis() / 1000);
+        health.put("version", "1.15.0");
+
+        Map<String, Object> signature = Collections.singletonMap("signature",
+                "vault:v1:" + Base64.getEncoder().encodeToString(new byte[256]));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/sys/health", exchange -> respond(exchange, health));
+        server.createContext("/v1/transit/keys/" + alias, exchange -> respond(exchange,
+                Collections.singletonMap("data", key)));
+        server.createContext("/v1/transit/sign/" + alias, exchange -> respond(exchange,
+                Collections.singletonMap("data", signature)));
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return the address of a started stand-in, e.g. "http://127.0.0.1:34567".
+     */
+    static String address(HttpServer server) {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, Object body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] bytes = KeyVersions.MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.mbreban.vault;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Loads a key store, reads a key and signs once, the way apksigner uses the
+ * provider, then reports how long the JVM took to get there.
+ *
+ * Used to train the AppCDS archive of the container image and by the
+ * startup benchmark. Arguments:
+ *
+ * <pre>
+ * StartupProbe &lt;address&gt;|stand-in &lt;alias&gt; [&lt;main class&gt; &lt;args&gt;...]
+ * </pre>
+ *
+ * With "stand-in", the probe runs against a {@link StandInVault} started in
+ * the same JVM, so a training run without Vault still goes through key
+ * parsing, signing and the key cache. The optional main class, e.g.
+ * apksigner's, is run afterwards so its classes are archived too. The token
+ * is read from VAULT_TOKEN. Exits with status 1 if the probe fails.
+ */
+public final class StartupProbe {
+
+    static final String SIGNED = "first signature after ";
+
+    static final String STAND_IN = "stand-in";
+
+    private StartupProbe() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StartupProbe <address>|" + STAND_IN + " <alias> [<main class> <args>...]");
+            System.exit(2);
+        }
+
+        HttpServer standIn = args[0].equals(STAND_IN) ? StandInVault.start(args[1]) : null;
+        try {
+            probe(standIn != null ? StandInVault.address(standIn) : args[0], args[1]);
+        } catch (Exception e) {
+            // An archive trained without signing misses the classes it is for
+            System.err.println("Probe failed: " + e);
+            System.exit(1);
+        } finally {
+            if (standIn != null) {
+                standIn.stop(0);
+            }
+        }
+
+        if (args.length > 2) {
+            Method main = Class.forName(args[2]).getMethod("main", String[].class);
+            main.invoke(null, (Object) Arrays.copyOfRange(args, 3, args.length));
+        }
+    }
+
+    private static void probe(String address, String alias) throws Exception {
+        VaultProvider provider = new VaultProvider(address);
+
+        String token = System.getenv("VAULT_TOKEN");
+        KeyStore keyStore = KeyStore.getInstance("VaultKeyStore", provider);
+        keyStore.load(null, token != null ? token.toCharArray() : null);
+
+        Key key = keyStore.getKey(alias, null);
+        if (!(key instanceof PrivateKey privateKey)) {
+            throw new IllegalStateException("Key not found: " + alias);
+        }
+        keyStore.getCertificateChain(alias);
+
+        // The algorithm of a VaultKey is its Vault key type
+        String type = key.getAlgorithm();
+        String algorithm = type.startsWith("ecdsa") ? "SHA256withECDSA"
+                : type.equals(VaultKey.ED25519) ? "Ed25519" : "SHA256withRSA";
+        Signature signature = Signature.getInstance(algorithm, provider);
+        signature.initSign(privateKey);
+        signature.update("vault-jce".getBytes(StandardCharsets.UTF_8));
+        signature.sign();
+
+        long uptime = System.currentTimeMillis() - ProcessHandle.current().info().startInstant()
+                .map(instant -> instant.toEpochMilli())
+                .orElse(System.currentTimeMillis());
+        System.out.println(SIGNED + uptime + " ms");
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * Sends the requests of a {@link VaultClient} through an
+ * {@link AdaptiveLimiter}, and retries the requests Vault throttled with
+ * exponential backoff and full jitter, honoring "Retry-After".
+ *
+ * Whether a request is retried depends on the endpoint, see
+ * {@link #classify(HttpMethod, URI)}. Request bodies larger than
+ * {@link #MAX_REPLAY_BODY}, and bodies set through
+ * {@link StreamingHttpOutputMessage#setBody}, are streamed and sent only once.
+ */
+final class ThrottlingRequestFactory implements ClientHttpRequestFactory, Closeable {
+
+    static final int MAX_ATTEMPTS = 4;
+
+    static final long BASE_BACKOFF_MILLIS = 50;
+    static final long MAX_BACKOFF_MILLIS = 2000;
+
+    static final int MAX_REPLAY_BODY = 256 * 1024;
+
+    // Transit operations without side effects in Vault
+    private static final Pattern SIDE_EFFECT_FREE = Pattern.compile(
+            "/v1/.+/(sign|verify|hmac|encrypt|decrypt|datakey/plaintext|datakey/wrapped|random)(/.*)?");
+
+    private static final Pattern SIGN = Pattern.compile(
+            "/v1/.+/(sign|hmac|encrypt|decrypt|datakey/plaintext|datakey/wrapped)/.*");
+
+    private static final Pattern VERIFY = Pattern.compile("/v1/.+/verify/.*");
+
+    enum Retry {
+        /** Never retried: the caller needs the first answer, e.g. health checks. */
+        NEVER,
+        /** Retried when Vault rejected the request before processing it (429, 503). */
+        THROTTLED,
+        /** Also retried on I/O errors, 502 and 504: running it twice is harmless. */
+        ALWAYS,
+    }
+
+    private final ClientHttpRequestFactory delegate;
+    private final AdaptiveLimiter limiter;
+
+    ThrottlingRequestFactory(ClientHttpRequestFactory delegate, AdaptiveLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+    }
+
+    AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Closes the delegate if it keeps connections, e.g. a
+     * {@link UnixSocketRequestFactory}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+
+    static Retry classify(HttpMethod method, URI uri) {
+        String path = uri.getPath();
+        if (path.startsWith("/v1/sys/")) {
+            return Retry.NEVER;
+        }
+        if (method.equals(HttpMethod.GET) || method.equals(HttpMethod.HEAD)) {
+            return Retry.ALWAYS;
+        }
+        if (SIDE_EFFECT_FREE.matcher(path).matches()) {
+            return Retry.ALWAYS;
+        }
+        return Retry.THROTTLED;
+    }
+
+    /**
+     * @return the latency class of a request, see {@link AdaptiveLimiter}.
+     */
+    static AdaptiveLimiter.Endpoint endpointOf(HttpMethod method, URI uri) {
+        String path = uri.getPath();
+        String query = uri.getQuery();
+        if (method.name().equals("LIST") || (query != null && query.contains("list=true"))) {
+            return AdaptiveLimiter.Endpoint.LIST;
+        }
+        if (method.equals(HttpMethod.GET) || method.equals(HttpMethod.HEAD)) {
+            return AdaptiveLimiter.Endpoint.READ;
+        }
+        if (SIGN.matcher(path).matches()) {
+            return AdaptiveLimiter.Endpoint.SIGN;
+        }
+        if (VERIFY.matcher(path).matches()) {
+            return AdaptiveLimiter.Endpoint.VERIFY;
+        }
+        return AdaptiveLimiter.Endpoint.OTHER;
+    }
+
+    /**
+     * @param attempt the number of attempts already made, from 1.
+     * @param retryAfter the "Retry-After" header, or null.
+     * @return the delay before the next attempt.
+     */
+    static long backoffMillis(int attempt, String retryAfter) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        long jitter = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        if (retryAfter != null) {
+            try {
+                // Spread the clients Vault told to come back at the same time
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())) + jitter;
+            } catch (NumberFormatException e) {
+                // HTTP dates are not used by Vault
+            }
+        }
+        return jitter;
+    }
+
+    private static boolean isThrottled(int status) {
+        return status == 429 || status == 503;
+    }
+
+    private static boolean isOverloaded(int status) {
+        return isThrottled(status) || status == 502 || status == 504;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+        return new ThrottledRequest(uri, httpMethod);
+    }
+
+    private final class ThrottledRequest implements AbortableRequest, StreamingHttpOutputMessage {
+
+        private final URI uri;
+        private final HttpMethod method;
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        // Set once the body outgrows the replay buffer
+        private ClientHttpRequest streaming;
+        private long streamingStart;
+        private boolean aborted;
+
+        // Written by the delegate as it is sent, instead of the body
+        private Body streamedBody;
+
+        private final OutputStream body = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (streaming == null && buffer.size() + len > MAX_REPLAY_BODY) {
+                    startStreaming();
+                }
+                if (streaming != null) {
+                    try {
+                        streaming.getBody().write(b, off, len);
+                    } catch (IOException | RuntimeException e) {
+                        abortStreaming();
+                        throw e;
+                    }
+                } else {
+                    buffer.write(b, off, len);
+                }
+            }
+        };
+
+        ThrottledRequest(URI uri, HttpMethod method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void setBody(Body body) {
+            this.streamedBody = body;
+        }
+
+        private ClientHttpRequest newDelegate() throws IOException {
+            ClientHttpRequest request = delegate.createRequest(uri, method);
+            request.getHeaders().putAll(headers);
+            return request;
+        }
+
+        private void startStreaming() throws IOException {
+            if (aborted) {
+                throw new IOException("Request body could not be sent");
+            }
+
+            limiter.acquire();
+            try {
+                streamingStart = System.nanoTime();
+                streaming = newDelegate();
+                buffer.writeTo(streaming.getBody());
+                buffer.reset();
+            } catch (IOException | RuntimeException e) {
+                abortStreaming();
+                throw e;
+            }
+        }
+
+        // Releases the slot and the delegate of a request that will never be executed
+        private void abortStreaming() {
+            ClientHttpRequest request = streaming;
+            streaming = null;
+            aborted = true;
+            limiter.onIgnored();
+            if (request instanceof AbortableRequest abortable) {
+                abortable.abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (streaming != null) {
+                abortStreaming();
+            }
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            if (aborted) {
+                throw new IOException("Request body could not be sent");
+            }
+            if (streaming != null) {
+                // Released by complete() from now on
+                ClientHttpRequest request = streaming;
+                streaming = null;
+                return complete(request, streamingStart);
+            }
+            if (streamedBody != null) {
+                return executeStreamed(streamedBody);
+            }
+
+            Retry retry = classify(method, uri);
+            byte[] bytes = buffer.toByteArray();
+            for (int attempt = 1;; attempt++) {
+                limiter.acquire();
+                long start = System.nanoTime();
+
+                ClientHttpResponse response;
+                int status;
+                try {
+                    ClientHttpRequest request = newDelegate();
+                    if (bytes.length > 0) {
+                        request.getBody().write(bytes);
+                    }
+                    response = request.execute();
+                    status = response.getStatusCode().value();
+                } catch (IOException e) {
+                    limiter.onThrottled();
+                    if (retry != Retry.ALWAYS || attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    sleep(backoffMillis(attempt, null));
+                    continue;
+                } catch (RuntimeException e) {
+                    limiter.onIgnored();
+                    throw e;
+                }
+
+                boolean retryable = isThrottled(status) ? retry != Retry.NEVER
+                        : isOverloaded(status) && retry == Retry.ALWAYS;
+                release(status, start);
+                if (!retryable || attempt >= MAX_ATTEMPTS) {
+                    return response;
+                }
+
+                long delay = backoffMillis(attempt, response.getHeaders().getFirst("Retry-After"));
+                response.close();
+                sleep(delay);
+            }
+        }
+
+        /**
+         * Hands the body to a delegate that streams it, so it is written
+         * straight to the connection: the body of a
+         * SimpleClientHttpRequestFactory request buffers what is written to
+         * it until it is executed.
+         */
+        private ClientHttpResponse executeStreamed(Body streamed) throws IOException {
+            limiter.acquire();
+            long start = System.nanoTime();
+            ClientHttpRequest request = null;
+            try {
+                request = newDelegate();
+                if (request instanceof StreamingHttpOutputMessage streamingRequest) {
+                    streamingRequest.setBody(streamed);
+                } else {
+                    streamed.writeTo(request.getBody());
+                }
+            } catch (IOException | RuntimeException e) {
+                limiter.onIgnored();
+                if (request instanceof AbortableRequest abortable) {
+                    abortable.abort();
+                }
+                throw e;
+            }
+            return complete(request, start);
+        }
+
+        private ClientHttpResponse complete(ClientHttpRequest request, long start) throws IOException {
+            ClientHttpResponse response;
+            int status;
+            try {
+                response = request.execute();
+                status = response.getStatusCode().value();
+            } catch (IOException | RuntimeException e) {
+                limiter.onThrottled();
+                throw e;
+            }
+            release(status, start);
+            return response;
+        }
+
+        private void release(int status, long start) {
+            if (isOverloaded(status)) {
+                limiter.onThrottled();
+            } else if (status < 400) {
+                limiter.onSuccess(endpointOf(method, uri), System.nanoTime() - start);
+            } else {
+                limiter.onIgnored();
+            }
+        }
+
+        private void sleep(long millis) throws InterruptedIOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while backing off from Vault");
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Watches the token sink file of a Vault Agent with auto-auth, and reports
+ * each new token. Agents replace the file as a whole, so both creations and
+ * modifications of the file are checked.
+ */
+final class TokenSinkWatcher {
+
+    private final Path sink;
+    private final Consumer<String> onToken;
+
+    // Tokens are reported one at a time, in the order they were read
+    private final Object checkLock = new Object();
+    private String token;
+
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param token the token already in use, not reported again.
+     */
+    TokenSinkWatcher(Path sink, String token, Consumer<String> onToken) {
+        this.sink = sink.toAbsolutePath();
+        this.token = token;
+        this.onToken = onToken;
+    }
+
+    /**
+     * @return the token in the sink file, or null if the file is absent or empty.
+     */
+    static String read(Path sink) throws IOException {
+        if (!Files.exists(sink)) {
+            return null;
+        }
+        String token = new String(Files.readAllBytes(sink), StandardCharsets.UTF_8).trim();
+        return token.isEmpty() ? null : token;
+    }
+
+    synchronized void start() throws IOException {
+        stop();
+
+        WatchService service = sink.getFileSystem().newWatchService();
+        try {
+            sink.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+        watchService = service;
+
+        thread = new Thread(() -> watch(service), "vault-token-sink");
+        thread.setDaemon(true);
+        thread.start();
+
+        // The token may have been rotated before the registration
+        check();
+    }
+
+    synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            watchService = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    private void watch(WatchService service) {
+        Path name = sink.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // An overflow may have hidden the sink events
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                }
+                if (changed) {
+                    check();
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Reads the sink, and reports its token if it changed.
+     */
+    void check() {
+        synchronized (checkLock) {
+            String current;
+            try {
+                current = read(sink);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (current == null || current.equals(token)) {
+                return;
+            }
+            token = current;
+
+            try {
+                onToken.accept(current);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
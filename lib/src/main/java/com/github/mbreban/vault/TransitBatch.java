@@ -0,0 +1,125 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming writer and parser for the "batch_input" requests of transit
+ * endpoints, so a batch is encoded straight to the request body and its
+ * results are read without building a tree of the response.
+ */
+final class TransitBatch {
+
+    private TransitBatch() {
+    }
+
+    /**
+     * Writes {"<algorithmField>": ..., "batch_input": [{"input": ..., "hmac": ...}, ...]}.
+     *
+     * @param hmacs the HMACs to verify, in the "vault:vN:..." form, or null.
+     */
+    static void writeRequest(OutputStream body, String algorithmField, String algorithm, List<byte[]> inputs,
+            List<String> hmacs) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        try (JsonGenerator generator = KeyVersions.MAPPER.getFactory().createGenerator(body)) {
+            // The request body is closed by the caller
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+            generator.writeStartObject();
+            generator.writeStringField(algorithmField, algorithm);
+            generator.writeArrayFieldStart("batch_input");
+            for (int i = 0; i < inputs.size(); i++) {
+                generator.writeStartObject();
+                generator.writeStringField("input", encoder.encodeToString(inputs.get(i)));
+                if (hmacs != null) {
+                    generator.writeStringField("hmac", hmacs.get(i));
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Reads a field of every entry of "data.batch_results", in order.
+     *
+     * @param in the response body.
+     * @param field the result field to read, e.g. "hmac" or "valid".
+     * @return the values of the field, as text.
+     * @throws IOException if the response is not a batch response, or if an
+     * entry reports an error.
+     */
+    static List<String> parseResults(InputStream in, String field) throws IOException {
+        return parseResults(in, field, true);
+    }
+
+    /**
+     * Reads a field of every entry of "data.batch_results", in order.
+     *
+     * @param failOnError false to read the field of an entry that reports an
+     * error as null, e.g. a malformed HMAC among the ones to verify.
+     */
+    static List<String> parseResults(InputStream in, String field, boolean failOnError) throws IOException {
+        try (JsonParser parser = KeyVersions.MAPPER.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid batch response");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals("data") && token == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String dataField = parser.currentName();
+                        token = parser.nextToken();
+                        if (dataField.equals("batch_results") && token == JsonToken.START_ARRAY) {
+                            return parseEntries(parser, field, failOnError);
+                        }
+                        parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            throw new IOException("Invalid batch response");
+        }
+    }
+
+    private static List<String> parseEntries(JsonParser parser, String field, boolean failOnError)
+            throws IOException {
+        List<String> results = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String value = null;
+            String error = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if (name.equals(field)) {
+                    value = parser.getValueAsString();
+                } else if (name.equals("error")) {
+                    error = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (error != null && !error.isEmpty()) {
+                if (failOnError) {
+                    throw new IOException("Batch item %d failed: %s".formatted(results.size(), error));
+                }
+                value = null;
+            }
+            results.add(value);
+        }
+        return results;
+    }
+}
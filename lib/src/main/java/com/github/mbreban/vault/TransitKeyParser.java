@@ -0,0 +1,260 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming parsers for the responses of "transit/keys".
+ *
+ * When reading a key, only a single entry of the "keys" field is
+ * materialized, every other version is skipped token by token, so memory and
+ * parse time do not grow with the rotation history of the key.
+ */
+final class TransitKeyParser {
+
+    private TransitKeyParser() {
+    }
+
+    /**
+     * @param in the response body.
+     * @param version the version to keep, or {@link Client#LATEST_VERSION}.
+     * @return a builder holding the key metadata, or null if the response has no data.
+     * @throws IOException if the response is not a valid transit key.
+     */
+    static VaultKey.Builder parse(InputStream in, int version) throws IOException {
+        try (JsonParser parser = KeyVersions.MAPPER.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid transit key response");
+            }
+
+            VaultKey.Builder builder = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (field.equals("data") && token == JsonToken.START_OBJECT) {
+                    builder = parseData(parser, version);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return builder;
+        }
+    }
+
+    /**
+     * Reads "data.latest_version" and the certificate chain of the highest
+     * key version, every other version is skipped without being retained.
+     *
+     * @param in the response body.
+     * @return the revision of the key, or null if the response has no data.
+     * @throws IOException if the response is not a valid transit key.
+     */
+    static KeyRevision parseRevision(InputStream in) throws IOException {
+        try (JsonParser parser = KeyVersions.MAPPER.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid transit key response");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (field.equals("data") && token == JsonToken.START_OBJECT) {
+                    return parseRevisionData(parser);
+                }
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+
+    private static KeyRevision parseRevisionData(JsonParser parser) throws IOException {
+        int latestVersion = -1;
+        // Vault sorts "keys" before "latest_version", whose value is the
+        // highest key version
+        int highestVersion = -1;
+        String highestChain = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("latest_version")) {
+                latestVersion = parser.getValueAsInt();
+            } else if (field.equals("keys") && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    int version = Integer.parseInt(parser.currentName());
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        // Symmetric keys only have a creation time per version
+                        parser.skipChildren();
+                        continue;
+                    }
+                    String chain = null;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String versionField = parser.currentName();
+                        parser.nextToken();
+                        if (versionField.equals("certificate_chain") && version > highestVersion) {
+                            chain = parser.getValueAsString();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    if (version > highestVersion) {
+                        highestVersion = version;
+                        highestChain = chain;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (latestVersion < 0) {
+            return null;
+        }
+        return new KeyRevision(latestVersion, latestVersion == highestVersion ? highestChain : null);
+    }
+
+    /**
+     * @param in the response body of a LIST request.
+     * @return the key names, in server order.
+     * @throws IOException if the response is not a valid key listing.
+     */
+    static List<String> parseKeyList(InputStream in) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (JsonParser parser = KeyVersions.MAPPER.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid transit key list response");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (field.equals("data") && token == JsonToken.START_OBJECT) {
+                    parseKeyNames(parser, names);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void parseKeyNames(JsonParser parser, List<String> names) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (field.equals("keys") && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                    names.add(parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static VaultKey.Builder parseData(JsonParser parser, int version) throws IOException {
+        VaultKey.Builder builder = new VaultKey.Builder();
+        int latestVersion = Client.LATEST_VERSION;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "allow_plaintext_backup":
+                    builder.setAllowPlaintextBackup(parser.getValueAsBoolean());
+                    break;
+                case "auto_rotate_period":
+                    builder.setAutoRotatePeriod(parser.getValueAsInt());
+                    break;
+                case "deletion_allowed":
+                    builder.setDeletionAllowed(parser.getValueAsBoolean());
+                    break;
+                case "derived":
+                    builder.setDerived(parser.getValueAsBoolean());
+                    break;
+                case "exportable":
+                    builder.setExportable(parser.getValueAsBoolean());
+                    break;
+                case "imported_key":
+                    builder.setImportedKey(parser.getValueAsBoolean());
+                    break;
+                case "keys":
+                    int wanted = version != Client.LATEST_VERSION ? version : latestVersion;
+                    builder.setKeys(parseKeys(parser, wanted));
+                    break;
+                case "latest_version":
+                    latestVersion = parser.getValueAsInt();
+                    builder.setLatestVersion(latestVersion);
+                    break;
+                case "min_available_version":
+                    builder.setMinAvailableVersion(parser.getValueAsInt());
+                    break;
+                case "min_decryption_version":
+                    builder.setMinDecryptionVersion(parser.getValueAsInt());
+                    break;
+                case "min_encryption_version":
+                    builder.setMinEncryptionVersion(parser.getValueAsInt());
+                    break;
+                case "name":
+                    builder.setName(parser.getValueAsString());
+                    break;
+                case "supports_decryption":
+                    builder.setSupportsDecryption(parser.getValueAsBoolean());
+                    break;
+                case "supports_derivation":
+                    builder.setSupportsDerivation(parser.getValueAsBoolean());
+                    break;
+                case "supports_encryption":
+                    builder.setSupportsEncryption(parser.getValueAsBoolean());
+                    break;
+                case "supports_signing":
+                    builder.setSupportsSigning(parser.getValueAsBoolean());
+                    break;
+                case "type":
+                    builder.setType(parser.getValueAsString());
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return builder;
+    }
+
+    /**
+     * Keeps the entry matching {@code wanted}; when the latest version is not
+     * known yet (Vault sorts "keys" before "latest_version"), the highest
+     * version seen so far is kept instead.
+     */
+    private static Map<String, Object> parseKeys(JsonParser parser, int wanted) throws IOException {
+        Map<String, Object> keys = new HashMap<>(2);
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return keys;
+        }
+
+        int kept = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+
+            int current = Integer.parseInt(name);
+            boolean keep = wanted != Client.LATEST_VERSION ? current == wanted : current > kept;
+            if (keep) {
+                keys.clear();
+                keys.put(name, KeyVersions.MAPPER.readValue(parser, Object.class));
+                kept = current;
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return keys;
+    }
+}
@@ -0,0 +1,591 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * HTTP/1.1 over a Unix domain socket, for a Vault Agent listening on
+ * "unix:///path/to/agent.sock". Only the path and query of request URIs are
+ * used. Connections are kept alive and reused by later requests.
+ *
+ * Bodies up to {@link #MAX_BUFFERED_BODY} are sent with a Content-Length,
+ * larger ones are streamed with chunked transfer encoding.
+ */
+final class UnixSocketRequestFactory implements ClientHttpRequestFactory, Closeable {
+
+    static final String SCHEME_PREFIX = "unix://";
+
+    static final int MAX_BUFFERED_BODY = 64 * 1024;
+
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_DRAIN = 64 * 1024;
+    private static final int MAX_LINE = 8 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final UnixDomainSocketAddress address;
+
+    // Most recently used first
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    // Set once closed, connections are no longer kept alive
+    private volatile boolean closed;
+
+    UnixSocketRequestFactory(Path socket) {
+        this.address = UnixDomainSocketAddress.of(socket);
+    }
+
+    static boolean isUnixAddress(String address) {
+        return address != null && address.startsWith(SCHEME_PREFIX);
+    }
+
+    /**
+     * @param address an address of the form "unix:///path/to/agent.sock".
+     */
+    static UnixSocketRequestFactory fromAddress(String address) {
+        return new UnixSocketRequestFactory(Path.of(address.substring(SCHEME_PREFIX.length())));
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) {
+        return new UnixSocketRequest(uri, httpMethod);
+    }
+
+    int idleConnections() {
+        return idle.size();
+    }
+
+    /**
+     * Closes the idle connections. Requests still running close theirs
+     * when they complete, as do later requests.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    private static final class Connection {
+
+        final SocketChannel channel;
+        final InputStream in;
+        final OutputStream out;
+        boolean reused;
+        long idleSince;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(Channels.newInputStream(channel));
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Connection open() throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new Connection(channel);
+    }
+
+    private Connection acquire() throws IOException {
+        long now = System.nanoTime();
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            if (now - connection.idleSince < MAX_IDLE_NANOS && isOpen(connection.channel)) {
+                return connection;
+            }
+            connection.close();
+        }
+        return open();
+    }
+
+    // Drops connections the agent closed while they were idle
+    private static boolean isOpen(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            int read = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            // An idle connection has nothing to read
+            return read == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void recycle(Connection connection) {
+        connection.reused = true;
+        connection.idleSince = System.nanoTime();
+        idle.offerFirst(connection);
+        if (closed) {
+            // Raced with close()
+            close();
+            return;
+        }
+        while (idle.size() > MAX_IDLE_CONNECTIONS) {
+            Connection eldest = idle.pollLast();
+            if (eldest == null) {
+                break;
+            }
+            eldest.close();
+        }
+    }
+
+    private final class UnixSocketRequest implements AbortableRequest {
+
+        private final URI uri;
+        private final HttpMethod method;
+        private final HttpHeaders headers = new HttpHeaders();
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        // Set once the body outgrows the buffer
+        private Connection streaming;
+
+        private final OutputStream body = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (streaming == null && buffer.size() + len > MAX_BUFFERED_BODY) {
+                    startStreaming();
+                }
+                if (streaming != null) {
+                    try {
+                        writeChunk(streaming.out, b, off, len);
+                    } catch (IOException | RuntimeException e) {
+                        streaming.close();
+                        throw e;
+                    }
+                } else {
+                    buffer.write(b, off, len);
+                }
+            }
+        };
+
+        UnixSocketRequest(URI uri, HttpMethod method) {
+            this.uri = uri;
+            this.method = method;
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public OutputStream getBody() {
+            return body;
+        }
+
+        private void startStreaming() throws IOException {
+            Connection connection = acquire();
+            try {
+                writeHead(connection.out, -1);
+                byte[] bytes = buffer.toByteArray();
+                buffer.reset();
+                writeChunk(connection.out, bytes, 0, bytes.length);
+            } catch (IOException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+            streaming = connection;
+        }
+
+        /**
+         * Closes the connection a streamed body was being sent on: the
+         * request is incomplete, so it cannot be reused.
+         */
+        @Override
+        public void abort() {
+            if (streaming != null) {
+                streaming.close();
+            }
+        }
+
+        @Override
+        public ClientHttpResponse execute() throws IOException {
+            if (streaming != null) {
+                // Owned by the response from now on
+                Connection connection = streaming;
+                streaming = null;
+                try {
+                    connection.out.write('0');
+                    connection.out.write(CRLF);
+                    connection.out.write(CRLF);
+                    connection.out.flush();
+                    return readResponse(connection, method);
+                } catch (IOException | RuntimeException e) {
+                    connection.close();
+                    throw e;
+                }
+            }
+
+            byte[] bytes = buffer.toByteArray();
+            while (true) {
+                Connection connection = acquire();
+                try {
+                    try {
+                        writeHead(connection.out, bytes.length);
+                        connection.out.write(bytes);
+                        connection.out.flush();
+                    } catch (IOException e) {
+                        throw new ClosedByPeerException(e);
+                    }
+                    return readResponse(connection, method);
+                } catch (IOException e) {
+                    connection.close();
+                    // The agent closed a kept-alive connection before answering, try a new one
+                    if (!connection.reused || !(e instanceof EOFException || e instanceof ClosedByPeerException)) {
+                        throw e;
+                    }
+                } catch (RuntimeException e) {
+                    connection.close();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * @param contentLength the body length, or -1 for a chunked body.
+         */
+        private void writeHead(OutputStream out, long contentLength) throws IOException {
+            StringBuilder head = new StringBuilder();
+            String target = uri.getRawPath();
+            if (target == null || target.isEmpty()) {
+                target = "/";
+            }
+            if (uri.getRawQuery() != null) {
+                target += "?" + uri.getRawQuery();
+            }
+            head.append(method.name()).append(' ').append(target).append(" HTTP/1.1\r\n");
+            head.append("Host: localhost\r\n");
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                String name = header.getKey();
+                // Framing is decided here
+                if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length")
+                        || name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    head.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (contentLength < 0) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else if (contentLength > 0 || !HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+                head.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    // The request could not be written, so it was not processed
+    private static final class ClosedByPeerException extends IOException {
+
+        ClosedByPeerException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private static void writeChunk(OutputStream out, byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    private ClientHttpResponse readResponse(Connection connection, HttpMethod method) throws IOException {
+        String statusLine = readLine(connection.in);
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        // HTTP/1.1 200 OK
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        String reason = parts.length > 2 ? parts[2] : "";
+
+        HttpHeaders headers = new HttpHeaders();
+        String line;
+        while ((line = readLine(connection.in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new IOException("Connection closed in the response headers");
+        }
+
+        boolean keepAlive = !"close".equalsIgnoreCase(headers.getFirst("Connection"));
+        InputStream body;
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        String contentLength = headers.getFirst("Content-Length");
+        if (HttpMethod.HEAD.equals(method) || status == 204 || status == 304 || status / 100 == 1) {
+            body = new BoundedInputStream(connection.in, 0);
+        } else if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            body = new ChunkedInputStream(connection.in);
+        } else if (contentLength != null) {
+            body = new BoundedInputStream(connection.in, Long.parseLong(contentLength.trim()));
+        } else {
+            // Delimited by the end of the connection
+            body = connection.in;
+            keepAlive = false;
+        }
+        return new UnixSocketResponse(connection, status, reason, headers, body, keepAlive);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("Response line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private final class UnixSocketResponse implements ClientHttpResponse {
+
+        private final Connection connection;
+        private final int status;
+        private final String reason;
+        private final HttpHeaders headers;
+        private final InputStream body;
+        private final boolean keepAlive;
+
+        private boolean closed;
+
+        UnixSocketResponse(Connection connection, int status, String reason, HttpHeaders headers,
+                InputStream body, boolean keepAlive) {
+            this.connection = connection;
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public HttpStatusCode getStatusCode() {
+            return HttpStatusCode.valueOf(status);
+        }
+
+        @Override
+        public String getStatusText() {
+            return reason;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the connection to the pool if the rest of the body is
+         * short enough to be skipped, and closes it otherwise.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            if (keepAlive) {
+                try {
+                    long drained = 0;
+                    byte[] skip = new byte[4096];
+                    int n;
+                    while (drained <= MAX_DRAIN && (n = body.read(skip)) != -1) {
+                        drained += n;
+                    }
+                    if (drained <= MAX_DRAIN) {
+                        recycle(connection);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // Not reusable
+                }
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * The next {@code remaining} bytes of the connection.
+     */
+    private static final class BoundedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed in the response body");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * A chunked body, ending after the last chunk and its trailers.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+        private boolean done;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining == 0) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new EOFException("Connection closed in the response body");
+                }
+                int extension = size.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + size);
+                }
+                if (remaining == 0) {
+                    // Trailers, up to the empty line
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                        continue;
+                    }
+                    done = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Connection closed in the response body");
+            }
+            remaining -= n;
+            if (remaining == 0 && readLine(in) == null) {
+                throw new EOFException("Connection closed in the response body");
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.mbreban.vault;
+
+/**
+ * Thrown when a transit key exists but {@link VaultKey} does not support its
+ * type, e.g. an AES or HMAC key read as a key store entry.
+ */
+public class UnsupportedKeyTypeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String type;
+
+    public UnsupportedKeyTypeException(String keyName, String type) {
+        super("Key type not supported (only rsa, ecdsa and ed25519): %s is %s".formatted(keyName, type));
+        this.type = type;
+    }
+
+    /**
+     * @return the Vault key type, e.g. "aes256-gcm96", or null if Vault sent none.
+     */
+    public String getType() {
+        return type;
+    }
+}
@@ -1,30 +1,161 @@
 package com.github.mbreban.vault;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.util.Assert;
 import org.springframework.vault.authentication.ClientAuthentication;
+import org.springframework.vault.authentication.SimpleSessionManager;
 import org.springframework.vault.authentication.TokenAuthentication;
+import org.springframework.vault.client.ClientHttpRequestFactoryFactory;
 import org.springframework.vault.client.VaultEndpoint;
+import org.springframework.vault.client.VaultResponses;
 import org.springframework.vault.core.VaultTemplate;
 import org.springframework.vault.core.VaultTransitOperations;
+import org.springframework.vault.support.ClientOptions;
+import org.springframework.vault.support.SslConfiguration;
 import org.springframework.vault.support.VaultHealth;
 import org.springframework.vault.support.VaultTransitKey;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.ResourceAccessException;
 
-public class VaultClient implements Client {
+public class VaultClient implements Client, Closeable {
+
+    static final String DEFAULT_MOUNT = "transit";
+
+    private static final String VAULT_TOKEN_HEADER = "X-Vault-Token";
+
+    // Largest message whose request fits the replay buffer once Base64 encoded
+    static final int MAX_BUFFERED_MESSAGE = (ThrottlingRequestFactory.MAX_REPLAY_BODY - 4096) / 4 * 3;
+
+    final VaultEndpoint mVaultEndpoint;
+    // Path of the transit secrets engine, without slashes
+    final String mMount;
+    // Shared by every template of this client, so the limit survives re-authentication
+    final ThrottlingRequestFactory mRequestFactory;
+
+    // Admits the signatures of this client, or null to send them right away
+    private volatile SigningScheduler mScheduler;
+
+    // Replaced as a whole by authenticate(), never modified
+    private volatile Session mSession;
+
+    /**
+     * Template and operations of one credential. Every call reads the
+     * session once, so a call never mixes two credentials and a client can
+     * be shared by any number of threads without locking.
+     */
+    static final class Session {
+
+        final VaultTemplate template;
+        final VaultTransitOperations transit;
+        final long generation;
+        // Sent by the requests that bypass the template, null before authentication
+        final String token;
 
-    VaultTemplate mVaultTemplate;
-    VaultTransitOperations mTransit;
-    VaultEndpoint mVaultEndpoint;
+        Session(VaultTemplate template, String mount, long generation, String token) {
+            this.template = template;
+            this.transit = template.opsForTransit(mount);
+            this.generation = generation;
+            this.token = token;
+        }
+    }
 
+    /**
+     * @param address the Vault address, e.g. "https://vault:8200", or
+     * "unix:///path/to/agent.sock" for a Vault Agent listening on a Unix domain socket.
+     */
     public VaultClient(String address) {
-        mVaultEndpoint = VaultEndpoint.from(address);
-        mVaultTemplate = new VaultTemplate(mVaultEndpoint);
-        mTransit = mVaultTemplate.opsForTransit();
+        this(address, DEFAULT_MOUNT);
+    }
+
+    /**
+     * @param mount the path of the transit secrets engine, e.g. "transit".
+     */
+    public VaultClient(String address, String mount) {
+        this(endpoint(address), mount, transport(address));
+    }
+
+    /**
+     * @param transport the factory sending the requests, wrapped for throttling.
+     */
+    VaultClient(VaultEndpoint endpoint, String mount, ClientHttpRequestFactory transport) {
+        mVaultEndpoint = endpoint;
+        mMount = mount;
+        mRequestFactory = new ThrottlingRequestFactory(transport, new AdaptiveLimiter());
+        mSession = new Session(new VaultTemplate(mVaultEndpoint, mRequestFactory), mMount, 0, null);
+    }
+
+    private static VaultEndpoint endpoint(String address) {
+        if (UnixSocketRequestFactory.isUnixAddress(address)) {
+            // Only used to build request URIs, the socket path is the destination
+            VaultEndpoint endpoint = VaultEndpoint.create("localhost", 8200);
+            endpoint.setScheme("http");
+            return endpoint;
+        }
+        return VaultEndpoint.from(address);
+    }
+
+    private static ClientHttpRequestFactory transport(String address) {
+        if (UnixSocketRequestFactory.isUnixAddress(address)) {
+            return UnixSocketRequestFactory.fromAddress(address);
+        }
+        return ClientHttpRequestFactoryFactory.create(new ClientOptions(), SslConfiguration.unconfigured());
+    }
+
+    /**
+     * Sends signatures through a scheduler shared with other clients. The
+     * client is the tenant of its signatures, so clients of different
+     * tokens get separate bulkheads.
+     */
+    void setScheduler(SigningScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    private <T> T scheduled(String keyName, Supplier<T> call) {
+        SigningScheduler scheduler = mScheduler;
+        if (scheduler == null) {
+            return call.get();
+        }
+        return scheduler.run(this, mMount + "/" + keyName, scheduler.priorityOf(keyName), call);
+    }
+
+    /**
+     * Closes the connections the transport keeps alive, e.g. those to a
+     * Vault Agent socket. Later requests open connections that are not kept.
+     */
+    @Override
+    public void close() throws IOException {
+        mRequestFactory.close();
+    }
+
+    Session session() {
+        return mSession;
+    }
+
+    private VaultTemplate template() {
+        return mSession.template;
     }
 
     @Override
@@ -32,7 +163,7 @@ public class VaultClient implements Client {
         VaultHealth health;
 
         try {
-            health = mVaultTemplate.opsForSys().health();
+            health = template().opsForSys().health();
         } catch (org.springframework.vault.VaultException | ResourceAccessException e) {
             throw new VaultException(e.getMessage());
         }
@@ -47,10 +178,13 @@ public class VaultClient implements Client {
     @Override
     public VaultKey read(String keyname) {
         try {
-            VaultTransitKey key = mTransit.getKey(keyname);
+            VaultTransitKey key = mSession.transit.getKey(keyname);
             if (key == null) {
                 return null;
             }
+            if (!VaultKey.isAsymmetric(key.getType())) {
+                throw new UnsupportedKeyTypeException(keyname, key.getType());
+            }
 
             VaultKey.Builder builder = new VaultKey.Builder();
             builder.setAllowPlaintextBackup(key.allowPlaintextBackup());
@@ -81,10 +215,69 @@ public class VaultClient implements Client {
         }
     }
 
+    @Override
+    public VaultKey read(String keyname, int version) {
+        Assert.hasText(keyname, "Key name must not be empty");
+
+        final String path = "%s/keys/%s".formatted(mMount, keyname);
+
+        VaultKey.Builder builder;
+        try {
+            builder = template().doWithSession(restOperations -> restOperations.execute(path, HttpMethod.GET, null,
+                    response -> TransitKeyParser.parse(response.getBody(), version)));
+        } catch (HttpStatusCodeException e) {
+            if (e.getStatusCode().value() == 404) {
+                return null;
+            }
+            throw VaultResponses.buildException(e, path);
+        }
+
+        if (builder == null) {
+            return null;
+        }
+        if (!VaultKey.isAsymmetric(builder.type)) {
+            throw new UnsupportedKeyTypeException(keyname, builder.type);
+        }
+
+        try {
+            return builder.setClient(this).build();
+        } catch (VaultException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public KeyRevision revision(String keyname) {
+        Assert.hasText(keyname, "Key name must not be empty");
+
+        final String path = "%s/keys/%s".formatted(mMount, keyname);
+
+        try {
+            return template().doWithSession(restOperations -> restOperations.execute(path, HttpMethod.GET, null,
+                    response -> TransitKeyParser.parseRevision(response.getBody())));
+        } catch (HttpStatusCodeException e) {
+            if (e.getStatusCode().value() == 404) {
+                return null;
+            }
+            throw VaultResponses.buildException(e, path);
+        }
+    }
+
     @Override
     public List<String> list() {
-        List<String> keys = mTransit.getKeys();
-        return keys;
+        final String path = mMount + "/keys?list=true";
+
+        try {
+            return template().doWithSession(restOperations -> restOperations.execute(path, HttpMethod.GET, null,
+                    response -> TransitKeyParser.parseKeyList(response.getBody())));
+        } catch (HttpStatusCodeException e) {
+            // Vault answers 404 when the mount has no keys
+            if (e.getStatusCode().value() == 404) {
+                return Collections.emptyList();
+            }
+            throw VaultResponses.buildException(e, path);
+        }
     }
 
     @Override
@@ -100,9 +293,10 @@ public class VaultClient implements Client {
                 .setSaltLength(saltLength)
                 .build();
 
-        String signature = (String) mVaultTemplate.write("transit/sign/%s".formatted(keyName), request)
+        String signature = scheduled(keyName, () -> (String) template()
+                .write("%s/sign/%s".formatted(mMount, keyName), request)
                 .getRequiredData()
-                .get("signature");
+                .get("signature"));
 
         final String b64Signature = signature.split(":")[2];
         final byte[] raw = Base64.getDecoder().decode(b64Signature);
@@ -110,6 +304,107 @@ public class VaultClient implements Client {
         return raw;
     }
 
+    @Override
+    public byte[] sign(String keyName, InputStream message) {
+        Assert.hasText(keyName, "Key name must not be empty");
+
+        final String path = "%s/sign/%s".formatted(mMount, keyName);
+
+        String signature = scheduled(keyName, () -> postMessage(path, message, null).path("signature").asText());
+
+        final String b64Signature = signature.split(":")[2];
+        return Base64.getDecoder().decode(b64Signature);
+    }
+
+    @Override
+    public boolean verify(String keyName, InputStream message, byte[] signature) {
+        Assert.hasText(keyName, "Key name must not be empty");
+
+        final String path = "%s/verify/%s".formatted(mMount, keyName);
+
+        return postMessage(path, message, signature).path("valid").asBoolean();
+    }
+
+    /**
+     * Posts the message straight to the request factory: the interceptors of
+     * the template buffer whole request bodies, which would hold the Base64
+     * encoded message in memory. Messages that fit the replay buffer of the
+     * {@link ThrottlingRequestFactory} are buffered, so throttled requests
+     * are retried; larger ones are set as a streamed body, encoded while the
+     * transport sends them.
+     *
+     * @return the "data" field of the response.
+     */
+    private JsonNode postMessage(String path, InputStream message, byte[] signature) {
+        Session session = mSession;
+        URI uri = mVaultEndpoint.createUri(path);
+        try {
+            byte[] head = message.readNBytes(MAX_BUFFERED_MESSAGE);
+            ClientHttpRequest request = mRequestFactory.createRequest(uri, HttpMethod.POST);
+            ClientHttpResponse executed = null;
+            try {
+                request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                if (session.token != null) {
+                    request.getHeaders().set(VAULT_TOKEN_HEADER, session.token);
+                }
+                if (head.length < MAX_BUFFERED_MESSAGE) {
+                    writeMessageRequest(request.getBody(), new ByteArrayInputStream(head), signature);
+                } else {
+                    // Throttled requests hand the body to a transport that streams it
+                    InputStream whole = new SequenceInputStream(new ByteArrayInputStream(head), message);
+                    ((StreamingHttpOutputMessage) request).setBody(body -> writeMessageRequest(body, whole, signature));
+                }
+                executed = request.execute();
+            } finally {
+                // A message that failed to be read leaves its streamed request unsent
+                if (executed == null && request instanceof AbortableRequest abortable) {
+                    abortable.abort();
+                }
+            }
+
+            try (ClientHttpResponse response = executed) {
+                if (response.getStatusCode().isError()) {
+                    String body = new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+                    throw VaultResponses.buildException(response.getStatusCode(), path, VaultResponses.getError(body));
+                }
+                return KeyVersions.MAPPER.readTree(response.getBody()).path("data");
+            }
+        } catch (IOException e) {
+            throw new ResourceAccessException("I/O error on POST request for \"" + uri + "\": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes {"input": ..., "signature": ...}, Base64 encoding the message
+     * while it is copied, so it is never held in memory as a whole.
+     */
+    static void writeMessageRequest(OutputStream body, InputStream message, byte[] signature) throws IOException {
+        body.write("{\"input\":\"".getBytes(StandardCharsets.US_ASCII));
+
+        OutputStream encoder = Base64.getEncoder().wrap(new FilterOutputStream(body) {
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // Writes the padding but keeps the request body open
+                flush();
+            }
+        });
+        message.transferTo(encoder);
+        encoder.close();
+
+        body.write('"');
+        if (signature != null) {
+            String encoded = "vault:v1:" + Base64.getEncoder().encodeToString(signature);
+            body.write((",\"signature\":\"" + encoded + "\"").getBytes(StandardCharsets.US_ASCII));
+        }
+        body.write('}');
+    }
+
     @Override
     public boolean verify(String keyName, byte[] plaintext, String hashAlgorithm,
             String signatureAlgorithm, boolean prehashed, byte[] signature) {
@@ -123,19 +418,111 @@ public class VaultClient implements Client {
                 .setSignatureAlgorithm(signatureAlgorithm)
                 .build();
 
-        Boolean valid = (Boolean) mVaultTemplate.write("transit/verify/%s".formatted(keyName), request)
+        Boolean valid = (Boolean) template().write("%s/verify/%s".formatted(mMount, keyName), request)
                 .getRequiredData()
                 .get("valid");
 
         return valid;
     }
 
+    @Override
+    public VaultDataKey generateDataKey(String keyName, int bits) {
+        Assert.hasText(keyName, "Key name must not be empty");
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("bits", bits);
+
+        Map<String, Object> data = template().write("%s/datakey/plaintext/%s".formatted(mMount, keyName), request)
+                .getRequiredData();
+
+        byte[] plaintext = Base64.getDecoder().decode((String) data.get("plaintext"));
+        return new VaultDataKey(plaintext, (String) data.get("ciphertext"));
+    }
+
+    @Override
+    public byte[] decrypt(String keyName, String ciphertext) {
+        Assert.hasText(keyName, "Key name must not be empty");
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("ciphertext", ciphertext);
+
+        String plaintext = (String) template().write("%s/decrypt/%s".formatted(mMount, keyName), request)
+                .getRequiredData()
+                .get("plaintext");
+
+        return Base64.getDecoder().decode(plaintext);
+    }
+
+    @Override
+    public List<String> hmac(String keyName, String hashAlgorithm, List<byte[]> inputs) {
+        Assert.hasText(keyName, "Key name must not be empty");
+
+        final String path = "%s/hmac/%s".formatted(mMount, keyName);
+
+        return postBatch(path, "algorithm", hashAlgorithm, inputs, null, "hmac", true);
+    }
+
+    @Override
+    public boolean[] verifyHmac(String keyName, String hashAlgorithm, List<byte[]> inputs, List<String> hmacs) {
+        Assert.hasText(keyName, "Key name must not be empty");
+        Assert.isTrue(inputs.size() == hmacs.size(), "Inputs and HMACs must have the same size");
+
+        final String path = "%s/verify/%s".formatted(mMount, keyName);
+
+        // A malformed HMAC fails its own item, not the whole batch
+        List<String> results = postBatch(path, "hash_algorithm", hashAlgorithm, inputs, hmacs, "valid", false);
+
+        boolean[] valid = new boolean[results.size()];
+        for (int i = 0; i < valid.length; i++) {
+            valid[i] = Boolean.parseBoolean(results.get(i));
+        }
+        return valid;
+    }
+
+    private List<String> postBatch(String path, String algorithmField, String hashAlgorithm, List<byte[]> inputs,
+            List<String> hmacs, String resultField, boolean failOnError) {
+        List<String> results;
+        try {
+            results = template().doWithSession(restOperations -> restOperations.execute(path, HttpMethod.POST,
+                    request -> {
+                        request.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+                        TransitBatch.writeRequest(request.getBody(), algorithmField, hashAlgorithm, inputs, hmacs);
+                    },
+                    response -> TransitBatch.parseResults(response.getBody(), resultField, failOnError)));
+        } catch (HttpStatusCodeException e) {
+            throw VaultResponses.buildException(e, path);
+        }
+
+        if (results == null || results.size() != inputs.size()) {
+            throw new org.springframework.vault.VaultException("Unexpected number of batch results from %s".formatted(path));
+        }
+        return results;
+    }
+
+    @Override
+    public byte[] random(int bytes) {
+        Assert.isTrue(bytes > 0, "Number of bytes must be positive");
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("format", "base64");
+
+        String random = (String) template().write("%s/random/%d".formatted(mMount, bytes), request)
+                .getRequiredData()
+                .get("random_bytes");
+
+        return Base64.getDecoder().decode(random);
+    }
+
     @Override
     public void authenticate(String token) {
         ClientAuthentication clientAuthentication = new TokenAuthentication(token);
 
-        mVaultTemplate = new VaultTemplate(mVaultEndpoint, clientAuthentication);
-        mTransit = mVaultTemplate.opsForTransit();
+        VaultTemplate template = new VaultTemplate(mVaultEndpoint, mRequestFactory, new SimpleSessionManager(clientAuthentication));
+
+        // Calls already running keep the session they started with
+        synchronized (this) {
+            mSession = new Session(template, mMount, mSession.generation + 1, token);
+        }
     }
 
     public static class RequestBuilder {
@@ -0,0 +1,27 @@
+package com.github.mbreban.vault;
+
+/**
+ * Data key generated by "transit/datakey": the plaintext key and the same
+ * key wrapped by the Vault key.
+ */
+public final class VaultDataKey {
+
+    private final byte[] plaintext;
+    private final String ciphertext;
+
+    public VaultDataKey(byte[] plaintext, String ciphertext) {
+        this.plaintext = plaintext;
+        this.ciphertext = ciphertext;
+    }
+
+    public byte[] getPlaintext() {
+        return plaintext;
+    }
+
+    /**
+     * @return the wrapped key, e.g. "vault:v1:...".
+     */
+    public String getCiphertext() {
+        return ciphertext;
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+
+import com.github.mbreban.vault.VaultSignature.EngineType;
+
+/**
+ * Ed25519 signature engine. Ed25519 cannot be prehashed, so the whole
+ * message is buffered, in memory up to a threshold and in a temporary file
+ * beyond it, then streamed to Vault.
+ */
+public final class VaultEd25519Signature extends SignatureSpi {
+
+    static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    // Spill threshold in bytes
+    private static final String SPILL_THRESHOLD_PROPERTY = "vault.jce.spillThreshold";
+
+    private final SpillBuffer buffer;
+
+    private VaultKey key;
+
+    private boolean signing;
+
+    public VaultEd25519Signature() {
+        this(Integer.getInteger(SPILL_THRESHOLD_PROPERTY, DEFAULT_SPILL_THRESHOLD));
+    }
+
+    VaultEd25519Signature(int spillThreshold) {
+        this.buffer = new SpillBuffer(spillThreshold);
+    }
+
+    @Override
+    protected Object engineGetParameter(String param) throws InvalidParameterException {
+        throw new UnsupportedOperationException("Unimplemented method 'engineGetParameter'");
+    }
+
+    @Override
+    protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+        throw new UnsupportedOperationException("Unimplemented method 'engineSetParameter'");
+    }
+
+    private void initInternal(VaultKey newKey, boolean signing) throws InvalidKeyException {
+        VaultSignature.checkEngineType(EngineType.ED25519, newKey);
+        discard();
+        this.key = newKey;
+        this.signing = signing;
+    }
+
+    private void discard() {
+        try {
+            buffer.reset();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+        initInternal(VaultKey.fromPrivateKey(privateKey), true);
+    }
+
+    @Override
+    protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+        initInternal(VaultKey.fromPublicKey(publicKey), false);
+    }
+
+    @Override
+    protected void engineUpdate(byte b) throws SignatureException {
+        engineUpdate(new byte[] { b }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+        try {
+            buffer.write(b, off, len);
+        } catch (IOException e) {
+            discard();
+            throw new SignatureException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected byte[] engineSign() throws SignatureException {
+        if (!signing) {
+            throw new SignatureException("Engine not initialized");
+        }
+
+        try (InputStream message = buffer.openStream()) {
+            return this.key.sign(message);
+        } catch (VaultException | IOException e) {
+            throw new SignatureException(e.getMessage());
+        } finally {
+            discard();
+        }
+    }
+
+    @Override
+    protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+        if (signing) {
+            throw new SignatureException("Engine not initialized");
+        }
+
+        try (InputStream message = buffer.openStream()) {
+            return this.key.verify(message, sigBytes);
+        } catch (VaultException | IOException e) {
+            throw new SignatureException(e.getMessage());
+        } finally {
+            discard();
+        }
+    }
+}
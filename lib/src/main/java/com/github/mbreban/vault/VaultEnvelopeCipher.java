@@ -0,0 +1,348 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.time.Duration;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Envelope encryption with a {@link VaultSecretKey}: every message is
+ * encrypted locally with AES-GCM under a data key from "transit/datakey",
+ * and the data key, wrapped by Vault, is stored in front of the ciphertext:
+ *
+ * <pre>
+ * short  format version
+ * short  wrapped key length
+ * byte[] wrapped key ("vault:vN:...", UTF-8)
+ * byte[] IV (12 bytes)
+ * byte[] AES-GCM ciphertext and tag
+ * </pre>
+ *
+ * The header is authenticated as additional data. A data key seals up to
+ * {@link #MAX_MESSAGES_PER_DATA_KEY} messages, {@link #MAX_BYTES_PER_DATA_KEY}
+ * bytes or {@link #DATA_KEY_LIFETIME} before a new one is generated, each
+ * message with a fresh random IV. Unwrapped data keys are cached, so
+ * decrypting many messages sealed with the same data key costs a single
+ * "transit/decrypt" call.
+ */
+public final class VaultEnvelopeCipher extends CipherSpi {
+
+    private static final short FORMAT_VERSION = 1;
+
+    private static final int DATA_KEY_BITS = 256;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    // Upper bound of the header, used before the data key is known
+    private static final int MAX_HEADER_LENGTH = 2 + 2 + 256 + IV_LENGTH;
+
+    // Random 96-bit IVs stay far from the 2^32 messages NIST allows per key
+    static final long MAX_MESSAGES_PER_DATA_KEY = 1L << 20;
+    static final long MAX_BYTES_PER_DATA_KEY = 64L << 30;
+    static final Duration DATA_KEY_LIFETIME = Duration.ofMinutes(5);
+
+    static final EncryptionKeyCache ENCRYPTION_KEYS = new EncryptionKeyCache(MAX_MESSAGES_PER_DATA_KEY,
+            MAX_BYTES_PER_DATA_KEY, DATA_KEY_LIFETIME.toNanos());
+
+    static final DataKeyCache DATA_KEYS = new DataKeyCache(1024, 1024 * 1024, Duration.ofMinutes(5).toNanos());
+
+    /**
+     * Zeroes and drops the data keys cached for a client that is released,
+     * along with expired ones and those of collected clients.
+     *
+     * @param client the released client, or null to only sweep.
+     */
+    static void forget(Client client) {
+        long now = System.nanoTime();
+        ENCRYPTION_KEYS.forget(client, now);
+        DATA_KEYS.forget(client, now);
+    }
+
+    private int opmode;
+
+    private VaultSecretKey key;
+
+    private SecureRandom random;
+
+    private Cipher aes;
+
+    private EncryptionKeyCache.Lease dataKey;
+
+    private byte[] header;
+
+    private byte[] iv;
+
+    private final ByteArrayOutputStream aad = new ByteArrayOutputStream();
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    @Override
+    protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+        if (!mode.equalsIgnoreCase("GCM")) {
+            throw new NoSuchAlgorithmException("Unsupported mode: " + mode);
+        }
+    }
+
+    @Override
+    protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+        if (!padding.equalsIgnoreCase("NoPadding")) {
+            throw new NoSuchPaddingException("Unsupported padding: " + padding);
+        }
+    }
+
+    @Override
+    protected int engineGetBlockSize() {
+        return 16;
+    }
+
+    @Override
+    protected int engineGetOutputSize(int inputLen) {
+        int total = buffer.size() + inputLen;
+        if (opmode == Cipher.ENCRYPT_MODE) {
+            return (header != null ? header.length : MAX_HEADER_LENGTH) + total + TAG_LENGTH;
+        }
+        return total;
+    }
+
+    @Override
+    protected byte[] engineGetIV() {
+        return iv != null ? iv.clone() : null;
+    }
+
+    @Override
+    protected AlgorithmParameters engineGetParameters() {
+        return null;
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+        if (!(key instanceof VaultSecretKey vaultKey)) {
+            throw new InvalidKeyException("Key must be a VaultSecretKey");
+        }
+        if (opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE) {
+            throw new UnsupportedOperationException("Only ENCRYPT_MODE and DECRYPT_MODE are supported");
+        }
+
+        this.opmode = opmode;
+        this.key = vaultKey;
+        this.random = random != null ? random : new SecureRandom();
+        reset();
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (params != null) {
+            throw new InvalidAlgorithmParameterException("The IV is generated and stored with the ciphertext");
+        }
+        engineInit(opmode, key, random);
+    }
+
+    @Override
+    protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+    }
+
+    private void reset() {
+        this.aes = null;
+        this.dataKey = null;
+        this.header = null;
+        this.aad.reset();
+        this.buffer.reset();
+    }
+
+    @Override
+    protected void engineUpdateAAD(byte[] src, int offset, int len) {
+        if (aes != null) {
+            throw new IllegalStateException("AAD must be supplied before the data");
+        }
+        aad.write(src, offset, len);
+    }
+
+    /**
+     * Takes the data key and writes the header on first use, so a cipher
+     * that is initialized but never used does not call Vault.
+     */
+    private void startEncryption() throws GeneralSecurityException {
+        if (aes != null) {
+            return;
+        }
+
+        Client client = key.getClient();
+        long now = System.nanoTime();
+        dataKey = ENCRYPTION_KEYS.lease(client, key.getName(), now);
+        if (dataKey == null) {
+            VaultDataKey generated = client.generateDataKey(key.getName(), DATA_KEY_BITS);
+            dataKey = ENCRYPTION_KEYS.put(client, key.getName(), generated, now);
+            // Data keys sealed here are opened without calling Vault
+            DATA_KEYS.put(client, key.getName(), generated.getCiphertext(), generated.getPlaintext(), now);
+            Arrays.fill(generated.getPlaintext(), (byte) 0);
+        }
+        byte[] plaintext = dataKey.plaintext;
+        byte[] wrapped = dataKey.wrapped.getBytes(StandardCharsets.UTF_8);
+
+        iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        header = ByteBuffer.allocate(2 + 2 + wrapped.length + IV_LENGTH)
+                .putShort(FORMAT_VERSION)
+                .putShort((short) wrapped.length)
+                .put(wrapped)
+                .put(iv)
+                .array();
+
+        try {
+            aes = Cipher.getInstance("AES/GCM/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(plaintext, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+        aes.updateAAD(header);
+        if (aad.size() > 0) {
+            aes.updateAAD(aad.toByteArray());
+        }
+
+        // The header is emitted with the first output
+        buffer.write(header, 0, header.length);
+    }
+
+    private byte[] takeBuffered(byte[] output) {
+        if (buffer.size() == 0) {
+            return output != null ? output : new byte[0];
+        }
+        if (output != null) {
+            buffer.write(output, 0, output.length);
+        }
+        byte[] result = buffer.toByteArray();
+        buffer.reset();
+        return result;
+    }
+
+    @Override
+    protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+        if (opmode == Cipher.DECRYPT_MODE) {
+            // The data key is known once the header is read, and GCM
+            // releases plaintext only after the tag is verified anyway
+            buffer.write(input, inputOffset, inputLen);
+            return new byte[0];
+        }
+
+        try {
+            startEncryption();
+        } catch (GeneralSecurityException e) {
+            throw new ProviderException(e);
+        }
+        dataKey.sealed(inputLen);
+        return takeBuffered(aes.update(input, inputOffset, inputLen));
+    }
+
+    @Override
+    protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException {
+        return copy(engineUpdate(input, inputOffset, inputLen), output, outputOffset);
+    }
+
+    @Override
+    protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+            throws IllegalBlockSizeException, BadPaddingException {
+        try {
+            if (opmode == Cipher.DECRYPT_MODE) {
+                if (input != null) {
+                    buffer.write(input, inputOffset, inputLen);
+                }
+                return decrypt(buffer.toByteArray());
+            }
+
+            try {
+                startEncryption();
+            } catch (GeneralSecurityException e) {
+                throw new ProviderException(e);
+            }
+            if (input != null) {
+                dataKey.sealed(inputLen);
+            }
+            byte[] output = input != null ? aes.doFinal(input, inputOffset, inputLen) : aes.doFinal();
+            return takeBuffered(output);
+        } finally {
+            // A new IV, and maybe a new data key, are used for the next message
+            reset();
+        }
+    }
+
+    @Override
+    protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+            throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        return copy(engineDoFinal(input, inputOffset, inputLen), output, outputOffset);
+    }
+
+    private static int copy(byte[] result, byte[] output, int outputOffset) throws ShortBufferException {
+        if (output.length - outputOffset < result.length) {
+            throw new ShortBufferException("Output buffer too short, " + result.length + " bytes needed");
+        }
+        System.arraycopy(result, 0, output, outputOffset, result.length);
+        return result.length;
+    }
+
+    private byte[] decrypt(byte[] envelope) throws IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer in = ByteBuffer.wrap(envelope);
+        String wrapped;
+        byte[] envelopeIv = new byte[IV_LENGTH];
+        try {
+            if (in.getShort() != FORMAT_VERSION) {
+                throw new BadPaddingException("Unsupported envelope format version");
+            }
+            byte[] wrappedBytes = new byte[in.getShort()];
+            in.get(wrappedBytes);
+            in.get(envelopeIv);
+            wrapped = new String(wrappedBytes, StandardCharsets.UTF_8);
+        } catch (RuntimeException e) {
+            throw new BadPaddingException("Invalid envelope header");
+        }
+        int headerLength = in.position();
+        iv = envelopeIv;
+
+        Client client = key.getClient();
+        long now = System.nanoTime();
+        byte[] plaintext = DATA_KEYS.get(client, key.getName(), wrapped, now);
+        if (plaintext == null) {
+            plaintext = client.decrypt(key.getName(), wrapped);
+            DATA_KEYS.put(client, key.getName(), wrapped, plaintext, now);
+        }
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(plaintext, "AES"), new GCMParameterSpec(TAG_LENGTH * 8, envelopeIv));
+            cipher.updateAAD(envelope, 0, headerLength);
+            if (aad.size() > 0) {
+                cipher.updateAAD(aad.toByteArray());
+            }
+            return cipher.doFinal(envelope, headerLength, envelope.length - headerLength);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new ProviderException(e);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+}
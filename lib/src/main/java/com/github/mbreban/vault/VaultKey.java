@@ -1,22 +1,38 @@
 package com.github.mbreban.vault;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
 import org.bouncycastle.openssl.PEMParser;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
 
+    static final String ED25519 = "ed25519";
+
+    // Number of valid signatures remembered, 0 to always ask Vault
+    private static final String VERIFY_CACHE_SIZE_PROPERTY = "vault.jce.verifyCacheSize";
+
+    static final VerifyCache VERIFICATIONS = new VerifyCache(Integer.getInteger(VERIFY_CACHE_SIZE_PROPERTY, 0),
+            Duration.ofMinutes(5).toNanos());
+
     Client client;
-    SubjectPublicKeyInfo latestPublicKeyInfo;
+
+    private VerifyCache verifyCache = VERIFICATIONS;
+
+    // Parsed lazily from the latest version's PEM public key
+    private volatile SubjectPublicKeyInfo latestPublicKeyInfo;
+    private volatile byte[] encoded;
 
     // Vault REST API
     boolean allowPlaintextBackup;
@@ -25,7 +41,7 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
     boolean derived;
     boolean exportable;
     boolean importedKey;
-    Map<Integer, AsymetricKeyVersion> keys;
+    KeyVersions keys;
     int latestVersion;
     int minAvailableVersion;
     int minDecryptionVersion;
@@ -56,29 +72,28 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
         this.supportsSigning = builder.supportsSigning;
         this.type = builder.type;
 
-        this.keys = new HashMap<>();
+        this.keys = KeyVersions.from(builder.keys);
 
-        final Map<String, Object> k = builder.keys;
-        ObjectMapper mapper = new ObjectMapper();
-
-        for (Map.Entry<String, Object> entry : k.entrySet()) {
-            AsymetricKeyVersion akv;
-            if (this.type.startsWith("rsa") || this.type.startsWith("ec")) {
-                akv = mapper.convertValue(entry.getValue(), AsymetricKeyVersion.class);
-            } else {
-                throw new VaultException("Key type not supported (only rsa and ecdsa)");
-            }
-
-            Integer version = Integer.valueOf(entry.getKey());
-            this.keys.put(version, akv);
+        if (!this.keys.isEmpty() && !isAsymmetric(this.type)) {
+            throw new VaultException("Key type not supported (only rsa, ecdsa and ed25519)");
         }
+    }
 
-        try {
+    static boolean isAsymmetric(String type) {
+        return type != null && (type.startsWith("rsa") || type.startsWith("ec") || type.equals(ED25519));
+    }
+
+    private SubjectPublicKeyInfo getLatestPublicKeyInfo() throws IOException {
+        SubjectPublicKeyInfo info = this.latestPublicKeyInfo;
+        if (info == null) {
             AsymetricKeyVersion akv = getKeyVersion(latestVersion);
-            this.latestPublicKeyInfo = publicKeyFromPEM(akv.getPublicKey());
-        } catch (IOException e) {
-            throw new VaultException(e.getMessage());
+            if (akv == null) {
+                throw new IOException("Key version " + latestVersion + " not found");
+            }
+            info = ED25519.equals(type) ? publicKeyFromRaw(akv.getPublicKey()) : publicKeyFromPEM(akv.getPublicKey());
+            this.latestPublicKeyInfo = info;
         }
+        return info;
     }
 
     private SubjectPublicKeyInfo publicKeyFromPEM(String pem) throws IOException {
@@ -89,6 +104,16 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
         }
     }
 
+    // Vault returns ed25519 public keys as base64 of the raw 32 bytes
+    private SubjectPublicKeyInfo publicKeyFromRaw(String base64) throws IOException {
+        try {
+            byte[] raw = Base64.getDecoder().decode(base64);
+            return new SubjectPublicKeyInfo(new AlgorithmIdentifier(EdECObjectIdentifiers.id_Ed25519), raw);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid ed25519 public key");
+        }
+    }
+
     @Override
     public String getAlgorithm() {
         return this.type;
@@ -96,12 +121,17 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
 
     @Override
     public byte[] getEncoded() {
-        try {
-            return this.latestPublicKeyInfo.getEncoded();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+        byte[] der = this.encoded;
+        if (der == null) {
+            try {
+                der = getLatestPublicKeyInfo().getEncoded();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            this.encoded = der;
         }
+        return der.clone();
     }
 
     @Override
@@ -203,7 +233,12 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
         if (this.client == null) {
             throw new VaultException("Client is null");
         }
-        return this.client.sign(name, hash, hashAlgorithm, signatureAlgorithm, true, saltLength);
+        try {
+            return this.client.sign(name, hash, hashAlgorithm, signatureAlgorithm, true, saltLength);
+        } catch (RejectedExecutionException e) {
+            // Shed by the SigningScheduler
+            throw new VaultException(e.getMessage());
+        }
     }
 
     @Override
@@ -212,7 +247,57 @@ public final class VaultKey implements PrivateKey, PublicKey, Signer, Verifier {
         if (this.client == null) {
             throw new VaultException("Client is null");
         }
-        return this.client.verify(name, hash, hashAlgorithm, signatureAlgorithm, true, signature);
+        VerifyCache cache = this.verifyCache;
+        if (!cache.isEnabled()) {
+            return this.client.verify(name, hash, hashAlgorithm, signatureAlgorithm, true, signature);
+        }
+
+        // A rotation changes the latest version, so results are checked again
+        byte[] cacheKey = VerifyCache.hash(name, latestVersion, hashAlgorithm, signatureAlgorithm, hash, signature);
+        if (cache.isValid(this.client, cacheKey, System.nanoTime())) {
+            return true;
+        }
+        boolean valid = this.client.verify(name, hash, hashAlgorithm, signatureAlgorithm, true, signature);
+        if (valid) {
+            cache.putValid(this.client, cacheKey, System.nanoTime());
+        }
+        return valid;
+    }
+
+    /**
+     * @param verifyCache the cache of valid signatures, shared by all keys by default.
+     */
+    void setVerifyCache(VerifyCache verifyCache) {
+        this.verifyCache = verifyCache;
+    }
+
+    /**
+     * Signs a message that cannot be prehashed, such as with ed25519 keys.
+     *
+     * @param message the message, streamed to Vault.
+     * @return the signature bytes.
+     */
+    public byte[] sign(InputStream message) throws VaultException {
+        if (this.client == null) {
+            throw new VaultException("Client is null");
+        }
+        try {
+            return this.client.sign(name, message);
+        } catch (RejectedExecutionException e) {
+            throw new VaultException(e.getMessage());
+        }
+    }
+
+    /**
+     * @param message the message, streamed to Vault.
+     * @param signature the signature to verify.
+     * @return true if the signature is valid, false otherwise.
+     */
+    public boolean verify(InputStream message, byte[] signature) throws VaultException {
+        if (this.client == null) {
+            throw new VaultException("Client is null");
+        }
+        return this.client.verify(name, message, signature);
     }
 
     public static class Builder {
@@ -1,9 +1,12 @@
 package com.github.mbreban.vault;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.nio.file.Path;
 import java.security.Key;
 import java.security.KeyStoreException;
 import java.security.KeyStoreSpi;
@@ -11,37 +14,293 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.apache.maven.artifact.versioning.ComparableVersion;
 
 public class VaultKeyStoreSpi extends KeyStoreSpi {
 
+    private static final Cleaner CLEANER = Cleaner.create();
+
     private static final String MIN_VERSION = "1.15";
 
+    private static final Duration DEFAULT_LISTING_TTL = Duration.ofSeconds(30);
+
+    private static final Duration DEFAULT_KEY_TTL = Duration.ofSeconds(30);
+
+    private static final Duration DEFAULT_MISSING_TTL = Duration.ofSeconds(5);
+
+    private static final int DEFAULT_CONCURRENCY = 8;
+
+    private static final Duration DEFAULT_SNAPSHOT_MAX_AGE = Duration.ofHours(1);
+
     private final Client client;
 
+    private volatile KeyListing listing;
+    private volatile long listingTtlNanos = DEFAULT_LISTING_TTL.toNanos();
+
+    private final KeyCache keyCache = new KeyCache(DEFAULT_KEY_TTL.toNanos(), DEFAULT_MISSING_TTL.toNanos());
+
+    // Concurrent misses share a single Vault request
+    private final SingleFlight<String, KeyCache.Entry> keyReads = new SingleFlight<>();
+    private final SingleFlight<Boolean, KeyListing> listings = new SingleFlight<>();
+
+    private volatile AliasFilter aliasFilter;
+
+    private volatile AliasGlob prefetchGlob;
+    private volatile int concurrency = DEFAULT_CONCURRENCY;
+
+    private volatile Path tokenSinkPath;
+
+    private volatile Path snapshotPath;
+    private volatile long snapshotMaxAgeMillis = DEFAULT_SNAPSHOT_MAX_AGE.toMillis();
+    private final SnapshotWriter snapshotWriter = new SnapshotWriter(this::writeSnapshot);
+
+    private final KeyRotationWatcher rotationWatcher;
+
+    private volatile URI eventStreamAddress;
+    private volatile Duration eventFallbackInterval;
+    private boolean pollingFallback;
+
+    // Also referenced by the cleaning action, which must not reach this object
+    private final Background background;
+
     public VaultKeyStoreSpi(Client client) {
         this.client = client;
+        this.rotationWatcher = new KeyRotationWatcher(client, keyCache, weakly(this, VaultKeyStoreSpi::saveSnapshot));
+        this.background = new Background(client, rotationWatcher);
+        CLEANER.register(this, background);
+    }
+
+    /**
+     * The threads working for a key store: the rotation watcher, the token
+     * sink watcher and the event subscriber. Their callbacks hold the key
+     * store weakly, so a key store dropped without {@link #close()} is still
+     * collected; the threads are then stopped and the client released.
+     */
+    private static final class Background implements Runnable {
+
+        private final Client client;
+        private final KeyRotationWatcher rotationWatcher;
+
+        private TokenSinkWatcher tokenSink;
+        private KeyEventSubscriber eventSubscriber;
+
+        Background(Client client, KeyRotationWatcher rotationWatcher) {
+            this.client = client;
+            this.rotationWatcher = rotationWatcher;
+        }
+
+        synchronized void setTokenSink(TokenSinkWatcher watcher) {
+            if (tokenSink != null) {
+                tokenSink.stop();
+            }
+            tokenSink = watcher;
+        }
+
+        synchronized KeyEventSubscriber getEventSubscriber() {
+            return eventSubscriber;
+        }
+
+        synchronized void setEventSubscriber(KeyEventSubscriber subscriber) {
+            if (eventSubscriber != null) {
+                eventSubscriber.stop();
+            }
+            eventSubscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void run() {
+            setEventSubscriber(null);
+            setTokenSink(null);
+            rotationWatcher.stop();
+
+            if (client instanceof SharedClient shared) {
+                shared.release();
+            } else if (client instanceof ShardedClient sharded) {
+                sharded.release();
+            }
+        }
+    }
+
+    /**
+     * @return a callback for the background threads, which does nothing once
+     * the key store is unreachable.
+     */
+    private static <T> Consumer<T> weakly(VaultKeyStoreSpi spi, BiConsumer<VaultKeyStoreSpi, T> action) {
+        WeakReference<VaultKeyStoreSpi> ref = new WeakReference<>(spi);
+        return value -> {
+            VaultKeyStoreSpi current = ref.get();
+            if (current != null) {
+                action.accept(current, value);
+            }
+        };
+    }
+
+    private static Runnable weakly(VaultKeyStoreSpi spi, Consumer<VaultKeyStoreSpi> action) {
+        WeakReference<VaultKeyStoreSpi> ref = new WeakReference<>(spi);
+        return () -> {
+            VaultKeyStoreSpi current = ref.get();
+            if (current != null) {
+                action.accept(current);
+            }
+        };
     }
 
     @Override
     public Enumeration<String> engineAliases() {
-        List<String> aliases = client.list();
-        return Collections.enumeration(aliases);
+        AliasFilter filter = aliasFilter;
+        if (filter == null) {
+            return getListing().enumeration();
+        }
+        return Collections.enumeration(filterAliases(filter));
+    }
+
+    /**
+     * @return the listed aliases matching the filter, in listing order.
+     * Aliases not classified yet are read in parallel.
+     */
+    private List<String> filterAliases(AliasFilter filter) {
+        List<String> aliases = Collections.list(getListing().enumeration());
+
+        List<String> unclassified = new ArrayList<>();
+        for (String alias : aliases) {
+            if (keyCache.getKeyClass(alias) == null) {
+                unclassified.add(alias);
+            }
+        }
+        if (!unclassified.isEmpty()) {
+            forEachParallel(unclassified, this::classify);
+            saveSnapshot();
+        }
+
+        List<String> matching = new ArrayList<>();
+        for (String alias : aliases) {
+            AliasFilter.KeyClass keyClass = keyCache.getKeyClass(alias);
+            if (keyClass != null && filter.matches(keyClass)) {
+                matching.add(alias);
+            }
+        }
+        return matching;
+    }
+
+    private void classify(String alias) {
+        KeyCache.Entry entry = getEntry(alias, false);
+        if (entry == null) {
+            // Keeps the type of an unsupported key recorded by loadEntry
+            keyCache.putKeyClassIfAbsent(alias, AliasFilter.KeyClass.UNUSABLE);
+            return;
+        }
+        // Read and put in the cache after this alias was classified, if it changed since
+        if (keyCache.peek(alias) == entry) {
+            keyCache.putKeyClass(alias, AliasFilter.KeyClass.of(entry));
+        }
+    }
+
+    private KeyListing getListing() {
+        KeyListing current = listing;
+        if (current != null && !current.isExpired(System.nanoTime(), listingTtlNanos)) {
+            return current;
+        }
+        return listings.execute(Boolean.TRUE, this::loadListing);
+    }
+
+    private KeyListing loadListing() {
+        long now = System.nanoTime();
+        KeyListing current = listing;
+        if (current == null || current.isExpired(now, listingTtlNanos)) {
+            current = new KeyListing(client.list(), now);
+            listing = current;
+        }
+        return current;
+    }
+
+    private KeyCache.Entry getEntry(String alias) {
+        return getEntry(alias, true);
+    }
+
+    /**
+     * @param save whether to rewrite the snapshot when the key is read from Vault.
+     */
+    private KeyCache.Entry getEntry(String alias, boolean save) {
+        long now = System.nanoTime();
+        KeyCache.Entry entry = keyCache.get(alias, now);
+        if (entry != null) {
+            return entry;
+        }
+        if (isKnownMissing(alias, now) || isUnsupported(alias)) {
+            return null;
+        }
+        return keyReads.execute(alias, () -> loadEntry(alias, save));
+    }
+
+    /**
+     * Answers "this alias does not exist" without calling Vault, from the
+     * cached listing if fresh, or from a recent failed lookup.
+     */
+    private boolean isKnownMissing(String alias, long now) {
+        KeyListing current = listing;
+        if (current != null && !current.isExpired(now, listingTtlNanos) && !current.contains(alias)) {
+            return true;
+        }
+        return keyCache.isMissing(alias, now);
+    }
+
+    /**
+     * @return true if the alias was read and is a key of a type VaultKey does
+     * not support, which exists but is never returned as an entry.
+     */
+    private boolean isUnsupported(String alias) {
+        AliasFilter.KeyClass keyClass = keyCache.getKeyClass(alias);
+        return keyClass != null && keyClass.isUnsupported();
+    }
+
+    private KeyCache.Entry loadEntry(String alias, boolean save) {
+        // A flight for this alias may have completed since the cache was checked
+        long now = System.nanoTime();
+        KeyCache.Entry entry = keyCache.get(alias, now);
+        if (entry != null) {
+            return entry;
+        }
+
+        VaultKey key;
+        try {
+            key = client.read(alias, Client.LATEST_VERSION);
+        } catch (UnsupportedKeyTypeException e) {
+            // Not missing: classified once instead of read again after the missing TTL
+            keyCache.invalidate(alias);
+            keyCache.putKeyClass(alias, AliasFilter.KeyClass.unsupported(e.getType()));
+            return null;
+        }
+        if (key == null) {
+            keyCache.invalidate(alias);
+            keyCache.putMissing(alias, now);
+            return null;
+        }
+
+        entry = new KeyCache.Entry(key, now);
+        keyCache.put(alias, entry);
+        if (save) {
+            saveSnapshot();
+        }
+        return entry;
     }
 
     @Override
     public boolean engineContainsAlias(String alias) {
-        VaultKey key = client.read(alias);
-        return key != null;
+        return getEntry(alias) != null;
     }
 
     @Override
@@ -63,34 +322,11 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
     }
 
     private Certificate[] getCertificateChain(String alias) throws VaultException {
-        VaultKey key = client.read(alias);
-        if (key == null) {
+        KeyCache.Entry entry = getEntry(alias);
+        if (entry == null) {
             throw new VaultException("Key \"" + alias + "\"not found");
         }
-
-        int version = key.getLatestVersion();
-
-        AsymetricKeyVersion kv = key.getKeyVersion(version);
-        if (kv == null) {
-            return new Certificate[0];
-        }
-        String pemCertChain = kv.getCertificateChain();
-
-        return parseCertificateChain(pemCertChain.getBytes());
-    }
-
-    private static Certificate[] parseCertificateChain(byte[] bytes) {
-        final Collection<X509Certificate> x509Certs = toCertificates(bytes);
-        return x509Certs.toArray(new Certificate[0]);
-    }
-
-    private static Collection<X509Certificate> toCertificates(byte[] bytes) {
-        try {
-            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            return (Collection<X509Certificate>) certFactory.generateCertificates(new ByteArrayInputStream(bytes));
-        } catch (CertificateException e) {
-            return new ArrayList<>();
-        }
+        return entry.getCertificateChain();
     }
 
     @Override
@@ -110,11 +346,12 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
 
     @Override
     public Date engineGetCreationDate(String alias) {
-        VaultKey key = client.read(alias);
-        if (key == null) {
+        KeyCache.Entry entry = getEntry(alias);
+        if (entry == null) {
             return null;
         }
 
+        VaultKey key = entry.key;
         int version = key.getLatestVersion();
         AsymetricKeyVersion kv = key.getKeyVersion(version);
         return kv.getCreationTimeDate();
@@ -123,11 +360,11 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
     @Override
     public Key engineGetKey(String alias, char[] password)
             throws NoSuchAlgorithmException, UnrecoverableKeyException {
-        VaultKey key = client.read(alias);
-        if (key == null) {
+        KeyCache.Entry entry = getEntry(alias);
+        if (entry == null) {
             throw new UnrecoverableKeyException("Key \"" + alias + "\" not found");
         }
-        return key;
+        return entry.key;
     }
 
     @Override
@@ -143,9 +380,16 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
     @Override
     public void engineLoad(InputStream stream, char[] password)
             throws IOException, NoSuchAlgorithmException, CertificateException {
+        String token = null;
+        Path sink = tokenSinkPath;
         if (password != null) {
-            String token = String.valueOf(password);
+            token = String.valueOf(password);
             client.authenticate(token);
+        } else if (sink != null) {
+            token = TokenSinkWatcher.read(sink);
+            if (token != null) {
+                onTokenRotated(token, sink);
+            }
         }
 
         try {
@@ -154,6 +398,261 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
         } catch (VaultException e) {
             throw new IOException(e.getMessage());
         }
+
+        loadSnapshot();
+        prefetch();
+        subscribeEvents(token);
+        watchTokenSink(password == null ? sink : null, token);
+    }
+
+    /**
+     * Follows the tokens written to the sink from now on, or stops following
+     * a previous sink if null.
+     */
+    private synchronized void watchTokenSink(Path sink, String token) throws IOException {
+        background.setTokenSink(null);
+        if (sink == null) {
+            return;
+        }
+        TokenSinkWatcher tokenSink = new TokenSinkWatcher(sink, token,
+                weakly(this, (spi, renewed) -> spi.onTokenRotated(renewed, sink)));
+        background.setTokenSink(tokenSink);
+        tokenSink.start();
+    }
+
+    /**
+     * Switches to a token read from the agent sink. Caches, the event stream
+     * and, when no other key store depends on them, the connections of the
+     * client are kept.
+     */
+    private void onTokenRotated(String token, Path sink) {
+        if (client instanceof SharedClient shared) {
+            shared.rotate(token, sink);
+        } else if (client instanceof ShardedClient sharded) {
+            sharded.rotate(token, sink);
+        } else {
+            client.authenticate(token);
+        }
+        KeyEventSubscriber eventSubscriber = background.getEventSubscriber();
+        if (eventSubscriber != null) {
+            eventSubscriber.setToken(token);
+        }
+    }
+
+    /**
+     * Reads the keys matching the prefetch patterns, and parses their
+     * certificate chains, so the first lookups do not wait for Vault.
+     */
+    private void prefetch() {
+        AliasGlob glob = prefetchGlob;
+        if (glob == null) {
+            return;
+        }
+
+        List<String> aliases = new ArrayList<>();
+        Iterable<String> candidates = glob.isLiteral() ? glob.names() : Collections.list(getListing().enumeration());
+        long now = System.nanoTime();
+        for (String alias : candidates) {
+            // Keys restored from the snapshot are already warm
+            if (glob.test(alias) && keyCache.get(alias, now) == null) {
+                aliases.add(alias);
+            }
+        }
+        if (aliases.isEmpty()) {
+            return;
+        }
+
+        forEachParallel(aliases, alias -> {
+            KeyCache.Entry entry = getEntry(alias, false);
+            if (entry != null) {
+                entry.getCertificateChain();
+            }
+        });
+        saveSnapshot();
+    }
+
+    /**
+     * Runs the action for every alias, with at most {@link #setConcurrency(int)}
+     * aliases in flight, and returns once all are done. Failures are reported
+     * and do not stop the other aliases.
+     */
+    private void forEachParallel(List<String> aliases, Consumer<String> action) {
+        int threads = Math.min(concurrency, aliases.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "vault-key-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(aliases.size());
+            for (String alias : aliases) {
+                futures.add(executor.submit(() -> action.accept(alias)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private synchronized void subscribeEvents(String token) {
+        URI address = eventStreamAddress;
+        if (address == null) {
+            return;
+        }
+
+        background.setEventSubscriber(null);
+        KeyEventSubscriber eventSubscriber = new KeyEventSubscriber(address, token, eventHandler(this));
+        background.setEventSubscriber(eventSubscriber);
+        eventSubscriber.start();
+    }
+
+    // Static, so the handler does not capture the key store
+    private static KeyEventSubscriber.Handler eventHandler(VaultKeyStoreSpi spi) {
+        Consumer<String> onKeyChanged = weakly(spi, VaultKeyStoreSpi::onKeyChanged);
+        Consumer<Boolean> onConnected = weakly(spi, VaultKeyStoreSpi::onEventsConnected);
+        Runnable onDisconnected = weakly(spi, VaultKeyStoreSpi::startPollingFallback);
+        return new KeyEventSubscriber.Handler() {
+
+            @Override
+            public void onKeyChanged(String name) {
+                onKeyChanged.accept(name);
+            }
+
+            @Override
+            public void onConnected(boolean reconnected) {
+                onConnected.accept(reconnected);
+            }
+
+            @Override
+            public void onDisconnected() {
+                onDisconnected.run();
+            }
+        };
+    }
+
+    private void onKeyChanged(String name) {
+        if (name == null) {
+            keyCache.clear();
+            listing = null;
+        } else {
+            keyCache.invalidate(name);
+            KeyListing current = listing;
+            if (current != null && !current.contains(name)) {
+                // The key was just created
+                listing = null;
+            }
+        }
+    }
+
+    private void onEventsConnected(boolean reconnected) {
+        stopPollingFallback();
+        if (reconnected) {
+            // Catch up on the events sent while disconnected
+            rotationWatcher.poll();
+        }
+    }
+
+    private synchronized void startPollingFallback() {
+        if (!rotationWatcher.isRunning()) {
+            rotationWatcher.start(eventFallbackInterval);
+            pollingFallback = true;
+        }
+    }
+
+    private synchronized void stopPollingFallback() {
+        if (pollingFallback) {
+            rotationWatcher.stop();
+            pollingFallback = false;
+        }
+    }
+
+    private void loadSnapshot() {
+        Path path = snapshotPath;
+        if (path == null) {
+            return;
+        }
+
+        KeyStoreSnapshot snapshot;
+        try {
+            snapshot = KeyStoreSnapshot.read(path, client);
+        } catch (IOException e) {
+            // A corrupted or outdated snapshot is rebuilt from Vault
+            return;
+        }
+        if (snapshot == null || System.currentTimeMillis() - snapshot.savedAt > snapshotMaxAgeMillis) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (KeyStoreSnapshot.Record record : snapshot.records) {
+            keyCache.put(record.key.getName(), new KeyCache.Entry(record.key, record.chain, now));
+        }
+
+        Thread revalidation = new Thread(() -> revalidateSnapshot(snapshot.records), "vault-snapshot-revalidation");
+        revalidation.setDaemon(true);
+        revalidation.start();
+    }
+
+    /**
+     * Re-reads the keys restored from the snapshot and replaces those that
+     * were rotated, deleted or got a new certificate chain in the meantime.
+     */
+    void revalidateSnapshot(List<KeyStoreSnapshot.Record> records) {
+        boolean changed = false;
+        try {
+            for (KeyStoreSnapshot.Record record : records) {
+                String alias = record.key.getName();
+                VaultKey key = client.read(alias, Client.LATEST_VERSION);
+                if (key == null) {
+                    keyCache.invalidate(alias);
+                    changed = true;
+                    continue;
+                }
+
+                KeyCache.Entry entry = new KeyCache.Entry(key, System.nanoTime());
+                if (key.getLatestVersion() != record.key.getLatestVersion()
+                        || !Arrays.equals(entry.getCertificateChain(), record.chain)) {
+                    keyCache.put(alias, entry);
+                    changed = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        if (changed) {
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Rewrites the snapshot in the background, see {@link SnapshotWriter}.
+     */
+    private void saveSnapshot() {
+        if (snapshotPath != null) {
+            snapshotWriter.schedule();
+        }
+    }
+
+    private void writeSnapshot() {
+        Path path = snapshotPath;
+        if (path == null) {
+            return;
+        }
+
+        try {
+            KeyStoreSnapshot.write(path, keyCache.entries(), System.currentTimeMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     private void checkStatus(VaultStatus status) throws VaultException {
@@ -194,7 +693,11 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
 
     @Override
     public int engineSize() {
-        throw new UnsupportedOperationException("Unimplemented method 'engineSize'");
+        AliasFilter filter = aliasFilter;
+        if (filter == null) {
+            return getListing().size();
+        }
+        return filterAliases(filter).size();
     }
 
     @Override
@@ -206,4 +709,151 @@ public class VaultKeyStoreSpi extends KeyStoreSpi {
     public Client getClient() {
         return client;
     }
+
+    /**
+     * Sets how long the key listing backing {@link #engineAliases()} and
+     * {@link #engineSize()} is reused before Vault is listed again.
+     *
+     * @param ttl the listing time-to-live; zero disables caching.
+     */
+    public void setListingTtl(Duration ttl) {
+        this.listingTtlNanos = ttl.toNanos();
+        this.listing = null;
+    }
+
+    /**
+     * Sets how long keys and certificate chains are reused before being read
+     * from Vault again.
+     *
+     * @param ttl the key time-to-live; zero disables caching.
+     */
+    public void setKeyTtl(Duration ttl) {
+        this.keyCache.setTtlNanos(ttl.toNanos());
+    }
+
+    /**
+     * Reads the token from the sink file of a Vault Agent with auto-auth when
+     * {@link #engineLoad(InputStream, char[])} is given no password, and
+     * switches to each token the agent writes to it afterwards.
+     *
+     * @param sink the sink file, or null to only use the keystore password.
+     */
+    public void setTokenSink(Path sink) {
+        this.tokenSinkPath = sink;
+    }
+
+    /**
+     * Selects the keys read from Vault by {@link #engineLoad(InputStream, char[])}.
+     *
+     * @param globs comma-separated aliases or patterns, e.g. "*" or
+     * "release-*,signer", or null to disable prefetching.
+     */
+    public void setPrefetch(String globs) {
+        this.prefetchGlob = globs != null ? new AliasGlob(globs) : null;
+    }
+
+    /**
+     * @param concurrency the maximum number of keys read in parallel while
+     * prefetching or filtering aliases.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Restricts {@link #engineAliases()} and {@link #engineSize()} to the keys
+     * matching the filter, e.g. signing keys with a certificate chain.
+     *
+     * @param filter the filter, or null to list every transit key.
+     */
+    public void setAliasFilter(AliasFilter filter) {
+        this.aliasFilter = filter;
+    }
+
+    /**
+     * Sets how long an alias found missing in Vault is reported missing
+     * without asking Vault again.
+     *
+     * @param ttl the time-to-live; zero disables the negative cache.
+     */
+    public void setMissingTtl(Duration ttl) {
+        this.keyCache.setMissingTtlNanos(ttl.toNanos());
+    }
+
+    /**
+     * Enables the on-disk metadata snapshot. The snapshot is loaded by
+     * {@link #engineLoad(InputStream, char[])}, revalidated in the background,
+     * and rewritten in the background shortly after keys are read from Vault,
+     * and when the keystore is closed or the JVM exits.
+     *
+     * @param path the snapshot file, or null to disable it.
+     */
+    public void setSnapshotPath(Path path) {
+        this.snapshotPath = path;
+    }
+
+    /**
+     * @param maxAge snapshots older than this are ignored at load time.
+     */
+    public void setSnapshotMaxAge(Duration maxAge) {
+        this.snapshotMaxAgeMillis = maxAge.toMillis();
+    }
+
+    /**
+     * Starts a daemon thread polling the latest version and certificate chain
+     * of the cached keys. Rotated keys and keys whose certificate chain was
+     * set are re-read, unchanged keys stay cached, so the key TTL can be set
+     * much longer than the interval.
+     *
+     * @param interval the delay between two polls.
+     */
+    public synchronized void startRotationWatcher(Duration interval) {
+        rotationWatcher.start(interval);
+        pollingFallback = false;
+    }
+
+    public synchronized void stopRotationWatcher() {
+        rotationWatcher.stop();
+        pollingFallback = false;
+    }
+
+    public void addKeyRotationListener(KeyRotationListener listener) {
+        rotationWatcher.addListener(listener);
+    }
+
+    public void removeKeyRotationListener(KeyRotationListener listener) {
+        rotationWatcher.removeListener(listener);
+    }
+
+    /**
+     * Subscribes to the Vault event stream when the keystore is loaded, and
+     * invalidates cached keys as soon as they are rotated or their
+     * certificate chain is set. While the stream is unavailable, cached keys
+     * are polled as by {@link #startRotationWatcher(Duration)}.
+     *
+     * @param address the Vault address, or null to disable the subscription.
+     * @param fallbackInterval the polling interval while the stream is down.
+     */
+    public void setEventStream(URI address, Duration fallbackInterval) {
+        this.eventStreamAddress = address;
+        this.eventFallbackInterval = fallbackInterval;
+    }
+
+    public synchronized void close() {
+        background.run();
+        pollingFallback = false;
+        snapshotWriter.flush();
+    }
+
+    /**
+     * Checks the cached keys for rotation once, on the calling thread.
+     *
+     * @return the number of keys that were rotated or deleted.
+     */
+    int pollRotations() {
+        return rotationWatcher.poll();
+    }
 }
@@ -0,0 +1,135 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayOutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.List;
+
+import javax.crypto.MacSpi;
+
+/**
+ * HMAC engine computing the MAC with "transit/hmac", the key never leaves
+ * Vault. The message is buffered until {@code doFinal}, use
+ * {@link VaultMacBatch} to authenticate many messages per request.
+ */
+public abstract class VaultMac extends MacSpi {
+
+    private final String hashAlgorithm;
+
+    private final int macLength;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private VaultSecretKey key;
+
+    VaultMac(String hashAlgorithm) throws NoSuchAlgorithmException {
+        this.hashAlgorithm = hashAlgorithm;
+        this.macLength = HashAlgorithmRef.getDigestLengthFromVaultName(hashAlgorithm);
+    }
+
+    @Override
+    protected int engineGetMacLength() {
+        return macLength;
+    }
+
+    @Override
+    protected void engineInit(Key key, AlgorithmParameterSpec params)
+            throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (!(key instanceof VaultSecretKey vaultKey)) {
+            throw new InvalidKeyException("Key must be a VaultSecretKey");
+        }
+        if (params != null) {
+            throw new InvalidAlgorithmParameterException("HMAC does not take parameters");
+        }
+
+        this.key = vaultKey;
+        engineReset();
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        buffer.write(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        buffer.write(input, offset, len);
+    }
+
+    @Override
+    protected byte[] engineDoFinal() {
+        byte[] input = buffer.toByteArray();
+        engineReset();
+
+        byte[] mac = VaultMacBatch.decode(key.getClient().hmac(key.getName(), hashAlgorithm, List.of(input)).get(0));
+        if (mac.length != macLength) {
+            throw new ProviderException("Unexpected HMAC length: " + mac.length);
+        }
+        return mac;
+    }
+
+    @Override
+    protected void engineReset() {
+        buffer.reset();
+    }
+
+    public static final class HmacSHA224 extends VaultMac {
+
+        public HmacSHA224() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA2_224.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA256 extends VaultMac {
+
+        public HmacSHA256() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA2_256.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA384 extends VaultMac {
+
+        public HmacSHA384() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA2_384.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA512 extends VaultMac {
+
+        public HmacSHA512() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA2_512.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA3_224 extends VaultMac {
+
+        public HmacSHA3_224() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA3_224.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA3_256 extends VaultMac {
+
+        public HmacSHA3_256() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA3_256.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA3_384 extends VaultMac {
+
+        public HmacSHA3_384() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA3_384.VAULT_NAME);
+        }
+    }
+
+    public static final class HmacSHA3_512 extends VaultMac {
+
+        public HmacSHA3_512() throws NoSuchAlgorithmException {
+            super(HashAlgorithmRef.SHA3_512.VAULT_NAME);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package com.github.mbreban.vault;
 
+import java.net.URI;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.ProviderException;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +18,48 @@ public final class VaultProvider extends Provider {
 
     private static final String ADDR = "http://127.0.0.1:8200";
 
+    // Path of the keystore metadata snapshot, see VaultKeyStoreSpi#setSnapshotPath
+    private static final String SNAPSHOT_PROPERTY = "vault.jce.snapshot";
+
+    // Key rotation polling interval in seconds, see VaultKeyStoreSpi#startRotationWatcher
+    private static final String WATCH_INTERVAL_PROPERTY = "vault.jce.watchInterval";
+
+    // Keys read when the keystore is loaded, see VaultKeyStoreSpi#setPrefetch
+    private static final String PREFETCH_PROPERTY = "vault.jce.prefetch";
+
+    // Aliases listed by the keystore, see AliasFilter#parse
+    private static final String ALIAS_FILTER_PROPERTY = "vault.jce.aliasFilter";
+
+    // Vault Agent token sink, see VaultKeyStoreSpi#setTokenSink
+    private static final String TOKEN_SINK_PROPERTY = "vault.jce.tokenSink";
+
+    // Transit mounts, on this or other clusters, keys are hashed over, see ShardRouter#parse
+    private static final String SHARDS_PROPERTY = "vault.jce.shards";
+
+    // Keys pinned to a shard, see ShardRouter#parse
+    private static final String SHARD_ROUTES_PROPERTY = "vault.jce.shardRoutes";
+
+    // Signing limits, e.g. "concurrency=32,tenant=16,key=4", see SigningScheduler#parse
+    private static final String SIGNING_LIMITS_PROPERTY = "vault.jce.signingLimits";
+
+    // Priority of signing keys, see SigningScheduler#setPriorities
+    private static final String SIGNING_PRIORITIES_PROPERTY = "vault.jce.signingPriorities";
+
+    // Subscribe to the Vault event stream, see VaultKeyStoreSpi#setEventStream
+    private static final String EVENTS_PROPERTY = "vault.jce.events";
+
+    private static final String EVENTS_FALLBACK_INTERVAL = "30";
+
+    // Bytes fetched per transit/random request, see VaultRandomParameters
+    static final String RANDOM_BLOCK_SIZE_PROPERTY = "vault.jce.randomBlockSize";
+
+    // Clients shared by the key stores of this provider.
+    // Created on first use, so registering the provider loads no Vault client classes
+    private volatile ClientRegistry clients;
+
+    // Shared by every client of this provider, or null without limits
+    private final SigningScheduler scheduler;
+
     public VaultProvider() {
         this(ADDR);
     }
@@ -119,19 +164,160 @@ public final class VaultProvider extends Provider {
         putSignatureImpl("SHA512withRSA/PSS", "VaultSignature$SHA512RSAPSS");
         put("Alg.Alias.Signature.SHA512withRSAandMGF1", "SHA512withRSA/PSS");
 
+        putSignatureImpl("NONEwithRSA", "VaultRawSignature$NONERSA");
+
+        putSignatureImpl("NONEwithECDSA", "VaultRawSignature$NONEECDSA");
+
+        putSignatureImpl("NONEwithRSASSA-PSS", "VaultRawSignature$NONERSAPSS");
+        put("Alg.Alias.Signature.RAWRSASSA-PSS", "NONEwithRSASSA-PSS");
+        put("Alg.Alias.Signature.NONEwithRSAandMGF1", "NONEwithRSASSA-PSS");
+
+        putSignatureImpl("Ed25519", "VaultEd25519Signature");
+        put("Alg.Alias.Signature.1.3.101.112", "Ed25519");
+        put("Alg.Alias.Signature.OID.1.3.101.112", "Ed25519");
+
+        // javax.crypto.Cipher
+        put("Cipher.VaultEnvelope", PREFIX + "VaultEnvelopeCipher");
+        put("Cipher.VaultEnvelope SupportedModes", "GCM");
+        put("Cipher.VaultEnvelope SupportedPaddings", "NOPADDING");
+        put("Cipher.VaultEnvelope SupportedKeyClasses", PREFIX + "VaultSecretKey");
+
+        // javax.crypto.Mac
+        putMacImpl("HmacSHA224", "VaultMac$HmacSHA224");
+        put("Alg.Alias.Mac.1.2.840.113549.2.8", "HmacSHA224");
+        put("Alg.Alias.Mac.OID.1.2.840.113549.2.8", "HmacSHA224");
+
+        putMacImpl("HmacSHA256", "VaultMac$HmacSHA256");
+        put("Alg.Alias.Mac.1.2.840.113549.2.9", "HmacSHA256");
+        put("Alg.Alias.Mac.OID.1.2.840.113549.2.9", "HmacSHA256");
+
+        putMacImpl("HmacSHA384", "VaultMac$HmacSHA384");
+        put("Alg.Alias.Mac.1.2.840.113549.2.10", "HmacSHA384");
+        put("Alg.Alias.Mac.OID.1.2.840.113549.2.10", "HmacSHA384");
+
+        putMacImpl("HmacSHA512", "VaultMac$HmacSHA512");
+        put("Alg.Alias.Mac.1.2.840.113549.2.11", "HmacSHA512");
+        put("Alg.Alias.Mac.OID.1.2.840.113549.2.11", "HmacSHA512");
+
+        putMacImpl("HmacSHA3-224", "VaultMac$HmacSHA3_224");
+        put("Alg.Alias.Mac.2.16.840.1.101.3.4.2.13", "HmacSHA3-224");
+        put("Alg.Alias.Mac.OID.2.16.840.1.101.3.4.2.13", "HmacSHA3-224");
+
+        putMacImpl("HmacSHA3-256", "VaultMac$HmacSHA3_256");
+        put("Alg.Alias.Mac.2.16.840.1.101.3.4.2.14", "HmacSHA3-256");
+        put("Alg.Alias.Mac.OID.2.16.840.1.101.3.4.2.14", "HmacSHA3-256");
+
+        putMacImpl("HmacSHA3-384", "VaultMac$HmacSHA3_384");
+        put("Alg.Alias.Mac.2.16.840.1.101.3.4.2.15", "HmacSHA3-384");
+        put("Alg.Alias.Mac.OID.2.16.840.1.101.3.4.2.15", "HmacSHA3-384");
+
+        putMacImpl("HmacSHA3-512", "VaultMac$HmacSHA3_512");
+        put("Alg.Alias.Mac.2.16.840.1.101.3.4.2.16", "HmacSHA3-512");
+        put("Alg.Alias.Mac.OID.2.16.840.1.101.3.4.2.16", "HmacSHA3-512");
+
         // java.security.KeyStore
         put("KeyStore.VaultKeyStore", PREFIX + "VaultKeyStoreSpi");
 
         Map<String, String> attributes = new HashMap<>();
         attributes.put("VAULT_ADDR", address);
 
+        String snapshot = System.getProperty(SNAPSHOT_PROPERTY);
+        if (snapshot != null && !snapshot.isEmpty()) {
+            attributes.put("SNAPSHOT_PATH", snapshot);
+        }
+
+        String watchInterval = System.getProperty(WATCH_INTERVAL_PROPERTY);
+        if (watchInterval != null && !watchInterval.isEmpty()) {
+            attributes.put("WATCH_INTERVAL", watchInterval);
+        }
+
+        String prefetch = System.getProperty(PREFETCH_PROPERTY);
+        if (prefetch != null && !prefetch.isEmpty()) {
+            attributes.put("PREFETCH", prefetch);
+        }
+
+        String tokenSink = System.getProperty(TOKEN_SINK_PROPERTY);
+        if (tokenSink != null && !tokenSink.isEmpty()) {
+            attributes.put("TOKEN_SINK", tokenSink);
+        }
+
+        String aliasFilter = System.getProperty(ALIAS_FILTER_PROPERTY);
+        if (aliasFilter != null && !aliasFilter.isEmpty()) {
+            attributes.put("ALIAS_FILTER", aliasFilter);
+        }
+
+        String shards = System.getProperty(SHARDS_PROPERTY);
+        if (shards != null && !shards.isEmpty()) {
+            attributes.put("SHARDS", shards);
+        }
+
+        String shardRoutes = System.getProperty(SHARD_ROUTES_PROPERTY);
+        if (shardRoutes != null && !shardRoutes.isEmpty()) {
+            attributes.put("SHARD_ROUTES", shardRoutes);
+        }
+
+        if (Boolean.getBoolean(EVENTS_PROPERTY)) {
+            attributes.put("EVENTS", "true");
+        }
+
+        String signingLimits = System.getProperty(SIGNING_LIMITS_PROPERTY);
+        if (signingLimits != null && !signingLimits.isEmpty()) {
+            scheduler = SigningScheduler.parse(signingLimits);
+            String priorities = System.getProperty(SIGNING_PRIORITIES_PROPERTY);
+            if (priorities != null) {
+                scheduler.setPriorities(priorities);
+            }
+        } else {
+            scheduler = null;
+        }
+
         putService(new VaultKeyStoreService(this, "KeyStore", "VaultKeystore", PREFIX + "VaultKeyStoreSpi", null, attributes));
+
+        Map<String, String> randomAttributes = new HashMap<>();
+        // Callers are not serialized by SecureRandom, see VaultSecureRandom
+        randomAttributes.put("ThreadSafe", "true");
+
+        putService(new VaultSecureRandomService(this, "SecureRandom", "VaultRandom", PREFIX + "VaultSecureRandom", null, randomAttributes));
+    }
+
+    ClientRegistry clients() {
+        ClientRegistry registry = clients;
+        if (registry == null) {
+            synchronized (this) {
+                registry = clients;
+                if (registry == null) {
+                    // Clients are registered by address, or by "mount@address" for shards
+                    registry = new ClientRegistry(spec -> {
+                        ShardRouter.Shard shard = ShardRouter.Shard.parse(spec, null);
+                        VaultClient client = new VaultClient(shard.address(), shard.mount());
+                        client.setScheduler(scheduler);
+                        return client;
+                    }, ClientRegistry.DEFAULT_IDLE_TIMEOUT);
+                    clients = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * @return the scheduler admitting the signatures of this provider, or
+     * null if "vault.jce.signingLimits" is not set.
+     */
+    public SigningScheduler getSigningScheduler() {
+        return scheduler;
     }
 
     private void putSignatureImpl(String algorithm, String implClass) {
         put("Signature." + algorithm, PREFIX + implClass);
     }
 
+    private void putMacImpl(String algorithm, String implClass) {
+        put("Mac." + algorithm, PREFIX + implClass);
+        // Lets Mac.getInstance(algorithm) pick another provider for other keys
+        put("Mac." + algorithm + " SupportedKeyClasses", PREFIX + "VaultSecretKey");
+    }
+
     private static final class VaultKeyStoreService extends Provider.Service {
 
         public VaultKeyStoreService(Provider provider, String type, String algorithm, String className, List<String> aliases, Map<String, String> attributes) {
@@ -146,8 +332,59 @@ public final class VaultProvider extends Provider {
                 if (type.equals("KeyStore")) {
                     if (algo.equals("VaultKeystore")) {
                         String addr = getAttribute("VAULT_ADDR");
-                        Client client = new VaultClient(addr);
-                        return new VaultKeyStoreSpi(client);
+                        ClientRegistry registry = ((VaultProvider) getProvider()).clients();
+                        Client client;
+                        ShardRouter router = null;
+                        String shards = getAttribute("SHARDS");
+                        if (shards != null || getAttribute("SHARD_ROUTES") != null) {
+                            router = ShardRouter.parse(shards != null ? shards : addr,
+                                    getAttribute("SHARD_ROUTES"), addr);
+                            client = new ShardedClient(router, shard -> new SharedClient(registry, shard.spec()));
+                        } else {
+                            client = new SharedClient(registry, addr);
+                        }
+                        VaultKeyStoreSpi spi = new VaultKeyStoreSpi(client);
+
+                        String snapshot = getAttribute("SNAPSHOT_PATH");
+                        if (snapshot != null) {
+                            spi.setSnapshotPath(Paths.get(snapshot));
+                        }
+
+                        String prefetch = getAttribute("PREFETCH");
+                        if (prefetch != null) {
+                            spi.setPrefetch(prefetch);
+                        }
+
+                        String tokenSink = getAttribute("TOKEN_SINK");
+                        if (tokenSink != null) {
+                            spi.setTokenSink(Paths.get(tokenSink));
+                        }
+
+                        String aliasFilter = getAttribute("ALIAS_FILTER");
+                        if (aliasFilter != null) {
+                            spi.setAliasFilter(AliasFilter.parse(aliasFilter));
+                        }
+
+                        String watchInterval = getAttribute("WATCH_INTERVAL");
+                        if (watchInterval != null) {
+                            spi.startRotationWatcher(Duration.ofSeconds(Long.parseLong(watchInterval)));
+                        }
+
+                        if (getAttribute("EVENTS") != null) {
+                            String fallback = watchInterval != null ? watchInterval : EVENTS_FALLBACK_INTERVAL;
+                            Duration interval = Duration.ofSeconds(Long.parseLong(fallback));
+                            if (UnixSocketRequestFactory.isUnixAddress(addr)) {
+                                // The event stream is a WebSocket, which the agent socket does not carry
+                                spi.startRotationWatcher(interval);
+                            } else {
+                                spi.setEventStream(URI.create(addr), interval);
+                                if (router != null && router.spansOtherThan(addr)) {
+                                    // The stream only covers VAULT_ADDR, keys on other clusters are polled
+                                    spi.startRotationWatcher(interval);
+                                }
+                            }
+                        }
+                        return spi;
                     }
                 }
             } catch (Exception ex) {
@@ -157,4 +394,31 @@ public final class VaultProvider extends Provider {
             throw new ProviderException("No impl for " + algo + " " + type);
         }
     }
+
+    private static final class VaultSecureRandomService extends Provider.Service {
+
+        public VaultSecureRandomService(Provider provider, String type, String algorithm, String className, List<String> aliases, Map<String, String> attributes) {
+            super(provider, type, algorithm, className, aliases, attributes);
+        }
+
+        /**
+         * Only creates instances for explicit {@link VaultRandomParameters}.
+         * When this provider is inserted ahead of SUN, "new SecureRandom()"
+         * picks this service, including for the TLS handshake with Vault
+         * that a refill waits for; it then fails instead of depending on
+         * Vault.
+         */
+        @Override
+        public Object newInstance(Object ctrParamObj) throws NoSuchAlgorithmException {
+            if (!(ctrParamObj instanceof VaultRandomParameters params)) {
+                throw new NoSuchAlgorithmException(getAlgorithm() + " requires VaultRandomParameters");
+            }
+            try {
+                return new VaultSecureRandom(params);
+            } catch (Exception ex) {
+                throw new NoSuchAlgorithmException(
+                        "Error constructing " + getType() + " for " + getAlgorithm() + " using VaultProvider", ex);
+            }
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package com.github.mbreban.vault;
+
+import java.security.SecureRandomParameters;
+
+/**
+ * Parameters of the "VaultRandom" {@link java.security.SecureRandom}:
+ *
+ * <pre>
+ * SecureRandom random = SecureRandom.getInstance("VaultRandom",
+ *         new VaultRandomParameters(client), provider);
+ * </pre>
+ *
+ * "VaultRandom" has no default instance: it is only created with these
+ * parameters, and the client is authenticated by the caller.
+ */
+public final class VaultRandomParameters implements SecureRandomParameters {
+
+    private final Client client;
+    private final int blockSize;
+
+    /**
+     * @param client an authenticated client, fetching blocks of
+     *        "vault.jce.randomBlockSize" bytes, 64 KiB by default.
+     */
+    public VaultRandomParameters(Client client) {
+        this(client, Integer.getInteger(VaultProvider.RANDOM_BLOCK_SIZE_PROPERTY, VaultSecureRandom.DEFAULT_BLOCK_SIZE));
+    }
+
+    /**
+     * @param client an authenticated client.
+     * @param blockSize the number of bytes fetched per request, at most 128 KiB.
+     */
+    public VaultRandomParameters(Client client, int blockSize) {
+        if (blockSize <= 0 || blockSize > VaultSecureRandom.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + VaultSecureRandom.MAX_BLOCK_SIZE);
+        }
+        this.client = client;
+        this.blockSize = blockSize;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.mbreban.vault;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Arrays;
+
+import com.github.mbreban.vault.VaultSignature.EngineType;
+
+/**
+ * Signature engines taking an already computed digest as input, which is
+ * sent to Vault as is with "prehashed" set, instead of being hashed again.
+ */
+public abstract class VaultRawSignature extends SignatureSpi {
+
+    // Large enough for a PKCS#1 DigestInfo of SHA-512
+    private static final int MAX_INPUT_LENGTH = 128;
+
+    private final EngineType engineType;
+
+    private final byte[] buffer = new byte[MAX_INPUT_LENGTH];
+
+    private int length;
+
+    private boolean overflow;
+
+    private VaultKey key;
+
+    private boolean signing;
+
+    VaultRawSignature(EngineType engineType) {
+        this.engineType = engineType;
+    }
+
+    /**
+     * @param input the digest supplied through update.
+     * @return the Vault hash algorithm matching the input.
+     */
+    abstract String hashAlgorithm(byte[] input) throws SignatureException;
+
+    /**
+     * @param input the digest supplied through update.
+     * @param hashAlgorithm the algorithm returned by {@link #hashAlgorithm(byte[])}.
+     * @return the bytes to send to Vault.
+     */
+    byte[] vaultInput(byte[] input, String hashAlgorithm) {
+        return input;
+    }
+
+    abstract String signatureAlgorithm();
+
+    String saltLength() {
+        return "";
+    }
+
+    @Override
+    protected Object engineGetParameter(String param) throws InvalidParameterException {
+        throw new UnsupportedOperationException("Unimplemented method 'engineGetParameter'");
+    }
+
+    @Override
+    protected void engineSetParameter(String param, Object value) throws InvalidParameterException {
+        throw new UnsupportedOperationException("Unimplemented method 'engineSetParameter'");
+    }
+
+    private void initInternal(VaultKey newKey, boolean signing) throws InvalidKeyException {
+        VaultSignature.checkEngineType(engineType, newKey);
+        this.key = newKey;
+        this.signing = signing;
+        this.length = 0;
+        this.overflow = false;
+    }
+
+    @Override
+    protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+        initInternal(VaultKey.fromPrivateKey(privateKey), true);
+    }
+
+    @Override
+    protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+        initInternal(VaultKey.fromPublicKey(publicKey), false);
+    }
+
+    @Override
+    protected void engineUpdate(byte b) throws SignatureException {
+        engineUpdate(new byte[] { b }, 0, 1);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+        if (length + len > buffer.length) {
+            overflow = true;
+            return;
+        }
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    private byte[] getInput() throws SignatureException {
+        try {
+            if (overflow) {
+                throw new SignatureException("Input is too long, a digest is expected");
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            length = 0;
+            overflow = false;
+        }
+    }
+
+    @Override
+    protected byte[] engineSign() throws SignatureException {
+        if (!signing) {
+            throw new SignatureException("Engine not initialized");
+        }
+
+        byte[] input = getInput();
+        String hashAlgorithm = hashAlgorithm(input);
+
+        try {
+            return this.key.sign(vaultInput(input, hashAlgorithm), hashAlgorithm, signatureAlgorithm(), saltLength());
+        } catch (VaultException e) {
+            throw new SignatureException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+        if (signing) {
+            throw new SignatureException("Engine not initialized");
+        }
+
+        byte[] input = getInput();
+        String hashAlgorithm = hashAlgorithm(input);
+
+        try {
+            return this.key.verify(vaultInput(input, hashAlgorithm), hashAlgorithm, signatureAlgorithm(), sigBytes);
+        } catch (VaultException e) {
+            throw new SignatureException(e.getMessage());
+        }
+    }
+
+    private static String hashAlgorithmFromLength(byte[] digest) throws SignatureException {
+        String hashAlgorithm = HashAlgorithmRef.getVaultDigestAlgorithmFromDigestLength(digest.length);
+        if (hashAlgorithm == null) {
+            throw new SignatureException("Unsupported digest length: " + digest.length);
+        }
+        return hashAlgorithm;
+    }
+
+    /**
+     * NONEwithRSA: the input is padded as is, as with other providers. When
+     * the input is a DigestInfo, the digest is unwrapped and Vault encodes it
+     * again, which yields the same signature.
+     */
+    public static final class NONERSA extends VaultRawSignature {
+
+        public NONERSA() {
+            super(EngineType.RSA);
+        }
+
+        @Override
+        String hashAlgorithm(byte[] input) {
+            String hashAlgorithm = HashAlgorithmRef.getVaultDigestAlgorithmFromDigestInfo(input);
+            return hashAlgorithm != null ? hashAlgorithm : HashAlgorithmRef.NONE_VAULT_NAME;
+        }
+
+        @Override
+        byte[] vaultInput(byte[] input, String hashAlgorithm) {
+            if (hashAlgorithm.equals(HashAlgorithmRef.NONE_VAULT_NAME)) {
+                return input;
+            }
+            try {
+                int digestLength = HashAlgorithmRef.getDigestLengthFromVaultName(hashAlgorithm);
+                return Arrays.copyOfRange(input, input.length - digestLength, input.length);
+            } catch (NoSuchAlgorithmException e) {
+                throw new ProviderException(e);
+            }
+        }
+
+        @Override
+        String signatureAlgorithm() {
+            return "pkcs1v15";
+        }
+    }
+
+    /**
+     * NONEwithECDSA: the digest algorithm is inferred from the input length.
+     */
+    public static final class NONEECDSA extends VaultRawSignature {
+
+        public NONEECDSA() {
+            super(EngineType.EC);
+        }
+
+        @Override
+        String hashAlgorithm(byte[] input) throws SignatureException {
+            return hashAlgorithmFromLength(input);
+        }
+
+        @Override
+        String signatureAlgorithm() {
+            return "";
+        }
+    }
+
+    /**
+     * NONEwithRSASSA-PSS: the digest algorithm and salt length are taken from
+     * the {@link PSSParameterSpec} when set, otherwise the digest algorithm is
+     * inferred from the input length and the salt length is chosen by Vault.
+     */
+    public static final class NONERSAPSS extends VaultRawSignature {
+
+        private PSSParameterSpec spec;
+
+        private String hashAlgorithm;
+
+        public NONERSAPSS() {
+            super(EngineType.RSA);
+        }
+
+        @Override
+        protected void engineSetParameter(AlgorithmParameterSpec params) throws InvalidAlgorithmParameterException {
+            if (params == null) {
+                this.spec = null;
+                this.hashAlgorithm = null;
+                return;
+            }
+            if (!(params instanceof PSSParameterSpec pssSpec)) {
+                throw new InvalidAlgorithmParameterException("Parameters must be PSSParameterSpec");
+            }
+
+            String digest = pssSpec.getDigestAlgorithm();
+            if (!"MGF1".equalsIgnoreCase(pssSpec.getMGFAlgorithm())
+                    || !(pssSpec.getMGFParameters() instanceof MGF1ParameterSpec mgf1)
+                    || !mgf1.getDigestAlgorithm().equalsIgnoreCase(digest)) {
+                throw new InvalidAlgorithmParameterException("Only MGF1 with the message digest algorithm is supported");
+            }
+            if (pssSpec.getTrailerField() != PSSParameterSpec.TRAILER_FIELD_BC) {
+                throw new InvalidAlgorithmParameterException("Only the 0xBC trailer field is supported");
+            }
+
+            try {
+                this.hashAlgorithm = HashAlgorithmRef.getVaultDigestAlgorithmFromStandardName(digest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new InvalidAlgorithmParameterException(e.getMessage());
+            }
+            this.spec = pssSpec;
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            if (spec == null) {
+                return null;
+            }
+            try {
+                AlgorithmParameters params = AlgorithmParameters.getInstance("RSASSA-PSS");
+                params.init(spec);
+                return params;
+            } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+                throw new ProviderException(e);
+            }
+        }
+
+        @Override
+        String hashAlgorithm(byte[] input) throws SignatureException {
+            if (hashAlgorithm == null) {
+                return hashAlgorithmFromLength(input);
+            }
+            try {
+                if (input.length != HashAlgorithmRef.getDigestLengthFromVaultName(hashAlgorithm)) {
+                    throw new SignatureException("Input length does not match " + spec.getDigestAlgorithm());
+                }
+            } catch (NoSuchAlgorithmException e) {
+                throw new SignatureException(e.getMessage());
+            }
+            return hashAlgorithm;
+        }
+
+        @Override
+        String signatureAlgorithm() {
+            return "pss";
+        }
+
+        @Override
+        String saltLength() {
+            return spec != null ? String.valueOf(spec.getSaltLength()) : "auto";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.mbreban.vault;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Reference to a symmetric transit key, such as "aes256-gcm96". The key
+ * material never leaves Vault, so the key has no encoding.
+ */
+public final class VaultSecretKey implements SecretKey {
+
+    private final Client client;
+    private final String name;
+
+    public VaultSecretKey(Client client, String name) {
+        this.client = client;
+        this.name = name;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return "AES";
+    }
+
+    @Override
+    public String getFormat() {
+        return null;
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        return null;
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.mbreban.vault;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.ProviderException;
+import java.security.SecureRandomParameters;
+import java.security.SecureRandomSpi;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Random bytes generated by "transit/random", fetched in blocks and served
+ * from memory.
+ *
+ * Readers claim ranges of the current block with a compare-and-set on its
+ * position, so concurrent calls never block each other while the block
+ * lasts. Once less than a quarter of the block is left, the next block is
+ * fetched in the background; a reader only waits for Vault when the block is
+ * exhausted before the refill completes. Bytes are zeroed once served.
+ */
+public final class VaultSecureRandom extends SecureRandomSpi {
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Block EMPTY = new Block(new byte[0]);
+
+    private static final class Block {
+
+        final byte[] data;
+        final AtomicInteger position = new AtomicInteger();
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final transient Client client;
+
+    private final int blockSize;
+
+    private final int lowWaterMark;
+
+    private final transient AtomicReference<Block> current = new AtomicReference<>(EMPTY);
+
+    private final transient AtomicReference<CompletableFuture<byte[]>> refill = new AtomicReference<>();
+
+    public VaultSecureRandom(SecureRandomParameters params) throws InvalidAlgorithmParameterException {
+        super(params);
+        if (!(params instanceof VaultRandomParameters vaultParams)) {
+            throw new InvalidAlgorithmParameterException("Parameters must be VaultRandomParameters");
+        }
+        this.client = vaultParams.getClient();
+        this.blockSize = vaultParams.getBlockSize();
+        this.lowWaterMark = blockSize / 4;
+    }
+
+    @Override
+    protected void engineSetSeed(byte[] seed) {
+        // Vault does not take seed material, there is nothing to mix it into
+    }
+
+    @Override
+    protected void engineNextBytes(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            Block block = current.get();
+            int position = block.position.get();
+            int available = block.data.length - position;
+            if (available <= 0) {
+                advance(block);
+                continue;
+            }
+
+            int count = Math.min(available, bytes.length - offset);
+            if (!block.position.compareAndSet(position, position + count)) {
+                continue;
+            }
+
+            System.arraycopy(block.data, position, bytes, offset, count);
+            Arrays.fill(block.data, position, position + count, (byte) 0);
+            offset += count;
+
+            if (available - count <= lowWaterMark) {
+                requestRefill();
+            }
+        }
+    }
+
+    @Override
+    protected byte[] engineGenerateSeed(int numBytes) {
+        byte[] seed = new byte[numBytes];
+        engineNextBytes(seed);
+        return seed;
+    }
+
+    /**
+     * Replaces an exhausted block with the pending refill, waiting for it if
+     * needed. Threads racing here share the same refill.
+     */
+    private void advance(Block exhausted) {
+        if (current.get() != exhausted) {
+            return;
+        }
+
+        CompletableFuture<byte[]> pending = requestRefill();
+        byte[] data;
+        try {
+            data = pending.join();
+        } catch (CompletionException e) {
+            // The next reader retries
+            refill.compareAndSet(pending, null);
+            throw new ProviderException("Cannot fetch random bytes from Vault", e.getCause());
+        }
+
+        // Only the thread taking the refill installs it, so a block is never served twice
+        if (refill.compareAndSet(pending, null) && !current.compareAndSet(exhausted, new Block(data))) {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+
+    private CompletableFuture<byte[]> requestRefill() {
+        while (true) {
+            CompletableFuture<byte[]> pending = refill.get();
+            if (pending != null) {
+                return pending;
+            }
+
+            CompletableFuture<byte[]> created = new CompletableFuture<>();
+            if (refill.compareAndSet(null, created)) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        created.complete(client.random(blockSize));
+                    } catch (Throwable t) {
+                        created.completeExceptionally(t);
+                    }
+                }, "vault-random-refill");
+                thread.setDaemon(true);
+                thread.start();
+                return created;
+            }
+        }
+    }
+}
@@ -11,8 +11,8 @@ import java.security.SignatureSpi;
 
 public class VaultSignature extends SignatureSpi {
 
-    private enum EngineType {
-        RSA, EC,
+    enum EngineType {
+        RSA, EC, ED25519,
     }
 
     private VaultKey key;
@@ -47,7 +47,7 @@ public class VaultSignature extends SignatureSpi {
         this.saltLength = saltLength;
 
         String jcaDigestAlgorithm = HashAlgorithmRef.getJcaDigestAlgorithmStandardNameFromVaultName(this.contentHashAlgorithm);
-        this.messageDigest = MessageDigest.getInstance(jcaDigestAlgorithm);
+        this.messageDigest = HashAlgorithmRef.newMessageDigest(jcaDigestAlgorithm);
     }
 
     @Override
@@ -55,7 +55,7 @@ public class VaultSignature extends SignatureSpi {
         throw new UnsupportedOperationException("Unimplemented method 'engineGetParameter'");
     }
 
-    private void checkEngineType(VaultKey key) throws InvalidKeyException {
+    static void checkEngineType(EngineType engineType, VaultKey key) throws InvalidKeyException {
         String algo = key.getAlgorithm().toLowerCase();
 
         switch (engineType) {
@@ -69,13 +69,23 @@ public class VaultSignature extends SignatureSpi {
                     throw new InvalidKeyException("Signature initialized as " + engineType + " (not RSA)");
                 }
                 break;
+            case ED25519:
+                if (!algo.equals(VaultKey.ED25519)) {
+                    throw new InvalidKeyException("Signature initialized as " + engineType + " (not " + algo + ")");
+                }
+                break;
             default:
                 throw new InvalidKeyException("Key must be of type EC or RSA");
         }
     }
 
+    /**
+     * Discards any pending input, so a single engine can be kept per thread
+     * and re-initialized for every signature, with the same or another key.
+     */
     private void initInternal(VaultKey newKey, boolean signing) throws InvalidKeyException {
-        checkEngineType(newKey);
+        checkEngineType(engineType, newKey);
+        this.messageDigest.reset();
         this.key = newKey;
         this.signing = signing;
     }
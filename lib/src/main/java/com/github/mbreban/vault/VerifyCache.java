@@ -0,0 +1,128 @@
+package com.github.mbreban.vault;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Signatures Vault found valid, by a hash of the key name and version, the
+ * algorithms, the digest and the signature, least recently used first out.
+ *
+ * Only valid results are kept: repeats of invalid signatures still reach
+ * Vault, and cannot evict the hot entries. Entries are scoped to the client
+ * that verified them, which they hold weakly: a client dropped by its key
+ * store is not kept alive with its connection pool, and its entries are
+ * never matched again until they are evicted.
+ */
+final class VerifyCache {
+
+    private final int maxEntries;
+    private final long lifetimeNanos;
+
+    private final LinkedHashMap<CacheKey, Long> entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Long> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    VerifyCache(int maxEntries, long lifetimeNanos) {
+        this.maxEntries = maxEntries;
+        this.lifetimeNanos = lifetimeNanos;
+    }
+
+    private static final class CacheKey {
+
+        private final WeakReference<Client> client;
+        private final int clientHash;
+        private final ByteBuffer hash;
+
+        CacheKey(Client client, ByteBuffer hash) {
+            this.client = new WeakReference<>(client);
+            this.clientHash = System.identityHashCode(client);
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey other) || clientHash != other.clientHash || !hash.equals(other.hash)) {
+                return false;
+            }
+            Client current = client.get();
+            return current != null && current == other.client.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientHash, hash);
+        }
+    }
+
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return true if the signature was found valid less than the lifetime ago.
+     */
+    synchronized boolean isValid(Client client, byte[] hash, long now) {
+        CacheKey cacheKey = new CacheKey(client, ByteBuffer.wrap(hash));
+        Long verifiedAt = entries.get(cacheKey);
+        if (verifiedAt == null) {
+            return false;
+        }
+        if (now - verifiedAt >= lifetimeNanos) {
+            entries.remove(cacheKey);
+            return false;
+        }
+        return true;
+    }
+
+    synchronized void putValid(Client client, byte[] hash, long now) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        entries.put(new CacheKey(client, ByteBuffer.wrap(hash)), now);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Hashes the fields of a verification, each prefixed with its length so
+     * that no two different requests share an encoding.
+     */
+    static byte[] hash(String keyName, int version, String hashAlgorithm, String signatureAlgorithm,
+            byte[] digest, byte[] signature) {
+        MessageDigest md;
+        try {
+            md = HashAlgorithmRef.newMessageDigest(HashAlgorithmRef.SHA2_256.JCA_NAME);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ProviderException(e);
+        }
+        update(md, keyName.getBytes(StandardCharsets.UTF_8));
+        update(md, ByteBuffer.allocate(Integer.BYTES).putInt(version).array());
+        update(md, String.valueOf(hashAlgorithm).getBytes(StandardCharsets.UTF_8));
+        update(md, String.valueOf(signatureAlgorithm).getBytes(StandardCharsets.UTF_8));
+        update(md, digest);
+        update(md, signature);
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, byte[] field) {
+        md.update(ByteBuffer.allocate(Integer.BYTES).putInt(field.length).array());
+        md.update(field);
+    }
+}
@@ -0,0 +1,213 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.springframework.http.HttpMethod;
+import org.springframework.vault.client.VaultEndpoint;
+
+public class ClientRegistryTest {
+
+    static final String ADDR = "http://127.0.0.1:8200";
+
+    static final Path SINK = Path.of("/run/vault-agent/token");
+
+    final List<Client> created = new ArrayList<>();
+
+    private Client newClient(String address) {
+        Client client = mock(Client.class);
+        created.add(client);
+        return client;
+    }
+
+    @Test
+    void testAcquireShouldShareClientsByAddressAndToken() {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ofMinutes(5));
+
+        ClientRegistry.Lease first = registry.acquire(ADDR, "token");
+        ClientRegistry.Lease second = registry.acquire(ADDR, "token");
+        ClientRegistry.Lease other = registry.acquire(ADDR, "other-token");
+        ClientRegistry.Lease anonymous = registry.acquire(ADDR, null);
+
+        assertSame(first.client, second.client);
+        assertNotSame(first.client, other.client);
+        assertNotSame(first.client, anonymous.client);
+        assertEquals(3, created.size());
+        verify(first.client, times(1)).authenticate("token");
+    }
+
+    @Test
+    void testReleaseShouldKeepIdleClientsUntilTimeout() {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ofMinutes(5));
+        ClientRegistry.Lease lease = registry.acquire(ADDR, "token");
+        registry.release(lease);
+        registry.release(lease);
+
+        assertSame(lease.client, registry.acquire(ADDR, "token").client);
+
+        ClientRegistry expiring = new ClientRegistry(this::newClient, Duration.ZERO);
+        ClientRegistry.Lease expired = expiring.acquire(ADDR, "token");
+        expiring.release(expired);
+
+        assertEquals(0, expiring.size());
+        assertNotSame(expired.client, expiring.acquire(ADDR, "token").client);
+    }
+
+    @Test
+    void testSharedClientShouldMoveToTheClientOfItsToken() throws Exception {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ZERO);
+        SharedClient first = new SharedClient(registry, ADDR);
+        SharedClient second = new SharedClient(registry, ADDR);
+
+        first.authenticate("token");
+        second.authenticate("token");
+        first.list();
+        second.list();
+
+        assertEquals(1, created.size());
+        verify(created.get(0), times(2)).list();
+
+        first.authenticate("other-token");
+        when(created.get(1).revision("foo")).thenReturn(new KeyRevision(3, null));
+        assertEquals(3, first.revision("foo").getLatestVersion());
+
+        first.release();
+        second.release();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    void testRotateShouldReauthenticateTheSharedClientInPlace() {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ZERO);
+        SharedClient first = new SharedClient(registry, ADDR);
+        SharedClient second = new SharedClient(registry, ADDR);
+        first.rotate("token", SINK);
+        second.rotate("token", SINK);
+
+        first.rotate("renewed", SINK);
+        second.rotate("renewed", SINK);
+        first.list();
+        second.list();
+
+        assertEquals(1, created.size());
+        verify(created.get(0), times(1)).authenticate("renewed");
+        verify(created.get(0), times(2)).list();
+        assertSame(created.get(0), registry.acquire(ADDR, "renewed").client);
+    }
+
+    @Test
+    void testRotateShouldNotAuthenticateTheAnonymousClient() {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ZERO);
+        SharedClient anonymous = new SharedClient(registry, ADDR);
+        SharedClient follower = new SharedClient(registry, ADDR);
+        // The sink was empty when the key stores were loaded
+        anonymous.list();
+        follower.list();
+
+        follower.rotate("token", SINK);
+        anonymous.list();
+        follower.list();
+
+        assertEquals(2, created.size());
+        verify(created.get(0), times(0)).authenticate("token");
+        verify(created.get(0), times(3)).list();
+        verify(created.get(1), times(1)).authenticate("token");
+        verify(created.get(1), times(1)).list();
+    }
+
+    @Test
+    void testRotateShouldLeaveKeyStoresNotFollowingTheSink() {
+        ClientRegistry registry = new ClientRegistry(this::newClient, Duration.ZERO);
+        SharedClient pinned = new SharedClient(registry, ADDR);
+        SharedClient follower = new SharedClient(registry, ADDR);
+        pinned.authenticate("token");
+        follower.rotate("token", SINK);
+        assertEquals(1, created.size());
+
+        follower.rotate("renewed", SINK);
+        pinned.list();
+        follower.list();
+
+        assertEquals(2, created.size());
+        verify(created.get(0), times(0)).authenticate("renewed");
+        verify(created.get(0), times(1)).list();
+        verify(created.get(1), times(1)).authenticate("renewed");
+        verify(created.get(1), times(1)).list();
+
+        // Once alone on its client, the follower keeps its connections
+        follower.rotate("renewed-again", SINK);
+        assertEquals(2, created.size());
+        verify(created.get(1), times(1)).authenticate("renewed-again");
+    }
+
+    @Test
+    void testEvictedClientsShouldCloseTheirConnections(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        CountDownLatch closed = new CountDownLatch(1);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Thread thread = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.ISO_8859_1));
+                    while (!reader.readLine().isEmpty()) {
+                        continue;
+                    }
+                    OutputStream out = Channels.newOutputStream(channel);
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    // Kept alive until the client closes it
+                    while (reader.read() != -1) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+                closed.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            String address = "unix://" + socket;
+            UnixSocketRequestFactory transport = UnixSocketRequestFactory.fromAddress(address);
+            ClientRegistry registry = new ClientRegistry(
+                    spec -> new VaultClient(VaultEndpoint.create("localhost", 8200), "transit", transport), Duration.ZERO);
+            ClientRegistry.Lease lease = registry.acquire(address, "token");
+
+            transport.createRequest(URI.create("http://localhost:8200/v1/sys/health"), HttpMethod.GET).execute().close();
+            assertEquals(1, transport.idleConnections());
+
+            registry.release(lease);
+
+            assertEquals(0, registry.size());
+            assertEquals(0, transport.idleConnections());
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class KeyEventSubscriberTest {
+
+    static final String ROTATE_EVENT = """
+            {"id":"1","source":"vault://test","type":"*","data":{"event":{"id":"1","metadata":\
+            {"path":"transit/keys/my-rsa-2048/rotate"}},"event_type":"transit/rotate",\
+            "plugin_info":{"mount_path":"transit/","plugin":"transit"}}}""";
+
+    static final String KV_EVENT = """
+            {"id":"2","source":"vault://test","type":"*","data":{"event":{"id":"2","metadata":\
+            {"path":"secret/data/foo"}},"event_type":"kv-v2/data-write",\
+            "plugin_info":{"mount_path":"secret/","plugin":"kv"}}}""";
+
+    KeyEventSubscriber subscriber;
+    WebSocketStandIn server;
+
+    final BlockingQueue<String> changed = new LinkedBlockingQueue<>();
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch disconnected = new CountDownLatch(1);
+
+    final KeyEventSubscriber.Handler handler = new KeyEventSubscriber.Handler() {
+
+        @Override
+        public void onKeyChanged(String name) {
+            changed.add(name != null ? name : "*");
+        }
+
+        @Override
+        public void onConnected(boolean reconnected) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnected.countDown();
+        }
+    };
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (subscriber != null) {
+            subscriber.stop();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void testToEventsUri() {
+        assertEquals(URI.create("ws://127.0.0.1:8200/v1/sys/events/subscribe/transit*?json=true"),
+                KeyEventSubscriber.toEventsUri(URI.create("http://127.0.0.1:8200")));
+        assertEquals(URI.create("wss://vault.example.com/v1/sys/events/subscribe/transit*?json=true"),
+                KeyEventSubscriber.toEventsUri(URI.create("https://vault.example.com/")));
+    }
+
+    @Test
+    void testKeyName() throws IOException {
+        JsonNode byPath = KeyVersions.MAPPER.readTree("{\"path\":\"transit/keys/foo/rotate\"}");
+        JsonNode byName = KeyVersions.MAPPER.readTree("{\"name\":\"bar\",\"path\":\"transit/keys/foo\"}");
+        JsonNode unknown = KeyVersions.MAPPER.readTree("{\"path\":\"transit/cache-config\"}");
+
+        assertEquals("foo", KeyEventSubscriber.keyName(byPath, "transit/"));
+        assertEquals("bar", KeyEventSubscriber.keyName(byName, "transit/"));
+        assertNull(KeyEventSubscriber.keyName(unknown, "transit/"));
+    }
+
+    @Test
+    void testShouldReportTransitEvents() throws Exception {
+        server = new WebSocketStandIn(KV_EVENT, ROTATE_EVENT);
+        subscriber = new KeyEventSubscriber(server.address(), "test-token", handler);
+        subscriber.start();
+
+        assertEquals("my-rsa-2048", changed.poll(10, TimeUnit.SECONDS));
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        assertTrue(server.request.startsWith("GET /v1/sys/events/subscribe/transit*?json=true "));
+        assertTrue(server.headers.contains("x-vault-token: test-token"));
+        assertTrue(changed.isEmpty());
+    }
+
+    @Test
+    void testShouldReportDisconnectionWhenUnreachable() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+
+        subscriber = new KeyEventSubscriber(URI.create("http://127.0.0.1:" + port), null, handler);
+        subscriber.start();
+
+        assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Minimal websocket server: accepts a single connection, completes the
+     * handshake and sends the given messages as text frames.
+     */
+    static final class WebSocketStandIn implements AutoCloseable {
+
+        private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+        final ServerSocket serverSocket;
+        final Thread thread;
+        volatile String request;
+        final List<String> headers = new CopyOnWriteArrayList<>();
+        private volatile Socket socket;
+
+        WebSocketStandIn(String... messages) throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            thread = new Thread(() -> serve(messages));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URI address() {
+            return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort());
+        }
+
+        private void serve(String[] messages) {
+            try {
+                socket = serverSocket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                request = in.readLine();
+
+                String key = null;
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    headers.add(line.toLowerCase().replaceFirst(":\\s*", ": "));
+                    if (line.regionMatches(true, 0, "Sec-WebSocket-Key:", 0, 18)) {
+                        key = line.substring(18).trim();
+                    }
+                }
+
+                byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+                OutputStream out = socket.getOutputStream();
+                out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha1) + "\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+
+                for (String message : messages) {
+                    writeTextFrame(out, message.getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } catch (Exception e) {
+                // The test fails on the client side
+            }
+        }
+
+        private static void writeTextFrame(OutputStream out, byte[] payload) throws IOException {
+            out.write(0x81);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else {
+                out.write(126);
+                out.write(payload.length >> 8);
+                out.write(payload.length & 0xff);
+            }
+            out.write(payload);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+            }
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.mbreban.vault;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class KeyStoreSnapshotTest {
+
+    @TempDir
+    Path tempDir;
+
+    static Keyset rsaKeyset;
+    static VaultKey rsaVaultKey;
+
+    @BeforeAll
+    static void initAll() throws VaultException {
+        rsaKeyset = new Keyset.RSA2048();
+        rsaVaultKey = rsaKeyset.getVaultKey(null);
+    }
+
+    private Path writeSnapshot(long savedAt) throws IOException {
+        Path path = tempDir.resolve("keystore.snapshot");
+        KeyCache.Entry entry = new KeyCache.Entry(rsaVaultKey, 0);
+        KeyStoreSnapshot.write(path, Collections.singletonList(entry), savedAt);
+        return path;
+    }
+
+    @Test
+    void testReadShouldRestoreWrittenEntries() throws IOException {
+        Path path = writeSnapshot(1234L);
+
+        KeyStoreSnapshot snapshot = KeyStoreSnapshot.read(path, null);
+
+        assertEquals(1234L, snapshot.savedAt);
+        List<KeyStoreSnapshot.Record> records = snapshot.records;
+        assertEquals(1, records.size());
+
+        VaultKey key = records.get(0).key;
+        assertEquals(rsaVaultKey.getName(), key.getName());
+        assertEquals(rsaVaultKey.getType(), key.getType());
+        assertEquals(rsaVaultKey.getLatestVersion(), key.getLatestVersion());
+        assertEquals(rsaVaultKey.isSupportsSigning(), key.isSupportsSigning());
+        assertArrayEquals(rsaVaultKey.getEncoded(), key.getEncoded());
+        assertArrayEquals(rsaKeyset.getCertificateChain(), records.get(0).chain);
+        assertArrayEquals(rsaKeyset.getCertificateChain(), new KeyCache.Entry(key, 0).getCertificateChain());
+    }
+
+    @Test
+    void testReadShouldReturnNullWhenFileIsMissing() throws IOException {
+        assertNull(KeyStoreSnapshot.read(tempDir.resolve("missing"), null));
+    }
+
+    @Test
+    void testReadShouldFailWhenFileIsCorrupted() throws IOException {
+        Path path = writeSnapshot(1234L);
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(path, bytes);
+
+        IOException thrown = Assertions.assertThrows(IOException.class, () -> {
+            KeyStoreSnapshot.read(path, null);
+        });
+        assertEquals("Snapshot checksum mismatch", thrown.getMessage());
+    }
+}
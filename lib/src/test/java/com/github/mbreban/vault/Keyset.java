@@ -108,7 +108,8 @@ GNnJXMYTMElmYV4Glkgq
                 .setName(name)
                 .setType(type)
                 .setKeys(rsaKeys)
-                .setLatestVersion(1);
+                .setLatestVersion(1)
+                .setSupportsSigning(true);
 
         if (client != null) {
             builder.setClient(client);
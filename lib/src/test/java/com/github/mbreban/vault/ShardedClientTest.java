@@ -0,0 +1,114 @@
+package com.github.mbreban.vault;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShardedClientTest {
+
+    static final String ADDR = "http://127.0.0.1:8200";
+
+    final Map<ShardRouter.Shard, Client> clients = new HashMap<>();
+
+    private Client newClient(ShardRouter.Shard shard) {
+        Client client = mock(Client.class);
+        clients.put(shard, client);
+        return client;
+    }
+
+    @Test
+    void testShardParseShouldSplitMountAndAddress() {
+        assertEquals(new ShardRouter.Shard("transit-2", ADDR), ShardRouter.Shard.parse(" /transit-2/ ", ADDR));
+        assertEquals(new ShardRouter.Shard("transit", "https://vault-b:8200"),
+                ShardRouter.Shard.parse("transit@https://vault-b:8200", ADDR));
+        assertEquals(new ShardRouter.Shard(VaultClient.DEFAULT_MOUNT, "https://vault-b:8200"),
+                ShardRouter.Shard.parse("https://vault-b:8200", ADDR));
+
+        ShardRouter.Shard shard = new ShardRouter.Shard("transit", "https://user@vault-b:8200");
+        assertEquals(shard, ShardRouter.Shard.parse(shard.spec(), null));
+    }
+
+    @Test
+    void testSpansOtherThanShouldFindOtherClusters() {
+        assertFalse(ShardRouter.parse("transit,transit-2", "signer=transit-3", ADDR).spansOtherThan(ADDR));
+        assertTrue(ShardRouter.parse("transit,transit@https://vault-b:8200", null, ADDR).spansOtherThan(ADDR));
+        assertTrue(ShardRouter.parse("transit", "signer=transit@https://vault-b:8200", ADDR).spansOtherThan(ADDR));
+    }
+
+    @Test
+    void testRouteShouldPreferTableThenHash() {
+        ShardRouter router = ShardRouter.parse("transit,transit-2,transit-3",
+                "release-*=transit-4,signer=transit@https://vault-b:8200", ADDR);
+
+        assertEquals(5, router.shards().size());
+        assertEquals(new ShardRouter.Shard("transit-4", ADDR), router.route("release-app"));
+        assertEquals(new ShardRouter.Shard("transit", "https://vault-b:8200"), router.route("signer"));
+
+        // Hashing is stable, and spreads keys over every hashed shard
+        ShardRouter same = ShardRouter.parse("transit,transit-2,transit-3", null, ADDR);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            ShardRouter.Shard shard = router.route("key-" + i);
+            assertEquals(shard, same.route("key-" + i));
+            assertNotEquals("transit-4", shard.mount());
+            counts.merge(shard.mount(), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+    }
+
+    @Test
+    void testAddingShardShouldOnlyMoveKeysToIt() {
+        ShardRouter two = ShardRouter.parse("transit,transit-2", null, ADDR);
+        ShardRouter three = ShardRouter.parse("transit,transit-2,transit-3", null, ADDR);
+        for (int i = 0; i < 300; i++) {
+            ShardRouter.Shard after = three.route("key-" + i);
+            if (!after.mount().equals("transit-3")) {
+                assertEquals(two.route("key-" + i), after);
+            }
+        }
+    }
+
+    @Test
+    void testSignShouldGoToShardOfKey() {
+        ShardRouter router = ShardRouter.parse("transit", "release-*=transit-2", ADDR);
+        ShardedClient client = new ShardedClient(router, this::newClient);
+        Client first = clients.get(new ShardRouter.Shard("transit", ADDR));
+        Client second = clients.get(new ShardRouter.Shard("transit-2", ADDR));
+        when(second.sign(anyString(), any(byte[].class), any(), any(), anyBoolean(), any()))
+                .thenReturn(new byte[] { 1 });
+
+        byte[] signature = client.sign("release-app", new byte[32], "sha2-256", "pkcs1v15", true, null);
+
+        assertArrayEquals(new byte[] { 1 }, signature);
+        verify(first, never()).sign(anyString(), any(byte[].class), any(), any(), anyBoolean(), any());
+    }
+
+    @Test
+    void testListShouldKeepOnlyKeysOwnedByShard() {
+        ShardRouter router = ShardRouter.parse("transit", "release-*=transit-2", ADDR);
+        ShardedClient client = new ShardedClient(router, this::newClient);
+        when(clients.get(new ShardRouter.Shard("transit", ADDR)).list())
+                .thenReturn(Arrays.asList("debug-app", "release-old"));
+        when(clients.get(new ShardRouter.Shard("transit-2", ADDR)).list())
+                .thenReturn(Arrays.asList("release-app", "stray"));
+
+        List<String> names = client.list();
+
+        assertEquals(Arrays.asList("debug-app", "release-app"), names);
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.mbreban.vault;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import com.github.mbreban.vault.SigningScheduler.Priority;
+
+public class SigningSchedulerTest {
+
+    static final Object TENANT = new Object();
+
+    /**
+     * Holds a slot until the latch is released.
+     */
+    private static Thread hold(SigningScheduler scheduler, Object tenant, String key, Priority priority,
+            CountDownLatch started, CountDownLatch done, List<String> order) {
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.run(tenant, key, priority, () -> {
+                    order.add(key);
+                    started.countDown();
+                    try {
+                        done.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                order.add("shed:" + key);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueued(SigningScheduler scheduler, Priority priority, int queued) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.stats(priority).queued() < queued) {
+            assertTrue(System.nanoTime() < deadline, "Signature not queued");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void testParseShouldDefaultBulkheadsToConcurrency() {
+        SigningScheduler scheduler = SigningScheduler.parse("concurrency=4, key=1");
+        scheduler.setPriorities("release-*=critical, ci-*=BULK");
+
+        assertEquals(Priority.CRITICAL, scheduler.priorityOf("release-app"));
+        assertEquals(Priority.BULK, scheduler.priorityOf("ci-snapshot"));
+        assertEquals(Priority.NORMAL, scheduler.priorityOf("debug"));
+        assertThrows(IllegalArgumentException.class, () -> SigningScheduler.parse("tenant=4"));
+        assertThrows(IllegalArgumentException.class, () -> SigningScheduler.parse("concurrency=4,keys=1"));
+    }
+
+    @Test
+    void testFreedSlotShouldGoToCriticalFirst() throws Exception {
+        SigningScheduler scheduler = new SigningScheduler(1, 1, 1, 8);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        Thread running = hold(scheduler, TENANT, "ci-1", Priority.BULK, started, done, order);
+        started.await(5, TimeUnit.SECONDS);
+        Thread bulk = hold(scheduler, new Object(), "ci-2", Priority.BULK, new CountDownLatch(1), done, order);
+        awaitQueued(scheduler, Priority.BULK, 1);
+        Thread critical = hold(scheduler, new Object(), "release", Priority.CRITICAL, new CountDownLatch(1), done,
+                order);
+        awaitQueued(scheduler, Priority.CRITICAL, 1);
+
+        done.countDown();
+        for (Thread thread : List.of(running, bulk, critical)) {
+            thread.join(5000);
+        }
+
+        assertEquals(List.of("ci-1", "release", "ci-2"), order);
+        SigningScheduler.Stats stats = scheduler.stats(Priority.CRITICAL);
+        assertEquals(1, stats.admitted());
+        assertEquals(0, stats.queued());
+        assertTrue(stats.maxQueueNanos() > 0);
+        assertEquals(2, scheduler.stats(Priority.BULK).admitted());
+    }
+
+    @Test
+    void testKeyBulkheadShouldNotBlockOtherKeys() throws Exception {
+        SigningScheduler scheduler = new SigningScheduler(4, 4, 1, 8);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        Thread hot = hold(scheduler, TENANT, "hot", Priority.NORMAL, started, done, order);
+        started.await(5, TimeUnit.SECONDS);
+        Thread queued = hold(scheduler, TENANT, "hot", Priority.NORMAL, new CountDownLatch(1), done, order);
+        awaitQueued(scheduler, Priority.NORMAL, 1);
+
+        assertEquals("other", scheduler.run(TENANT, "other", Priority.NORMAL, () -> "other"));
+
+        done.countDown();
+        hot.join(5000);
+        queued.join(5000);
+        assertEquals(List.of("hot", "hot"), order);
+    }
+
+    @Test
+    void testFullQueueShouldShed() throws Exception {
+        SigningScheduler scheduler = new SigningScheduler(1, 1, 1, 1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        Thread running = hold(scheduler, TENANT, "ci-1", Priority.BULK, started, done, order);
+        started.await(5, TimeUnit.SECONDS);
+        Thread queued = hold(scheduler, TENANT, "ci-2", Priority.BULK, new CountDownLatch(1), done, order);
+        awaitQueued(scheduler, Priority.BULK, 1);
+
+        assertThrows(RejectedExecutionException.class,
+                () -> scheduler.run(TENANT, "ci-3", Priority.BULK, () -> null));
+        assertEquals(1, scheduler.stats(Priority.BULK).shed());
+
+        done.countDown();
+        running.join(5000);
+        queued.join(5000);
+        assertEquals(List.of("ci-1", "ci-2"), order);
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Measures the time from launching a JVM to its first signature, against a
+ * local stand-in for Vault, run with {@code ./gradlew benchmark}.
+ *
+ * Runs on the shaded jar given by the "benchmark.jar" property, with the
+ * default CDS archive and with an AppCDS archive trained by a first run
+ * against a {@link StandInVault}, as in the container image. Without the
+ * jar, only the test class path is run.
+ */
+@Tag("benchmark")
+public class StartupBenchmarkTest {
+
+    static final int RUNS = Integer.getInteger("benchmark.startupRuns", 5);
+
+    static final String ALIAS = "my-rsa-2048";
+
+    /**
+     * @return the milliseconds from launching the JVM to its first signature.
+     */
+    private static long launch(String classPath, String address, String... javaOptions) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        Collections.addAll(command, javaOptions);
+        command.add("--class-path=" + classPath);
+        command.add(StartupProbe.class.getName());
+        command.add(address);
+        command.add(ALIAS);
+
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put("VAULT_TOKEN", "benchmark");
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        long elapsed = -1;
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (elapsed < 0 && line.startsWith(StartupProbe.SIGNED)) {
+                    elapsed = (System.nanoTime() - start) / 1_000_000;
+                }
+                output.add(line);
+            }
+        }
+        process.waitFor();
+        if (elapsed < 0) {
+            throw new IllegalStateException("No signature: " + String.join("\n", output));
+        }
+        return elapsed;
+    }
+
+    private static void measure(String name, String classPath, String address, String... javaOptions)
+            throws Exception {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < RUNS; i++) {
+            times.add(launch(classPath, address, javaOptions));
+        }
+        Collections.sort(times);
+        System.out.printf("%-40s median %5d ms, min %5d ms, max %5d ms%n", name,
+                times.get(times.size() / 2), times.get(0), times.get(times.size() - 1));
+    }
+
+    @Test
+    void benchmarkTimeToFirstSignature(@TempDir Path tempDir) throws Exception {
+        HttpServer server = StandInVault.start(ALIAS);
+        try {
+            String address = StandInVault.address(server);
+
+            String jar = System.getProperty("benchmark.jar");
+            if (jar == null || !Files.exists(Path.of(jar))) {
+                measure("test class path", System.getProperty("java.class.path"), address);
+                return;
+            }
+
+            measure("shaded jar", jar, address);
+
+            // Trained like the container image, on a stand-in of its own.
+            // Dynamic archives only hold classes loaded from jars
+            Path archive = tempDir.resolve("vault-jce.jsa");
+            launch(jar, StartupProbe.STAND_IN, "-XX:ArchiveClassesAtExit=" + archive);
+            measure("shaded jar, AppCDS", jar, address, "-XX:SharedArchiveFile=" + archive);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
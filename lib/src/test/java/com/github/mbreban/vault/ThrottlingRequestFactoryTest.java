@@ -0,0 +1,286 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+
+import com.github.mbreban.vault.ThrottlingRequestFactory.Retry;
+
+public class ThrottlingRequestFactoryTest {
+
+    static final URI SIGN = URI.create("http://127.0.0.1:8200/v1/transit/sign/my-key");
+    static final URI HEALTH = URI.create("http://127.0.0.1:8200/v1/sys/health");
+    static final URI CREATE = URI.create("http://127.0.0.1:8200/v1/transit/keys/my-key");
+
+    /**
+     * Answers with scripted statuses, an Integer, or throws scripted I/O errors.
+     */
+    static final class ScriptedFactory implements ClientHttpRequestFactory {
+
+        final Deque<Object> script = new ArrayDeque<>();
+        final List<String> bodies = new ArrayList<>();
+
+        ScriptedFactory then(Object outcome) {
+            script.add(outcome);
+            return this;
+        }
+
+        @Override
+        public ClientHttpRequest createRequest(URI uri, HttpMethod method) {
+            HttpHeaders headers = new HttpHeaders();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            return new ClientHttpRequest() {
+
+                @Override
+                public HttpMethod getMethod() {
+                    return method;
+                }
+
+                @Override
+                public URI getURI() {
+                    return uri;
+                }
+
+                @Override
+                public HttpHeaders getHeaders() {
+                    return headers;
+                }
+
+                @Override
+                public OutputStream getBody() {
+                    return body;
+                }
+
+                @Override
+                public ClientHttpResponse execute() throws IOException {
+                    bodies.add(body.toString(StandardCharsets.UTF_8));
+                    Object outcome = script.remove();
+                    if (outcome instanceof IOException e) {
+                        throw e;
+                    }
+                    return response((Integer) outcome);
+                }
+            };
+        }
+
+        static ClientHttpResponse response(int status) {
+            HttpHeaders headers = new HttpHeaders();
+            return new ClientHttpResponse() {
+
+                @Override
+                public HttpStatusCode getStatusCode() {
+                    return HttpStatusCode.valueOf(status);
+                }
+
+                @Override
+                public String getStatusText() {
+                    return "";
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public InputStream getBody() {
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+
+                @Override
+                public HttpHeaders getHeaders() {
+                    return headers;
+                }
+            };
+        }
+    }
+
+    private static ClientHttpResponse send(ThrottlingRequestFactory factory, URI uri, HttpMethod method, String body)
+            throws IOException {
+        ClientHttpRequest request = factory.createRequest(uri, method);
+        request.getBody().write(body.getBytes(StandardCharsets.UTF_8));
+        return request.execute();
+    }
+
+    @Test
+    void testThrottledRequestShouldBeReplayed() throws IOException {
+        ScriptedFactory scripted = new ScriptedFactory().then(429).then(503).then(200);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16);
+        ThrottlingRequestFactory factory = new ThrottlingRequestFactory(scripted, limiter);
+
+        ClientHttpResponse response = send(factory, SIGN, HttpMethod.POST, "{\"input\":\"AA==\"}");
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals(List.of("{\"input\":\"AA==\"}", "{\"input\":\"AA==\"}", "{\"input\":\"AA==\"}"), scripted.bodies);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testThrottledRequestShouldGiveUpAfterMaxAttempts() throws IOException {
+        ScriptedFactory scripted = new ScriptedFactory();
+        for (int i = 0; i < ThrottlingRequestFactory.MAX_ATTEMPTS; i++) {
+            scripted.then(429);
+        }
+        ThrottlingRequestFactory factory = new ThrottlingRequestFactory(scripted, new AdaptiveLimiter());
+
+        ClientHttpResponse response = send(factory, SIGN, HttpMethod.POST, "{}");
+
+        assertEquals(429, response.getStatusCode().value());
+        assertEquals(ThrottlingRequestFactory.MAX_ATTEMPTS, scripted.bodies.size());
+    }
+
+    @Test
+    void testHealthCheckShouldNotBeRetried() throws IOException {
+        ScriptedFactory scripted = new ScriptedFactory().then(503);
+        ThrottlingRequestFactory factory = new ThrottlingRequestFactory(scripted, new AdaptiveLimiter());
+
+        ClientHttpResponse response = send(factory, HEALTH, HttpMethod.GET, "");
+
+        assertEquals(503, response.getStatusCode().value());
+        assertEquals(1, scripted.bodies.size());
+    }
+
+    @Test
+    void testIOErrorShouldOnlyBeRetriedWhenSideEffectFree() throws IOException {
+        ScriptedFactory scripted = new ScriptedFactory().then(new ConnectException("refused")).then(200);
+        ThrottlingRequestFactory factory = new ThrottlingRequestFactory(scripted, new AdaptiveLimiter());
+        assertEquals(200, send(factory, SIGN, HttpMethod.POST, "{}").getStatusCode().value());
+
+        ScriptedFactory create = new ScriptedFactory().then(new ConnectException("refused")).then(200);
+        ThrottlingRequestFactory createFactory = new ThrottlingRequestFactory(create, new AdaptiveLimiter());
+        Assertions.assertThrows(ConnectException.class, () -> {
+            send(createFactory, CREATE, HttpMethod.POST, "{\"type\":\"rsa-2048\"}");
+        });
+        assertEquals(1, create.bodies.size());
+    }
+
+    @Test
+    void testClassify() {
+        assertEquals(Retry.NEVER, ThrottlingRequestFactory.classify(HttpMethod.GET, HEALTH));
+        assertEquals(Retry.ALWAYS, ThrottlingRequestFactory.classify(HttpMethod.GET, CREATE));
+        assertEquals(Retry.ALWAYS, ThrottlingRequestFactory.classify(HttpMethod.POST, SIGN));
+        assertEquals(Retry.ALWAYS, ThrottlingRequestFactory.classify(HttpMethod.POST,
+                URI.create("http://127.0.0.1:8200/v1/transit/random/64")));
+        assertEquals(Retry.THROTTLED, ThrottlingRequestFactory.classify(HttpMethod.POST, CREATE));
+        assertEquals(Retry.THROTTLED, ThrottlingRequestFactory.classify(HttpMethod.POST,
+                URI.create("http://127.0.0.1:8200/v1/transit/keys/my-key/rotate")));
+    }
+
+    @Test
+    void testBackoffShouldHonorRetryAfter() {
+        for (int attempt = 1; attempt <= 8; attempt++) {
+            long delay = ThrottlingRequestFactory.backoffMillis(attempt, null);
+            assertTrue(delay >= 0 && delay <= ThrottlingRequestFactory.MAX_BACKOFF_MILLIS);
+        }
+
+        long delay = ThrottlingRequestFactory.backoffMillis(1, "2");
+        assertTrue(delay >= 2000 && delay <= 2000 + ThrottlingRequestFactory.BASE_BACKOFF_MILLIS);
+    }
+
+    @Test
+    void testLimiterShouldGrowWhileSaturated() throws IOException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.acquire();
+            limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 1_000_000);
+            limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 1_000_000);
+        }
+
+        assertTrue(limiter.getLimit() > 2);
+    }
+
+    @Test
+    void testLimiterShouldShrinkWhenLatencyGrows() throws IOException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10);
+
+        limiter.acquire();
+        limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 1_000_000);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+            limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 10_000_000);
+        }
+
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test
+    void testLimiterShouldNotShrinkOnMixedWorkload() throws IOException {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10);
+
+        // Fast key reads and slow signatures, none of them queueing
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.onSuccess(AdaptiveLimiter.Endpoint.READ, 1_000_000);
+            limiter.acquire();
+            limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 20_000_000);
+        }
+
+        assertEquals(10, limiter.getLimit());
+
+        // Signatures slower than their own baseline still count as queueing
+        limiter.acquire();
+        limiter.onSuccess(AdaptiveLimiter.Endpoint.SIGN, 100_000_000);
+
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test
+    void testEndpointOf() {
+        assertEquals(AdaptiveLimiter.Endpoint.SIGN, ThrottlingRequestFactory.endpointOf(HttpMethod.POST,
+                URI.create("http://vault/v1/transit/sign/my-key/sha2-256")));
+        assertEquals(AdaptiveLimiter.Endpoint.VERIFY, ThrottlingRequestFactory.endpointOf(HttpMethod.POST,
+                URI.create("http://vault/v1/transit/verify/my-key")));
+        assertEquals(AdaptiveLimiter.Endpoint.READ, ThrottlingRequestFactory.endpointOf(HttpMethod.GET,
+                URI.create("http://vault/v1/transit/keys/my-key")));
+        assertEquals(AdaptiveLimiter.Endpoint.LIST, ThrottlingRequestFactory.endpointOf(HttpMethod.GET,
+                URI.create("http://vault/v1/transit/keys?list=true")));
+        assertEquals(AdaptiveLimiter.Endpoint.OTHER, ThrottlingRequestFactory.endpointOf(HttpMethod.POST,
+                URI.create("http://vault/v1/auth/token/renew-self")));
+    }
+
+    @Test
+    void testLimiterShouldBlockAtLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1);
+        limiter.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        waiter.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.onIgnored();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class TransitKeyParserTest {
+
+    static Keyset rsaKeyset;
+    static String response;
+
+    @BeforeAll
+    static void initAll() throws Exception {
+        rsaKeyset = new Keyset.RSA2048();
+
+        VaultKey latest = rsaKeyset.getVaultKey(null);
+        AsymetricKeyVersion akv = latest.getKeyVersion(1);
+
+        Map<String, Object> keys = new LinkedHashMap<>();
+        for (int i = 1; i <= 300; i++) {
+            Map<String, String> version = new LinkedHashMap<>();
+            version.put("certificate_chain", i == 300 ? akv.getCertificateChain() : "");
+            version.put("creation_time", Keyset.keyCreationTime);
+            version.put("name", "rsa-2048");
+            version.put("public_key", i == 300 ? akv.getPublicKey() : "pem-" + i);
+            keys.put(String.valueOf(i), version);
+        }
+
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("allow_plaintext_backup", false);
+        data.put("auto_rotate_period", 0);
+        data.put("deletion_allowed", false);
+        data.put("derived", false);
+        data.put("exportable", false);
+        data.put("imported_key", false);
+        data.put("keys", keys);
+        data.put("latest_version", 300);
+        data.put("min_available_version", 0);
+        data.put("min_decryption_version", 1);
+        data.put("min_encryption_version", 0);
+        data.put("name", rsaKeyset.getName());
+        data.put("supports_decryption", false);
+        data.put("supports_derivation", false);
+        data.put("supports_encryption", false);
+        data.put("supports_signing", true);
+        data.put("type", rsaKeyset.getType());
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("request_id", "b9b7c1f4-0000-0000-0000-000000000000");
+        body.put("lease_id", "");
+        body.put("data", data);
+        body.put("warnings", null);
+
+        response = KeyVersions.MAPPER.writeValueAsString(body);
+    }
+
+    private static InputStream responseStream() {
+        return new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testParseShouldKeepLatestVersionOnly() throws IOException, VaultException {
+        VaultKey key = TransitKeyParser.parse(responseStream(), Client.LATEST_VERSION).build();
+
+        assertEquals(rsaKeyset.getName(), key.getName());
+        assertEquals(rsaKeyset.getType(), key.getType());
+        assertEquals(300, key.getLatestVersion());
+        assertEquals(1, key.getMinDecryptionVersion());
+        assertTrue(key.isSupportsSigning());
+        assertNull(key.getKeyVersion(1));
+        assertNull(key.getKeyVersion(299));
+        assertArrayEquals(rsaKeyset.getPublicKey().getEncoded(), key.getEncoded());
+    }
+
+    @Test
+    void testParseShouldKeepRequestedVersion() throws IOException, VaultException {
+        VaultKey key = TransitKeyParser.parse(responseStream(), 42).build();
+
+        assertEquals("pem-42", key.getKeyVersion(42).getPublicKey());
+        assertNull(key.getKeyVersion(300));
+    }
+
+    @Test
+    void testParseShouldReturnNullWithoutData() throws IOException {
+        InputStream in = new ByteArrayInputStream("{\"errors\":[]}".getBytes(StandardCharsets.UTF_8));
+
+        assertNull(TransitKeyParser.parse(in, Client.LATEST_VERSION));
+    }
+
+    @Test
+    void testParseRevision() throws IOException, VaultException {
+        String chain = rsaKeyset.getVaultKey(null).getKeyVersion(1).getCertificateChain();
+        KeyRevision revision = TransitKeyParser.parseRevision(responseStream());
+
+        assertEquals(300, revision.getLatestVersion());
+        assertEquals(new KeyRevision(300, chain), revision);
+        // Only the certificates count, not their encoding
+        assertEquals(new KeyRevision(300, chain.replace("\n", "\r\n")), revision);
+        assertNotEquals(new KeyRevision(300, null), revision);
+        assertNotEquals(new KeyRevision(299, chain), revision);
+    }
+
+    @Test
+    void testParseRevisionShouldKeepOnlyTheLatestChain() throws IOException, VaultException {
+        String chain = rsaKeyset.getVaultKey(null).getKeyVersion(1).getCertificateChain();
+        String json = "{\"data\":{\"keys\":{"
+                + "\"1\":{\"certificate_chain\":" + KeyVersions.MAPPER.writeValueAsString(chain) + "},"
+                + "\"2\":{\"certificate_chain\":\"\"}},"
+                + "\"latest_version\":2}}";
+        InputStream in = new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+
+        // The chain of an older version is not the chain of the key
+        assertEquals(new KeyRevision(2, ""), TransitKeyParser.parseRevision(in));
+        assertNotEquals(new KeyRevision(2, chain), TransitKeyParser.parseRevision(
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void testParseKeyListShouldKeepServerOrder() throws IOException {
+        String list = "{\"request_id\":\"\",\"data\":{\"keys\":[\"foo\",\"bar\",\"baz\"]},\"wrap_info\":null}";
+        InputStream in = new ByteArrayInputStream(list.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Arrays.asList("foo", "bar", "baz"), TransitKeyParser.parseKeyList(in));
+    }
+
+    @Test
+    void testParseShouldFailWhenResponseIsInvalid() {
+        InputStream in = new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8));
+
+        IOException thrown = Assertions.assertThrows(IOException.class, () -> {
+            TransitKeyParser.parse(in, Client.LATEST_VERSION);
+        });
+        assertEquals("Invalid transit key response", thrown.getMessage());
+    }
+}
@@ -0,0 +1,373 @@
+package com.github.mbreban.vault;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+public class UnixSocketRequestFactoryTest {
+
+    /**
+     * Answers every request with its method, target and body length, alternating
+     * Content-Length and chunked responses, on kept-alive connections.
+     */
+    private static Thread serve(ServerSocketChannel server, AtomicInteger accepted, List<String> requests) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                accepted.incrementAndGet();
+                try (channel) {
+                    InputStream in = Channels.newInputStream(channel);
+                    OutputStream out = Channels.newOutputStream(channel);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1));
+                    String requestLine;
+                    int count = 0;
+                    while ((requestLine = reader.readLine()) != null) {
+                        long length = 0;
+                        boolean chunked = false;
+                        String line;
+                        while (!(line = reader.readLine()).isEmpty()) {
+                            if (line.startsWith("Content-Length: ")) {
+                                length = Long.parseLong(line.substring(16));
+                            } else if (line.equals("Transfer-Encoding: chunked")) {
+                                chunked = true;
+                            }
+                        }
+                        long received = 0;
+                        if (chunked) {
+                            long size;
+                            while ((size = Long.parseLong(reader.readLine(), 16)) > 0) {
+                                received += reader.skip(size);
+                                reader.readLine();
+                            }
+                            reader.readLine();
+                        } else {
+                            received = reader.skip(length);
+                        }
+                        requests.add(requestLine + " " + received);
+
+                        String body = "{\"received\":" + received + "}";
+                        String response;
+                        if (count++ % 2 == 0) {
+                            response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+                        } else {
+                            response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                                    + Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n";
+                        }
+                        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Client went away
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * One side of a connection, scripted by a test.
+     */
+    private interface Script {
+        void run(BufferedReader in, OutputStream out, SocketChannel channel) throws IOException;
+    }
+
+    /**
+     * Runs each script on a connection, in the order they are accepted, and
+     * closes the connection once its script returns.
+     */
+    private static void script(ServerSocketChannel server, AtomicInteger accepted, Script... scripts) {
+        Thread thread = new Thread(() -> {
+            for (Script script : scripts) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                accepted.incrementAndGet();
+                Thread connection = new Thread(() -> {
+                    try (channel) {
+                        InputStream in = Channels.newInputStream(channel);
+                        script.run(new BufferedReader(new InputStreamReader(in, StandardCharsets.ISO_8859_1)),
+                                Channels.newOutputStream(channel), channel);
+                    } catch (IOException e) {
+                        // Client went away
+                    }
+                });
+                connection.setDaemon(true);
+                connection.start();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the request line, or null if the client closed the connection.
+     */
+    private static String readRequest(BufferedReader in) throws IOException {
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return null;
+        }
+        long length = 0;
+        String line;
+        while (!(line = in.readLine()).isEmpty()) {
+            if (line.startsWith("Content-Length: ")) {
+                length = Long.parseLong(line.substring(16));
+            }
+        }
+        in.skip(length);
+        return requestLine;
+    }
+
+    private static void respond(OutputStream out, String body) throws IOException {
+        String response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /**
+     * @return the number of characters the client sent until it closed the connection.
+     */
+    private static long readUntilClosed(BufferedReader in) throws IOException {
+        long count = 0;
+        while (in.read() != -1) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String call(UnixSocketRequestFactory factory, HttpMethod method, String path, byte[] body)
+            throws IOException {
+        ClientHttpRequest request = factory.createRequest(URI.create("http://localhost:8200" + path), method);
+        if (body != null) {
+            request.getHeaders().set("Content-Length", String.valueOf(body.length));
+            request.getBody().write(body);
+        }
+        try (ClientHttpResponse response = request.execute()) {
+            assertEquals(200, response.getStatusCode().value());
+            return new String(response.getBody().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void testRequestsShouldReuseTheConnection(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        AtomicInteger accepted = new AtomicInteger();
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            serve(server, accepted, requests);
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            byte[] large = new byte[UnixSocketRequestFactory.MAX_BUFFERED_BODY * 3 + 17];
+
+            assertEquals("{\"received\":0}", call(factory, HttpMethod.GET, "/v1/transit/keys?list=true", null));
+            assertEquals("{\"received\":5}", call(factory, HttpMethod.POST, "/v1/transit/sign/foo", "hello".getBytes()));
+            assertEquals("{\"received\":" + large.length + "}",
+                    call(factory, HttpMethod.POST, "/v1/transit/sign/foo", large));
+
+            assertEquals(1, accepted.get());
+            assertEquals(1, factory.idleConnections());
+            assertEquals("GET /v1/transit/keys?list=true HTTP/1.1 0", requests.get(0));
+            assertEquals("POST /v1/transit/sign/foo HTTP/1.1 " + large.length, requests.get(2));
+        }
+    }
+
+    @Test
+    void testAbortShouldCloseTheStreamingConnection(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        CountDownLatch closed = new CountDownLatch(1);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Thread thread = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    // Reads the partial request until the client closes the connection
+                    Channels.newInputStream(channel).transferTo(OutputStream.nullOutputStream());
+                    closed.countDown();
+                } catch (IOException e) {
+                    closed.countDown();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            ClientHttpRequest request = factory.createRequest(URI.create("http://localhost:8200/v1/transit/sign/foo"),
+                    HttpMethod.POST);
+            request.getBody().write(new byte[UnixSocketRequestFactory.MAX_BUFFERED_BODY + 1]);
+            ((AbortableRequest) request).abort();
+
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, factory.idleConnections());
+        }
+    }
+
+    @Test
+    void testReusedConnectionClosedByPeerShouldBeRetried(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        AtomicInteger accepted = new AtomicInteger();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            script(server, accepted, (in, out, channel) -> {
+                readRequest(in);
+                respond(out, "first");
+                // Closed once the next request was sent, as an agent timing out the connection would
+                readRequest(in);
+            }, (in, out, channel) -> {
+                readRequest(in);
+                respond(out, "retried");
+                readUntilClosed(in);
+            }, (in, out, channel) -> {
+                readRequest(in);
+            });
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            assertEquals("first", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals("retried", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals(2, accepted.get());
+            factory.close();
+
+            // A new connection the agent closed did not lose a request to a race, it failed
+            UnixSocketRequestFactory other = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            assertThrows(EOFException.class, () -> call(other, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals(3, accepted.get());
+            assertEquals(0, other.idleConnections());
+        }
+    }
+
+    @Test
+    void testConnectionCloseAndUnframedBodiesShouldNotBeReused(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger leftover = new AtomicInteger(-1);
+        CountDownLatch closed = new CountDownLatch(1);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            script(server, accepted, (in, out, channel) -> {
+                readRequest(in);
+                out.write("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 6\r\n\r\nclosed"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                // Left open: the client closes it instead of sending another request
+                leftover.set((int) readUntilClosed(in));
+                closed.countDown();
+            }, (in, out, channel) -> {
+                readRequest(in);
+                // Neither Content-Length nor chunked, the body ends with the connection
+                out.write("HTTP/1.1 200 OK\r\n\r\nuntil-eof".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+            });
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            assertEquals("closed", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, leftover.get());
+
+            assertEquals("until-eof", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals(2, accepted.get());
+            assertEquals(0, factory.idleConnections());
+        }
+    }
+
+    @Test
+    void testCloseShouldDrainAnUnreadResponse(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        AtomicInteger accepted = new AtomicInteger();
+        List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            serve(server, accepted, requests);
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            URI uri = URI.create("http://localhost:8200/v1/transit/keys/foo");
+            // A Content-Length body, then a chunked one, both left unread
+            factory.createRequest(uri, HttpMethod.GET).execute().close();
+            assertEquals(1, factory.idleConnections());
+            factory.createRequest(uri, HttpMethod.GET).execute().close();
+            assertEquals(1, factory.idleConnections());
+
+            // The next response is read from where the skipped ones ended
+            assertEquals("{\"received\":0}", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals(1, accepted.get());
+            assertEquals(3, requests.size());
+        }
+    }
+
+    @Test
+    void testIdleConnectionsClosedByPeerShouldBePruned(@TempDir Path tempDir) throws Exception {
+        Path socket = tempDir.resolve("agent.sock");
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger leftover = new AtomicInteger(-1);
+        CountDownLatch halfClosed = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            script(server, accepted, (in, out, channel) -> {
+                readRequest(in);
+                respond(out, "first");
+                // Closes its side while the connection is idle, but would still read a request
+                channel.shutdownOutput();
+                halfClosed.countDown();
+                leftover.set((int) readUntilClosed(in));
+                closed.countDown();
+            }, (in, out, channel) -> {
+                readRequest(in);
+                respond(out, "second");
+                readUntilClosed(in);
+            });
+
+            UnixSocketRequestFactory factory = UnixSocketRequestFactory.fromAddress("unix://" + socket);
+            assertEquals("first", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertEquals(1, factory.idleConnections());
+            assertTrue(halfClosed.await(5, TimeUnit.SECONDS));
+
+            assertEquals("second", call(factory, HttpMethod.GET, "/v1/transit/keys/foo", null));
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            // Dropped before sending anything on it, not after a failed attempt
+            assertEquals(0, leftover.get());
+            assertEquals(2, accepted.get());
+            assertEquals(1, factory.idleConnections());
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.vault.client.VaultEndpoint;
+import org.springframework.web.client.ResourceAccessException;
+
+public class VaultClientTest {
+
+    static final String ADDR = "http://127.0.0.1:8200";
+
+    @Test
+    void testConcurrentAuthenticateShouldPublishWholeSessions() throws Exception {
+        VaultClient client = new VaultClient(ADDR);
+        VaultClient.Session initial = client.session();
+
+        int readers = 8;
+        int swaps = 2000;
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(readers);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> {
+                started.countDown();
+                long last = -1;
+                try {
+                    while (!done.get()) {
+                        VaultClient.Session session = client.session();
+                        assertNotNull(session.template);
+                        // Sessions are published in order, a reader never goes back
+                        if (session.generation < last) {
+                            throw new AssertionError("generation went back from " + last + " to " + session.generation);
+                        }
+                        last = session.generation;
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        started.await();
+
+        // Writers race with each other and with the readers
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < swaps / 2; i++) {
+                    client.authenticate("token-" + i);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, initial.generation);
+        assertEquals(swaps, client.session().generation);
+    }
+
+    @Test
+    void testSignShouldStreamLargeMessages() {
+        long size = 64L << 20;
+        AtomicLong read = new AtomicLong();
+        AtomicLong written = new AtomicLong();
+        AtomicLong maxLag = new AtomicLong();
+        AtomicReference<String> token = new AtomicReference<>();
+
+        InputStream message = zeros(size, read);
+
+        // Counts the body instead of keeping it
+        ClientHttpRequestFactory transport = (uri, method) -> new ClientHttpRequest() {
+
+            final HttpHeaders headers = new HttpHeaders();
+
+            @Override
+            public HttpMethod getMethod() {
+                return method;
+            }
+
+            @Override
+            public URI getURI() {
+                return uri;
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+
+            @Override
+            public OutputStream getBody() {
+                return new OutputStream() {
+
+                    @Override
+                    public void write(int b) {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        // Message bytes read but not sent yet, 4 Base64 characters per 3 bytes
+                        long sent = written.addAndGet(len) * 3 / 4;
+                        maxLag.accumulateAndGet(read.get() - sent, Math::max);
+                    }
+                };
+            }
+
+            @Override
+            public ClientHttpResponse execute() {
+                token.set(headers.getFirst("X-Vault-Token"));
+                return response("{\"data\":{\"signature\":\"vault:v1:AQID\"}}");
+            }
+        };
+
+        VaultClient client = new VaultClient(VaultEndpoint.create("localhost", 8200), "transit", transport);
+        client.authenticate("token");
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, client.sign("my-key", message));
+        assertEquals("token", token.get());
+        assertEquals(size, read.get());
+        assertTrue(written.get() > size * 4 / 3);
+        assertTrue(maxLag.get() <= ThrottlingRequestFactory.MAX_REPLAY_BODY, "buffered " + maxLag.get() + " bytes");
+    }
+
+    @Test
+    void testSignShouldStreamLargeMessagesThroughTheDefaultTransport() throws Exception {
+        long size = 64L << 20;
+        AtomicLong read = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        AtomicLong maxLag = new AtomicLong();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/transit/sign/my-key", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    // Message bytes read but not received yet, 4 Base64 characters per 3 bytes
+                    long sent = received.addAndGet(n) * 3 / 4;
+                    maxLag.accumulateAndGet(read.get() - sent, Math::max);
+                }
+            }
+            byte[] body = "{\"data\":{\"signature\":\"vault:v1:AQID\"}}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            // The transport a client builds for an https or http address
+            VaultClient client = new VaultClient("http://127.0.0.1:" + server.getAddress().getPort());
+            client.authenticate("token");
+
+            assertArrayEquals(new byte[] { 1, 2, 3 }, client.sign("my-key", zeros(size, read)));
+            assertEquals(size, read.get());
+            assertTrue(received.get() > size * 4 / 3);
+            // Only socket buffers are in flight, not the whole message
+            assertTrue(maxLag.get() < size / 4, "buffered " + maxLag.get() + " bytes");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Zeros, generated as they are read.
+     */
+    static InputStream zeros(long size, AtomicLong read) {
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                long left = size - read.get();
+                if (left <= 0) {
+                    return -1;
+                }
+                int n = (int) Math.min(len, left);
+                Arrays.fill(b, off, off + n, (byte) 0);
+                read.addAndGet(n);
+                return n;
+            }
+        };
+    }
+
+    @Test
+    void testFailedMessageShouldGiveBackItsSlotAndConnection() {
+        AtomicInteger opened = new AtomicInteger();
+        AtomicInteger aborted = new AtomicInteger();
+
+        ClientHttpRequestFactory transport = (uri, method) -> {
+            opened.incrementAndGet();
+            return new AbortableRequest() {
+
+                final HttpHeaders headers = new HttpHeaders();
+
+                @Override
+                public HttpMethod getMethod() {
+                    return method;
+                }
+
+                @Override
+                public URI getURI() {
+                    return uri;
+                }
+
+                @Override
+                public HttpHeaders getHeaders() {
+                    return headers;
+                }
+
+                @Override
+                public OutputStream getBody() {
+                    return OutputStream.nullOutputStream();
+                }
+
+                @Override
+                public ClientHttpResponse execute() {
+                    throw new AssertionError("A failed message must not be sent");
+                }
+
+                @Override
+                public void abort() {
+                    aborted.incrementAndGet();
+                }
+            };
+        };
+
+        VaultClient client = new VaultClient(VaultEndpoint.create("localhost", 8200), "transit", transport);
+        AdaptiveLimiter limiter = client.mRequestFactory.getLimiter();
+
+        // More failures than the limit, so a lost slot would block the next call
+        for (int i = 0; i < limiter.getLimit() * 2; i++) {
+            Assertions.assertThrows(ResourceAccessException.class, () -> {
+                client.sign("my-key", failingAfter(ThrottlingRequestFactory.MAX_REPLAY_BODY));
+            });
+            assertEquals(0, limiter.getInFlight());
+        }
+        assertTrue(opened.get() > 0);
+        assertEquals(opened.get(), aborted.get());
+    }
+
+    /**
+     * Zeros up to the given size, then a read error.
+     */
+    static InputStream failingAfter(long size) {
+        return new InputStream() {
+
+            long read;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read >= size) {
+                    throw new IOException("Message could not be read");
+                }
+                int n = (int) Math.min(len, size - read);
+                Arrays.fill(b, off, off + n, (byte) 0);
+                read += n;
+                return n;
+            }
+        };
+    }
+
+    private static ClientHttpResponse response(String body) {
+        HttpHeaders headers = new HttpHeaders();
+        return new ClientHttpResponse() {
+
+            @Override
+            public HttpStatusCode getStatusCode() {
+                return HttpStatusCode.valueOf(200);
+            }
+
+            @Override
+            public String getStatusText() {
+                return "OK";
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        };
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+@ExtendWith(MockitoExtension.class)
+public class VaultEd25519SignatureTest {
+
+    @Mock
+    Client mockClient;
+
+    private final byte[] signatureBytes = new byte[] { 0x01, 0x02 };
+
+    static PublicKey ed25519PublicKey;
+
+    @BeforeAll
+    static void initAll() throws Exception {
+        ed25519PublicKey = KeyPairGenerator.getInstance("Ed25519").generateKeyPair().getPublic();
+    }
+
+    private VaultKey getVaultKey(Client client) throws VaultException {
+        // The raw key is the last 32 bytes of the X.509 encoding
+        byte[] encoded = ed25519PublicKey.getEncoded();
+        byte[] raw = Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length);
+
+        Map<String, String> one = new HashMap<>();
+        one.put("name", "ed25519");
+        one.put("public_key", Base64.getEncoder().encodeToString(raw));
+
+        Map<String, Object> keys = new HashMap<>();
+        keys.put("1", one);
+
+        return new VaultKey.Builder()
+                .setClient(client)
+                .setName("my-ed25519")
+                .setType("ed25519")
+                .setKeys(keys)
+                .setLatestVersion(1)
+                .build();
+    }
+
+    private static byte[] message(int length) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    private void stubSign(byte[] expected) {
+        when(mockClient.sign(eq("my-ed25519"), any(InputStream.class))).thenAnswer(invocation -> {
+            InputStream in = invocation.getArgument(1);
+            assertArrayEquals(expected, in.readAllBytes());
+            return signatureBytes;
+        });
+    }
+
+    @Test
+    void testGetEncodedShouldMatchX509Encoding() throws VaultException {
+        assertArrayEquals(ed25519PublicKey.getEncoded(), getVaultKey(null).getEncoded());
+    }
+
+    @Test
+    void testEngineSignShouldSucceed() throws Exception {
+        byte[] message = message(100);
+        stubSign(message);
+
+        VaultEd25519Signature signature = new VaultEd25519Signature();
+        signature.engineInitSign(getVaultKey(mockClient));
+        signature.engineUpdate(message, 0, message.length);
+
+        assertArrayEquals(signatureBytes, signature.engineSign());
+    }
+
+    @Test
+    void testEngineSignShouldSucceedWhenInputIsSpilled() throws Exception {
+        byte[] message = message(10_000);
+        stubSign(message);
+
+        VaultEd25519Signature signature = new VaultEd25519Signature(1024);
+        signature.engineInitSign(getVaultKey(mockClient));
+        for (int off = 0; off < message.length; off += 333) {
+            signature.engineUpdate(message, off, Math.min(333, message.length - off));
+        }
+
+        assertArrayEquals(signatureBytes, signature.engineSign());
+    }
+
+    @Test
+    void testEngineInitSignShouldFailWhenTypeIsInvalid() {
+        InvalidKeyException thrown = Assertions.assertThrows(InvalidKeyException.class, () -> {
+            VaultEd25519Signature signature = new VaultEd25519Signature();
+            signature.engineInitSign(new Keyset.RSA2048().getVaultKey(null));
+        });
+        assertEquals("Signature initialized as ED25519 (not rsa-2048)", thrown.getMessage());
+    }
+
+    @Test
+    void testSpillBufferShouldMoveToFileAboveThreshold() throws IOException {
+        byte[] message = message(100);
+        try (SpillBuffer buffer = new SpillBuffer(64)) {
+            buffer.write(message, 0, 60);
+            assertFalse(buffer.isSpilled());
+
+            buffer.write(message, 60, 40);
+            assertTrue(buffer.isSpilled());
+            assertEquals(100, buffer.size());
+            try (InputStream in = buffer.openStream()) {
+                assertArrayEquals(message, in.readAllBytes());
+            }
+
+            buffer.reset();
+            assertFalse(buffer.isSpilled());
+            assertEquals(0, buffer.size());
+        }
+    }
+
+    @Test
+    void testWriteMessageRequest() throws IOException {
+        byte[] message = message(5000);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        VaultClient.writeMessageRequest(body, new ByteArrayInputStream(message), signatureBytes);
+
+        JsonNode request = KeyVersions.MAPPER.readTree(body.toByteArray());
+        assertArrayEquals(message, Base64.getDecoder().decode(request.get("input").asText()));
+        assertEquals("vault:v1:AQI=", request.get("signature").asText());
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.mbreban.vault;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VaultEnvelopeCipherTest {
+
+    static final String KEY_NAME = "my-aes";
+    static final String WRAPPED = "vault:v1:d3JhcHBlZC1kYXRhLWtleQ==";
+
+    @Mock
+    Client mockClient;
+
+    VaultSecretKey key;
+
+    final byte[] plaintext = "hello envelope".getBytes(StandardCharsets.UTF_8);
+
+    static byte[] dataKey() {
+        byte[] dataKey = new byte[32];
+        for (int i = 0; i < dataKey.length; i++) {
+            dataKey[i] = (byte) i;
+        }
+        return dataKey;
+    }
+
+    @BeforeEach
+    void initEach() {
+        VaultEnvelopeCipher.DATA_KEYS.clear();
+        VaultEnvelopeCipher.ENCRYPTION_KEYS.clear();
+        key = new VaultSecretKey(mockClient, KEY_NAME);
+    }
+
+    private byte[] encrypt() throws Exception {
+        when(mockClient.generateDataKey(KEY_NAME, 256)).thenReturn(new VaultDataKey(dataKey(), WRAPPED));
+
+        Cipher cipher = Cipher.getInstance("VaultEnvelope", new VaultProvider());
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        cipher.updateAAD(new byte[] { 0x01 });
+        return cipher.doFinal(plaintext);
+    }
+
+    private byte[] decrypt(byte[] envelope) throws Exception {
+        Cipher cipher = Cipher.getInstance("VaultEnvelope", new VaultProvider());
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        cipher.updateAAD(new byte[] { 0x01 });
+        cipher.update(envelope, 0, 10);
+        return cipher.doFinal(envelope, 10, envelope.length - 10);
+    }
+
+    @Test
+    void testDecryptShouldUnwrapDataKeyOnce() throws Exception {
+        byte[] envelope = encrypt();
+        VaultEnvelopeCipher.DATA_KEYS.clear();
+        when(mockClient.decrypt(KEY_NAME, WRAPPED)).thenReturn(dataKey());
+
+        assertArrayEquals(plaintext, decrypt(envelope));
+        assertArrayEquals(plaintext, decrypt(envelope));
+
+        verify(mockClient, times(1)).decrypt(KEY_NAME, WRAPPED);
+    }
+
+    @Test
+    void testDecryptShouldNotCallVaultForLocallySealedKeys() throws Exception {
+        byte[] envelope = encrypt();
+
+        assertArrayEquals(plaintext, decrypt(envelope));
+
+        verify(mockClient, times(0)).decrypt(KEY_NAME, WRAPPED);
+    }
+
+    @Test
+    void testEncryptShouldReuseDataKey() throws Exception {
+        List<byte[]> envelopes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            envelopes.add(encrypt());
+        }
+        VaultEnvelopeCipher.DATA_KEYS.clear();
+        when(mockClient.decrypt(KEY_NAME, WRAPPED)).thenReturn(dataKey());
+
+        for (byte[] envelope : envelopes) {
+            assertArrayEquals(plaintext, decrypt(envelope));
+        }
+
+        verify(mockClient, times(1)).generateDataKey(KEY_NAME, 256);
+        verify(mockClient, times(1)).decrypt(KEY_NAME, WRAPPED);
+        // Same data key, fresh IV
+        int ivOffset = 2 + 2 + WRAPPED.length();
+        assertEquals(10, envelopes.stream()
+                .map(e -> Arrays.toString(Arrays.copyOfRange(e, ivOffset, ivOffset + 12)))
+                .distinct()
+                .count());
+    }
+
+    @Test
+    void testEncryptionKeyCacheShouldBoundDataKeyUse() {
+        VaultDataKey dataKey = new VaultDataKey(dataKey(), WRAPPED);
+
+        EncryptionKeyCache byMessages = new EncryptionKeyCache(2, Long.MAX_VALUE, Long.MAX_VALUE);
+        byMessages.put(mockClient, KEY_NAME, dataKey, 0);
+        assertNotNull(byMessages.lease(mockClient, KEY_NAME, 0));
+        assertNull(byMessages.lease(mockClient, KEY_NAME, 0));
+        assertEquals(0, byMessages.size());
+
+        EncryptionKeyCache byBytes = new EncryptionKeyCache(Long.MAX_VALUE, 100, Long.MAX_VALUE);
+        byBytes.put(mockClient, KEY_NAME, dataKey, 0).sealed(100);
+        assertNull(byBytes.lease(mockClient, KEY_NAME, 0));
+
+        EncryptionKeyCache byTime = new EncryptionKeyCache(Long.MAX_VALUE, Long.MAX_VALUE, 100);
+        byTime.put(mockClient, KEY_NAME, dataKey, 0);
+        assertArrayEquals(dataKey(), byTime.lease(mockClient, KEY_NAME, 99).plaintext);
+        assertNull(byTime.lease(mockClient, KEY_NAME, 100));
+    }
+
+    @Test
+    void testDecryptShouldFailWhenTampered() throws Exception {
+        byte[] envelope = encrypt();
+        envelope[envelope.length - 1] ^= 0x01;
+
+        Assertions.assertThrows(AEADBadTagException.class, () -> {
+            decrypt(envelope);
+        });
+    }
+
+    @Test
+    void testInitShouldFailWhenKeyIsNotAVaultKey() {
+        VaultEnvelopeCipher cipher = new VaultEnvelopeCipher();
+
+        InvalidKeyException thrown = Assertions.assertThrows(InvalidKeyException.class, () -> {
+            cipher.engineInit(Cipher.ENCRYPT_MODE, new SecretKeySpec(dataKey(), "AES"), null);
+        });
+        assertEquals("Key must be a VaultSecretKey", thrown.getMessage());
+    }
+
+    @Test
+    void testDataKeyCacheShouldEvictLeastRecentlyUsed() {
+        DataKeyCache cache = new DataKeyCache(2, 1024, Long.MAX_VALUE);
+        cache.put(mockClient, KEY_NAME, "a", dataKey(), 0);
+        cache.put(mockClient, KEY_NAME, "b", dataKey(), 0);
+        cache.get(mockClient, KEY_NAME, "a", 0);
+        cache.put(mockClient, KEY_NAME, "c", dataKey(), 0);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(mockClient, KEY_NAME, "b", 0));
+        assertArrayEquals(dataKey(), cache.get(mockClient, KEY_NAME, "a", 0));
+    }
+
+    @Test
+    void testDataKeyCacheShouldExpireEntries() {
+        DataKeyCache cache = new DataKeyCache(2, 1024, 100);
+        cache.put(mockClient, KEY_NAME, "a", dataKey(), 0);
+
+        assertArrayEquals(dataKey(), cache.get(mockClient, KEY_NAME, "a", 99));
+        assertNull(cache.get(mockClient, KEY_NAME, "a", 100));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testDataKeyCachesShouldSweepExpiredEntries() {
+        DataKeyCache dataKeys = new DataKeyCache(16, 1024, 100);
+        dataKeys.put(mockClient, KEY_NAME, "a", dataKey(), 0);
+        dataKeys.put(mockClient, "other", "b", dataKey(), 100);
+        assertEquals(1, dataKeys.size());
+
+        EncryptionKeyCache encryptionKeys = new EncryptionKeyCache(16, Long.MAX_VALUE, 100);
+        encryptionKeys.put(mockClient, KEY_NAME, new VaultDataKey(dataKey(), WRAPPED), 0);
+        assertNull(encryptionKeys.lease(mockClient, "other", 100));
+        assertEquals(0, encryptionKeys.size());
+    }
+
+    @Test
+    void testReleasedClientShouldDropItsDataKeys() throws Exception {
+        SharedClient shared = new SharedClient(new ClientRegistry(address -> mockClient, Duration.ZERO),
+                "http://127.0.0.1:8200");
+        key = new VaultSecretKey(shared, KEY_NAME);
+        decrypt(encrypt());
+        VaultEnvelopeCipher.DATA_KEYS.put(mockClient, KEY_NAME, WRAPPED, dataKey(), System.nanoTime());
+        assertEquals(1, VaultEnvelopeCipher.ENCRYPTION_KEYS.size());
+        assertEquals(2, VaultEnvelopeCipher.DATA_KEYS.size());
+
+        shared.release();
+
+        assertEquals(0, VaultEnvelopeCipher.ENCRYPTION_KEYS.size());
+        // Only the keys of the released client are dropped
+        assertEquals(1, VaultEnvelopeCipher.DATA_KEYS.size());
+    }
+
+    @Test
+    void testDataKeyCachesShouldNotKeepClientsAlive() throws Exception {
+        DataKeyCache dataKeys = new DataKeyCache(16, 1024, Long.MAX_VALUE);
+        EncryptionKeyCache encryptionKeys = new EncryptionKeyCache(16, Long.MAX_VALUE, Long.MAX_VALUE);
+        WeakReference<Client> client = cacheWithNewClient(dataKeys, encryptionKeys);
+
+        for (int i = 0; i < 500 && client.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(client.get());
+
+        // Collected clients are swept on the next put
+        dataKeys.put(mockClient, KEY_NAME, "b", dataKey(), 0);
+        encryptionKeys.put(mockClient, KEY_NAME, new VaultDataKey(dataKey(), WRAPPED), 0);
+        assertEquals(1, dataKeys.size());
+        assertEquals(1, encryptionKeys.size());
+    }
+
+    private static WeakReference<Client> cacheWithNewClient(DataKeyCache dataKeys, EncryptionKeyCache encryptionKeys) {
+        Client client = new SharedClient(new ClientRegistry(address -> null, Duration.ZERO), "http://127.0.0.1:8200");
+        dataKeys.put(client, KEY_NAME, "a", dataKey(), 0);
+        encryptionKeys.put(client, KEY_NAME, new VaultDataKey(dataKey(), WRAPPED), 0);
+        return new WeakReference<>(client);
+    }
+}
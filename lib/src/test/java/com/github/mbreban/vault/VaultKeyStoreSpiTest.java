@@ -1,16 +1,26 @@
 package com.github.mbreban.vault;
 
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -24,7 +34,12 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -75,7 +90,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineContainsAliasShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         Boolean present = ks.engineContainsAlias(rsaKeyset.getName());
         assertTrue(present);
@@ -96,7 +111,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineGetCertificateShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         Certificate expCert = rsaKeyset.getCertificate();
         Certificate cert = ks.engineGetCertificate(rsaKeyset.getName());
@@ -118,7 +133,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineGetCertificateChainShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         Certificate[] expCerts = rsaKeyset.getCertificateChain();
         Certificate[] certs = ks.engineGetCertificateChain(rsaKeyset.getName());
@@ -133,7 +148,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineGetCreationDateShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         Date date = ks.engineGetCreationDate(rsaKeyset.getName());
         assertEquals(Keyset.rsaCreationTimeDate, date);
@@ -147,7 +162,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineGetKeyShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         try {
             Key key = ks.engineGetKey(rsaKeyset.getName(), null);
@@ -175,7 +190,7 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineIsKeyEntryShouldSucceed() {
-        when(mockClient.read(rsaKeyset.getName())).thenReturn(rsaVaultKey);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
 
         Boolean present = ks.engineContainsAlias(rsaKeyset.getName());
         assertTrue(present);
@@ -273,6 +288,129 @@ public class VaultKeyStoreSpiTest {
         assertEquals("Vault version is too old; use version 1.15 or higher", thrown.getMessage());
     }
 
+    @Test
+    void testEngineLoadShouldRestoreSnapshot(@TempDir Path tempDir) throws Exception {
+        VaultStatus status = new VaultStatus.Builder()
+                .setInitialized(true)
+                .setSealed(false)
+                .setVersion("1.15")
+                .build();
+        when(mockClient.status()).thenReturn(status);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+
+        Path snapshot = tempDir.resolve("keystore.snapshot");
+        ks.setSnapshotPath(snapshot);
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+        // Pending rewrites are flushed on close
+        ks.close();
+        assertTrue(Files.exists(snapshot));
+
+        // Only the background revalidation may read the key, once the lookups are done
+        Client restoredClient = mock(Client.class);
+        when(restoredClient.status()).thenReturn(status);
+        CountDownLatch looked = new CountDownLatch(1);
+        CountDownLatch revalidated = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            looked.await(30, TimeUnit.SECONDS);
+            revalidated.countDown();
+            return rsaVaultKey;
+        }).when(restoredClient).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+
+        VaultKeyStoreSpi restored = new VaultKeyStoreSpi(restoredClient);
+        restored.setSnapshotPath(snapshot);
+        restored.engineLoad(null, null);
+
+        assertArrayEquals(rsaKeyset.getCertificateChain(), restored.engineGetCertificateChain(rsaKeyset.getName()));
+        assertEquals(rsaKeyset.getName(), ((VaultKey) restored.engineGetKey(rsaKeyset.getName(), null)).getName());
+        looked.countDown();
+
+        assertTrue(revalidated.await(30, TimeUnit.SECONDS));
+        verify(restoredClient, times(1)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testPollRotationsShouldKeepUnchangedKeys() {
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+        when(mockClient.revision(rsaKeyset.getName())).thenReturn(KeyRevision.of(rsaVaultKey));
+
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+        assertEquals(0, ks.pollRotations());
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+
+        verify(mockClient, times(1)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testPollRotationsShouldRefreshRotatedKeys() throws Exception {
+        VaultKey rotated = new Keyset.RSA3072().getVaultKey(null);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+        when(mockClient.revision(rsaKeyset.getName()))
+                .thenReturn(new KeyRevision(rsaVaultKey.getLatestVersion() + 1, null));
+
+        List<String> notified = new ArrayList<>();
+        ks.addKeyRotationListener((alias, key) -> notified.add(alias));
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rotated);
+        assertEquals(1, ks.pollRotations());
+
+        assertEquals(Collections.singletonList(rsaKeyset.getName()), notified);
+        assertEquals(rotated, ks.engineGetKey(rsaKeyset.getName(), null));
+    }
+
+    @Test
+    void testPollRotationsShouldRefreshCertificateSetAfterRotation() throws Exception {
+        // Rotated to version 2, and the certificate of version 2 set afterwards
+        String publicKey = rsaVaultKey.getKeyVersion(1).getPublicKey();
+        Map<String, String> version = new HashMap<>();
+        version.put("creation_time", Keyset.keyCreationTime);
+        version.put("name", rsaKeyset.getType());
+        version.put("public_key", publicKey);
+        VaultKey rotated = new VaultKey.Builder()
+                .setName(rsaKeyset.getName())
+                .setType(rsaKeyset.getType())
+                .setKeys(Collections.singletonMap("2", new HashMap<>(version)))
+                .setLatestVersion(2)
+                .setSupportsSigning(true)
+                .build();
+        version.put("certificate_chain", rsaVaultKey.getKeyVersion(1).getCertificateChain());
+        VaultKey certified = new VaultKey.Builder()
+                .setName(rsaKeyset.getName())
+                .setType(rsaKeyset.getType())
+                .setKeys(Collections.singletonMap("2", version))
+                .setLatestVersion(2)
+                .setSupportsSigning(true)
+                .build();
+
+        when(mockClient.list()).thenReturn(Arrays.asList(rsaKeyset.getName()));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rotated);
+        when(mockClient.revision(rsaKeyset.getName())).thenReturn(KeyRevision.of(rotated));
+        ks.setAliasFilter(AliasFilter.parse("certificate"));
+
+        assertEquals(0, ks.engineGetCertificateChain(rsaKeyset.getName()).length);
+        assertEquals(0, ks.engineSize());
+        assertEquals(0, ks.pollRotations());
+
+        when(mockClient.revision(rsaKeyset.getName())).thenReturn(KeyRevision.of(certified));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(certified);
+        assertEquals(1, ks.pollRotations());
+
+        assertArrayEquals(rsaKeyset.getCertificateChain(), ks.engineGetCertificateChain(rsaKeyset.getName()));
+        assertEquals(1, ks.engineSize());
+    }
+
+    @Test
+    void testPollRotationsShouldDropDeletedKeys() {
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+        when(mockClient.revision(rsaKeyset.getName())).thenReturn(null);
+
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+        assertEquals(1, ks.pollRotations());
+        ks.engineContainsAlias(rsaKeyset.getName());
+
+        verify(mockClient, times(2)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+    }
+
     @Test
     void testEngineSetCertificateEntry() {
         Assertions.assertThrows(UnsupportedOperationException.class, () -> {
@@ -289,9 +427,35 @@ public class VaultKeyStoreSpiTest {
 
     @Test
     void testEngineSize() {
-        Assertions.assertThrows(UnsupportedOperationException.class, () -> {
-            ks.engineSize();
-        });
+        List<String> keyList = Arrays.asList("foo", "bar", "baz");
+        when(mockClient.list()).thenReturn(keyList);
+
+        assertEquals(3, ks.engineSize());
+    }
+
+    @Test
+    void testEngineSizeShouldReuseListing() {
+        List<String> keyList = Arrays.asList("foo", "bar", "baz");
+        when(mockClient.list()).thenReturn(keyList);
+
+        ks.engineSize();
+        List<String> aliasList = Collections.list(ks.engineAliases());
+        assertEquals(keyList, aliasList);
+        assertEquals(3, ks.engineSize());
+
+        verify(mockClient, times(1)).list();
+    }
+
+    @Test
+    void testEngineSizeShouldRelistWhenExpired() {
+        List<String> keyList = Arrays.asList("foo", "bar", "baz");
+        when(mockClient.list()).thenReturn(keyList);
+
+        ks.setListingTtl(Duration.ZERO);
+        ks.engineSize();
+        ks.engineSize();
+
+        verify(mockClient, times(2)).list();
     }
 
     @Test
@@ -300,4 +464,263 @@ public class VaultKeyStoreSpiTest {
             ks.engineStore(null);
         });
     }
+
+    @Test
+    void testConcurrentEngineGetKeyShouldReadOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenAnswer(invocation -> {
+            release.await();
+            return rsaVaultKey;
+        });
+
+        List<Thread> threads = new ArrayList<>();
+        List<Key> keys = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 16; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    keys.add(ks.engineGetKey(rsaKeyset.getName(), null));
+                } catch (NoSuchAlgorithmException | UnrecoverableKeyException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        // Let every thread reach the in-flight read
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(16, keys.size());
+        for (Key key : keys) {
+            assertEquals(rsaVaultKey, key);
+        }
+        verify(mockClient, times(1)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testSingleFlightShouldShareFailures() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread leader = new Thread(() -> {
+            try {
+                flight.execute("foo", () -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("sealed");
+                });
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        });
+        leader.start();
+        started.await();
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            release.countDown();
+        });
+        releaser.start();
+
+        IllegalStateException thrown = Assertions.assertThrows(IllegalStateException.class, () -> {
+            flight.execute("foo", () -> "never called");
+        });
+        assertEquals("sealed", thrown.getMessage());
+
+        leader.join();
+        assertEquals(0, flight.size());
+        assertEquals("bar", flight.execute("foo", () -> "bar"));
+    }
+
+    @Test
+    void testEngineContainsAliasShouldCacheMissingAliases() {
+        assertFalse(ks.engineContainsAlias("missing"));
+        assertFalse(ks.engineContainsAlias("missing"));
+        assertFalse(ks.engineIsKeyEntry("missing"));
+
+        verify(mockClient, times(1)).read("missing", Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testEngineContainsAliasShouldExpireMissingAliases() {
+        ks.setMissingTtl(Duration.ZERO);
+
+        assertFalse(ks.engineContainsAlias("missing"));
+        assertFalse(ks.engineContainsAlias("missing"));
+
+        verify(mockClient, times(2)).read("missing", Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testEngineContainsAliasShouldUseListing() {
+        when(mockClient.list()).thenReturn(Arrays.asList(rsaKeyset.getName(), "foo"));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+        Collections.list(ks.engineAliases());
+
+        assertFalse(ks.engineContainsAlias("bar"));
+        assertTrue(ks.engineContainsAlias(rsaKeyset.getName()));
+
+        verify(mockClient, times(0)).read("bar", Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testEngineLoadShouldPrefetchMatchingKeys() throws Exception {
+        VaultStatus status = new VaultStatus.Builder()
+                .setInitialized(true)
+                .setSealed(false)
+                .setVersion("1.15")
+                .build();
+        when(mockClient.status()).thenReturn(status);
+        when(mockClient.list()).thenReturn(Arrays.asList(rsaKeyset.getName(), "other"));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+
+        ks.setPrefetch(rsaKeyset.getName().substring(0, 2) + "*");
+        ks.engineLoad(null, null);
+
+        assertEquals(rsaVaultKey, ks.engineGetKey(rsaKeyset.getName(), null));
+        assertArrayEquals(rsaKeyset.getCertificateChain(), ks.engineGetCertificateChain(rsaKeyset.getName()));
+        verify(mockClient, times(1)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+        verify(mockClient, times(0)).read("other", Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testEngineAliasesShouldKeepMatchingKeys() {
+        when(mockClient.list()).thenReturn(Arrays.asList("aes", rsaKeyset.getName()));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+
+        ks.setAliasFilter(AliasFilter.parse("signing,certificate,type:" + rsaVaultKey.getType()));
+        assertEquals(Arrays.asList(rsaKeyset.getName()), Collections.list(ks.engineAliases()));
+        assertEquals(1, ks.engineSize());
+
+        ks.setAliasFilter(AliasFilter.parse("type:ed25519"));
+        assertEquals(0, ks.engineSize());
+
+        // Classifications are reused, including for keys VaultKey does not support
+        verify(mockClient, times(1)).read("aes", Client.LATEST_VERSION);
+        verify(mockClient, times(1)).read(rsaKeyset.getName(), Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testUnsupportedKeysShouldBeClassifiedFromTheirType() {
+        when(mockClient.list()).thenReturn(Arrays.asList("aes", rsaKeyset.getName()));
+        when(mockClient.read("aes", Client.LATEST_VERSION))
+                .thenThrow(new UnsupportedKeyTypeException("aes", "aes256-gcm96"));
+        when(mockClient.read(rsaKeyset.getName(), Client.LATEST_VERSION)).thenReturn(rsaVaultKey);
+
+        ks.setAliasFilter(AliasFilter.parse("type:aes256-gcm96"));
+        assertEquals(0, ks.engineSize());
+        ks.setAliasFilter(AliasFilter.parse("type:" + rsaVaultKey.getType()));
+        assertEquals(Arrays.asList(rsaKeyset.getName()), Collections.list(ks.engineAliases()));
+
+        // Exists but is not an entry, and is not looked up again as missing
+        assertFalse(ks.engineContainsAlias("aes"));
+        assertFalse(ks.engineIsKeyEntry("aes"));
+        verify(mockClient, times(1)).read("aes", Client.LATEST_VERSION);
+    }
+
+    @Test
+    void testEngineLoadShouldAuthenticateFromTokenSink(@TempDir Path tempDir) throws Exception {
+        VaultStatus status = new VaultStatus.Builder()
+                .setInitialized(true)
+                .setSealed(false)
+                .setVersion("1.15")
+                .build();
+        when(mockClient.status()).thenReturn(status);
+
+        Path sink = tempDir.resolve("token");
+        Files.writeString(sink, "token-1\n");
+        ks.setTokenSink(sink);
+        ks.engineLoad(null, null);
+        verify(mockClient, times(1)).authenticate("token-1");
+
+        // Written aside then moved, like the agent does
+        CountDownLatch renewed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            renewed.countDown();
+            return null;
+        }).when(mockClient).authenticate("token-2");
+        Path next = tempDir.resolve("token.tmp");
+        Files.writeString(next, "token-2\n");
+        Files.move(next, sink, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(renewed.await(30, TimeUnit.SECONDS));
+        ks.close();
+    }
+
+    private static VaultStatus unsealedStatus() {
+        return new VaultStatus.Builder()
+                .setInitialized(true)
+                .setSealed(false)
+                .setVersion("1.15")
+                .build();
+    }
+
+    private static ClientRegistry newRegistry(List<Client> created) {
+        return new ClientRegistry(address -> {
+            Client client = mock(Client.class);
+            try {
+                when(client.status()).thenReturn(unsealedStatus());
+            } catch (VaultException e) {
+                throw new IllegalStateException(e);
+            }
+            created.add(client);
+            return client;
+        }, Duration.ZERO);
+    }
+
+    @Test
+    void testStopRotationWatcherShouldKeepTheClient() {
+        List<Client> created = new ArrayList<>();
+        ClientRegistry registry = newRegistry(created);
+        VaultKeyStoreSpi spi = new VaultKeyStoreSpi(new SharedClient(registry, "http://127.0.0.1:8200"));
+
+        spi.startRotationWatcher(Duration.ofHours(1));
+        spi.stopRotationWatcher();
+        spi.startRotationWatcher(Duration.ofHours(1));
+        spi.engineSize();
+
+        assertEquals(1, registry.size());
+        assertEquals(1, created.size());
+        spi.close();
+        assertEquals(0, registry.size());
+    }
+
+    // Loaded and left running, without close()
+    private static void loadAndDrop(ClientRegistry registry, Path sink) throws Exception {
+        VaultKeyStoreSpi spi = new VaultKeyStoreSpi(new SharedClient(registry, "http://127.0.0.1:8200"));
+        spi.setTokenSink(sink);
+        spi.setEventStream(URI.create("http://127.0.0.1:1"), Duration.ofHours(1));
+        spi.startRotationWatcher(Duration.ofHours(1));
+        spi.engineLoad(null, null);
+    }
+
+    @Test
+    void testUnreachableKeyStoreShouldStopItsThreadsAndReleaseItsClient(@TempDir Path tempDir) throws Exception {
+        ClientRegistry registry = newRegistry(new ArrayList<>());
+        Path sink = tempDir.resolve("token");
+        Files.writeString(sink, "token-1\n");
+
+        loadAndDrop(registry, sink);
+        assertEquals(1, registry.size());
+
+        // The watcher, sink and event threads hold the key store weakly
+        for (int i = 0; i < 500 && registry.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, registry.size());
+    }
 }
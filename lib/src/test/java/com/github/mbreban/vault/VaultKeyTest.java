@@ -0,0 +1,183 @@
+package com.github.mbreban.vault;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VaultKeyTest {
+
+    static Keyset rsaKeyset;
+
+    @BeforeAll
+    static void initAll() {
+        rsaKeyset = new Keyset.RSA2048();
+    }
+
+    @Test
+    void testGetEncodedShouldMatchPublicKey() throws VaultException {
+        VaultKey key = rsaKeyset.getVaultKey(null);
+
+        assertArrayEquals(rsaKeyset.getPublicKey().getEncoded(), key.getEncoded());
+    }
+
+    @Test
+    void testGetEncodedShouldReturnCopy() throws VaultException {
+        VaultKey key = rsaKeyset.getVaultKey(null);
+
+        byte[] first = key.getEncoded();
+        first[0] ^= 0x01;
+        byte[] second = key.getEncoded();
+
+        assertNotSame(first, second);
+        assertArrayEquals(rsaKeyset.getPublicKey().getEncoded(), second);
+    }
+
+    @Test
+    void testGetKeyVersionShouldHandleManyVersions() throws VaultException {
+        Map<String, Object> keys = new HashMap<>();
+        for (int i = 1; i <= 500; i++) {
+            Map<String, String> version = new HashMap<>();
+            version.put("name", "rsa-2048");
+            version.put("creation_time", Keyset.keyCreationTime);
+            version.put("public_key", "pem-" + i);
+            keys.put(String.valueOf(i), version);
+        }
+
+        VaultKey key = new VaultKey.Builder()
+                .setName("many-versions")
+                .setType("rsa-2048")
+                .setKeys(keys)
+                .setLatestVersion(500)
+                .build();
+
+        assertEquals("pem-1", key.getKeyVersion(1).getPublicKey());
+        assertEquals("pem-250", key.getKeyVersion(250).getPublicKey());
+        assertEquals("pem-500", key.getKeyVersion(500).getPublicKey());
+        assertSame(key.getKeyVersion(42), key.getKeyVersion(42));
+        assertNull(key.getKeyVersion(0));
+        assertNull(key.getKeyVersion(501));
+    }
+
+    @Test
+    void testBuildShouldFailWhenTypeIsUnsupported() {
+        Map<String, Object> keys = new HashMap<>();
+        keys.put("1", 1726000000);
+
+        VaultException thrown = Assertions.assertThrows(VaultException.class, () -> {
+            new VaultKey.Builder()
+                    .setName("aes")
+                    .setType("aes256-gcm96")
+                    .setKeys(keys)
+                    .setLatestVersion(1)
+                    .build();
+        });
+        assertEquals("Key type not supported (only rsa, ecdsa and ed25519)", thrown.getMessage());
+    }
+
+    @Test
+    void testVerifyCacheShouldKeepRecentValidSignatures() {
+        Client client = mock(Client.class);
+        VerifyCache cache = new VerifyCache(2, Duration.ofMinutes(5).toNanos());
+        byte[] digest = new byte[32];
+        byte[] signature = new byte[] { 1, 2, 3 };
+
+        byte[] first = VerifyCache.hash("foo", 1, "sha2-256", "pkcs1v15", digest, signature);
+        byte[] second = VerifyCache.hash("foo", 2, "sha2-256", "pkcs1v15", digest, signature);
+        byte[] third = VerifyCache.hash("bar", 1, "sha2-256", "pkcs1v15", digest, signature);
+
+        cache.putValid(client, first, 0);
+        cache.putValid(client, second, 0);
+        assertTrue(cache.isValid(client, first, 1));
+        assertFalse(cache.isValid(mock(Client.class), first, 1));
+
+        // The least recently used entry goes first
+        cache.putValid(client, third, 2);
+        assertTrue(cache.isValid(client, first, 3));
+        assertFalse(cache.isValid(client, second, 3));
+        assertFalse(cache.isValid(client, third, Duration.ofMinutes(5).toNanos() + 2));
+    }
+
+    @Test
+    void testVerifyShouldCacheOnlyValidSignatures() throws Exception {
+        Client client = mock(Client.class);
+        VaultKey key = rsaKeyset.getVaultKey(client);
+        VerifyCache cache = new VerifyCache(16, Duration.ofMinutes(5).toNanos());
+        key.setVerifyCache(cache);
+
+        byte[] digest = new byte[32];
+        byte[] valid = new byte[] { 1 };
+        byte[] invalid = new byte[] { 2 };
+        when(client.verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, valid)).thenReturn(true);
+        when(client.verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, invalid)).thenReturn(false);
+
+        // Miss, then hit
+        assertTrue(key.verify(digest, "sha2-256", "pkcs1v15", valid));
+        assertTrue(key.verify(digest, "sha2-256", "pkcs1v15", valid));
+        verify(client, times(1)).verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, valid);
+
+        // Invalid signatures always reach Vault
+        assertFalse(key.verify(digest, "sha2-256", "pkcs1v15", invalid));
+        assertFalse(key.verify(digest, "sha2-256", "pkcs1v15", invalid));
+        verify(client, times(2)).verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, invalid);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testEngineVerifyShouldUseTheVerifyCache() throws Exception {
+        Client client = mock(Client.class);
+        VaultKey key = rsaKeyset.getVaultKey(client);
+        key.setVerifyCache(new VerifyCache(16, Duration.ofMinutes(5).toNanos()));
+
+        byte[] message = "message".getBytes(StandardCharsets.UTF_8);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(message);
+        byte[] signature = new byte[] { 1 };
+        when(client.verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, signature)).thenReturn(true);
+
+        for (int i = 0; i < 3; i++) {
+            Signature verifier = Signature.getInstance("SHA256withRSA", new VaultProvider());
+            verifier.initVerify(key);
+            verifier.update(message);
+            assertTrue(verifier.verify(signature));
+        }
+        verify(client, times(1)).verify(key.getName(), digest, "sha2-256", "pkcs1v15", true, signature);
+    }
+
+    @Test
+    void testVerifyCacheShouldNotKeepClientsAlive() throws Exception {
+        VerifyCache cache = new VerifyCache(16, Duration.ofMinutes(5).toNanos());
+        byte[] hash = VerifyCache.hash("foo", 1, "sha2-256", "pkcs1v15", new byte[32], new byte[] { 1 });
+        WeakReference<Client> client = cacheWithNewClient(cache, hash);
+
+        for (int i = 0; i < 500 && client.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(client.get());
+    }
+
+    private static WeakReference<Client> cacheWithNewClient(VerifyCache cache, byte[] hash) {
+        Client client = new SharedClient(new ClientRegistry(address -> null, Duration.ZERO), "http://127.0.0.1:8200");
+        cache.putValid(client, hash, 0);
+        assertTrue(cache.isValid(client, hash, 1));
+        return new WeakReference<>(client);
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.mbreban.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VaultMacTest {
+
+    static final String KEY_NAME = "my-hmac";
+
+    @Mock
+    Client mockClient;
+
+    VaultSecretKey key;
+
+    @BeforeEach
+    void initEach() {
+        key = new VaultSecretKey(mockClient, KEY_NAME);
+    }
+
+    // Stands in for Vault: the first byte of the input, repeated
+    private static byte[] fakeMac(byte[] input, int length) {
+        byte[] mac = new byte[length];
+        Arrays.fill(mac, input.length > 0 ? input[0] : 0);
+        return mac;
+    }
+
+    private void stubHmac(String hashAlgorithm, int length) {
+        stubHmac(hashAlgorithm, length, 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void stubHmac(String hashAlgorithm, int length, int version) {
+        when(mockClient.hmac(eq(KEY_NAME), eq(hashAlgorithm), any(List.class))).thenAnswer(invocation -> {
+            List<byte[]> inputs = invocation.getArgument(2);
+            List<String> macs = new ArrayList<>();
+            for (byte[] input : inputs) {
+                macs.add("vault:v" + version + ":" + Base64.getEncoder().encodeToString(fakeMac(input, length)));
+            }
+            return macs;
+        });
+    }
+
+    @Test
+    void testDoFinalShouldCallVaultOnceWithTheWholeMessage() throws Exception {
+        stubHmac("sha2-256", 32);
+
+        Mac mac = Mac.getInstance("HmacSHA256", new VaultProvider());
+        mac.init(key);
+        mac.update((byte) 0x07);
+        mac.update("message".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(32, mac.getMacLength());
+        assertArrayEquals(fakeMac(new byte[] { 0x07 }, 32), mac.doFinal());
+        verify(mockClient, times(1)).hmac(eq(KEY_NAME), eq("sha2-256"), any(List.class));
+    }
+
+    @Test
+    void testMacShouldSupportSha3() throws Exception {
+        stubHmac("sha3-512", 64);
+
+        Mac mac = Mac.getInstance("HmacSHA3-512", new VaultProvider());
+        mac.init(key);
+
+        assertEquals(64, mac.doFinal(new byte[] { 0x01 }).length);
+    }
+
+    @Test
+    void testInitShouldFailWhenKeyIsNotAVaultKey() throws Exception {
+        VaultMac mac = new VaultMac.HmacSHA256();
+
+        InvalidKeyException thrown = Assertions.assertThrows(InvalidKeyException.class, () -> {
+            mac.engineInit(new SecretKeySpec(new byte[32], "HmacSHA256"), null);
+        });
+        assertEquals("Key must be a VaultSecretKey", thrown.getMessage());
+    }
+
+    @Test
+    void testBatchShouldSplitMessagesIntoRequests() throws Exception {
+        stubHmac("sha2-384", 48);
+
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(new byte[] { (byte) i });
+        }
+
+        List<String> macs = new VaultMacBatch(key, "HmacSHA384").setBatchSize(2).mac(messages);
+
+        assertEquals(5, macs.size());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(fakeMac(messages.get(i), 48), VaultMacBatch.decode(macs.get(i)));
+        }
+        verify(mockClient, times(3)).hmac(eq(KEY_NAME), eq("sha2-384"), any(List.class));
+    }
+
+    @Test
+    void testBatchVerifyShouldKeepOrder() throws Exception {
+        when(mockClient.verifyHmac(eq(KEY_NAME), eq("sha2-256"), any(List.class), any(List.class)))
+                .thenReturn(new boolean[] { true, false })
+                .thenReturn(new boolean[] { true });
+
+        List<byte[]> messages = List.of(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 });
+        List<String> macs = List.of("vault:v1:AQ==", "vault:v1:Ag==", "vault:v1:Aw==");
+        boolean[] valid = new VaultMacBatch(key, "HmacSHA256").setBatchSize(2).verify(messages, macs);
+
+        assertArrayEquals(new boolean[] { true, false, true }, valid);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testBatchShouldVerifyHmacWithItsKeyVersion() throws Exception {
+        // The key was rotated, HMACs are made with version 2
+        stubHmac("sha2-256", 32, 2);
+        List<List<String>> verified = new ArrayList<>();
+        when(mockClient.verifyHmac(eq(KEY_NAME), eq("sha2-256"), any(List.class), any(List.class))).thenAnswer(invocation -> {
+            List<String> hmacs = invocation.getArgument(3);
+            verified.add(hmacs);
+            return new boolean[] { hmacs.get(0).startsWith("vault:v2:") };
+        });
+
+        VaultMacBatch batch = new VaultMacBatch(key, "HmacSHA256");
+        List<byte[]> messages = List.of(new byte[] { 7 });
+        List<String> macs = batch.mac(messages);
+
+        assertArrayEquals(new boolean[] { true }, batch.verify(messages, macs));
+        assertEquals(List.of(List.of("vault:v2:" + Base64.getEncoder().encodeToString(fakeMac(messages.get(0), 32)))), verified);
+
+        Mac mac = Mac.getInstance("HmacSHA256", new VaultProvider());
+        mac.init(key);
+        assertArrayEquals(fakeMac(messages.get(0), 32), mac.doFinal(messages.get(0)));
+    }
+
+    @Test
+    void testWriteBatchRequest() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        TransitBatch.writeRequest(body, "hash_algorithm", "sha2-256",
+                List.of("a".getBytes(StandardCharsets.UTF_8), "b".getBytes(StandardCharsets.UTF_8)),
+                List.of("vault:v1:AA==", "vault:v1:AQ=="));
+
+        assertEquals("{\"hash_algorithm\":\"sha2-256\",\"batch_input\":["
+                + "{\"input\":\"YQ==\",\"hmac\":\"vault:v1:AA==\"},"
+                + "{\"input\":\"Yg==\",\"hmac\":\"vault:v1:AQ==\"}]}",
+                body.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testParseBatchResults() throws IOException {
+        String response = "{\"request_id\":\"1\",\"data\":{\"batch_results\":["
+                + "{\"hmac\":\"vault:v1:AA==\",\"reference\":\"\"},{\"hmac\":\"vault:v1:AQ==\"}]},\"warnings\":null}";
+
+        List<String> results = TransitBatch.parseResults(
+                new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), "hmac");
+
+        assertEquals(List.of("vault:v1:AA==", "vault:v1:AQ=="), results);
+    }
+
+    @Test
+    void testParseBatchResultsShouldFailOnItemError() {
+        String response = "{\"data\":{\"batch_results\":[{\"valid\":true},{\"error\":\"invalid input\"}]}}";
+
+        IOException thrown = Assertions.assertThrows(IOException.class, () -> {
+            TransitBatch.parseResults(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), "valid");
+        });
+        assertEquals("Batch item 1 failed: invalid input", thrown.getMessage());
+    }
+
+    @Test
+    void testParseVerifyResultsShouldInvalidateOnlyTheFailedItem() throws IOException {
+        StringBuilder response = new StringBuilder("{\"data\":{\"batch_results\":[");
+        for (int i = 0; i < 1000; i++) {
+            response.append(i > 0 ? "," : "")
+                    .append(i == 500 ? "{\"error\":\"invalid HMAC\"}" : "{\"valid\":true}");
+        }
+        response.append("]}}");
+
+        List<String> results = TransitBatch.parseResults(
+                new ByteArrayInputStream(response.toString().getBytes(StandardCharsets.UTF_8)), "valid", false);
+
+        assertEquals(1000, results.size());
+        assertNull(results.get(500));
+        assertEquals("true", results.get(499));
+        assertEquals("true", results.get(501));
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.mbreban.vault;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.MessageDigest;
+import java.security.SignatureException;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.HexFormat;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VaultRawSignatureTest {
+
+    // DigestInfo prefix of SHA-256, RFC 8017 section 9.2
+    static final byte[] SHA256_DIGEST_INFO_PREFIX = HexFormat.of().parseHex("3031300d060960864801650304020105000420");
+
+    @Mock
+    Client mockClient;
+
+    private final byte[] signatureBytes = new byte[] { 0x01, 0x02 };
+
+    static Keyset rsaKeyset;
+    static Keyset ecdsaKeyset;
+    static byte[] sha256Digest;
+    static byte[] sha384Digest;
+
+    @BeforeAll
+    static void initAll() throws Exception {
+        rsaKeyset = new Keyset.RSA2048();
+        ecdsaKeyset = new Keyset.ECDSAP256();
+        sha256Digest = MessageDigest.getInstance("SHA-256").digest(new byte[] { 0x2a });
+        sha384Digest = MessageDigest.getInstance("SHA-384").digest(new byte[] { 0x2a });
+    }
+
+    @Test
+    void testNONEwithRSAShouldUnwrapDigestInfo() throws Exception {
+        byte[] digestInfo = new byte[SHA256_DIGEST_INFO_PREFIX.length + sha256Digest.length];
+        System.arraycopy(SHA256_DIGEST_INFO_PREFIX, 0, digestInfo, 0, SHA256_DIGEST_INFO_PREFIX.length);
+        System.arraycopy(sha256Digest, 0, digestInfo, SHA256_DIGEST_INFO_PREFIX.length, sha256Digest.length);
+
+        when(mockClient.sign(rsaKeyset.getName(), sha256Digest, "sha2-256", "pkcs1v15", true, "")).thenReturn(signatureBytes);
+
+        VaultRawSignature signature = new VaultRawSignature.NONERSA();
+        signature.engineInitSign(rsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(digestInfo, 0, digestInfo.length);
+
+        assertArrayEquals(signatureBytes, signature.engineSign());
+    }
+
+    @Test
+    void testNONEwithRSAShouldSignOtherInputAsIs() throws Exception {
+        when(mockClient.sign(rsaKeyset.getName(), sha256Digest, "none", "pkcs1v15", true, "")).thenReturn(signatureBytes);
+
+        VaultRawSignature signature = new VaultRawSignature.NONERSA();
+        signature.engineInitSign(rsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(sha256Digest, 0, sha256Digest.length);
+
+        assertArrayEquals(signatureBytes, signature.engineSign());
+    }
+
+    @Test
+    void testNONEwithECDSAShouldInferHashAlgorithm() throws Exception {
+        when(mockClient.verify(ecdsaKeyset.getName(), sha384Digest, "sha2-384", "", true, signatureBytes)).thenReturn(true);
+
+        VaultRawSignature signature = new VaultRawSignature.NONEECDSA();
+        signature.engineInitVerify(ecdsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(sha384Digest, 0, sha384Digest.length);
+
+        assertTrue(signature.engineVerify(signatureBytes));
+    }
+
+    @Test
+    void testNONEwithECDSAShouldFailWhenInputIsNotADigest() throws Exception {
+        VaultRawSignature signature = new VaultRawSignature.NONEECDSA();
+        signature.engineInitSign(ecdsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(new byte[] { 0x00, 0x01, 0x02 }, 0, 3);
+
+        SignatureException thrown = Assertions.assertThrows(SignatureException.class, () -> {
+            signature.engineSign();
+        });
+        assertEquals("Unsupported digest length: 3", thrown.getMessage());
+    }
+
+    @Test
+    void testNONEwithRSASSAPSSShouldUseParameterSpec() throws Exception {
+        when(mockClient.sign(rsaKeyset.getName(), sha256Digest, "sha2-256", "pss", true, "32")).thenReturn(signatureBytes);
+
+        VaultRawSignature.NONERSAPSS signature = new VaultRawSignature.NONERSAPSS();
+        signature.engineSetParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+        signature.engineInitSign(rsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(sha256Digest, 0, sha256Digest.length);
+
+        assertArrayEquals(signatureBytes, signature.engineSign());
+    }
+
+    @Test
+    void testNONEwithRSASSAPSSShouldFailWhenMGFDigestDiffers() {
+        VaultRawSignature.NONERSAPSS signature = new VaultRawSignature.NONERSAPSS();
+
+        Assertions.assertThrows(InvalidAlgorithmParameterException.class, () -> {
+            signature.engineSetParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA1, 32, 1));
+        });
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.mbreban.vault;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class VaultSecureRandomTest {
+
+    @Mock
+    Client mockClient;
+
+    // Blocks of consecutive longs, so every 8 bytes served are unique
+    private void stubSequence() {
+        AtomicLong counter = new AtomicLong();
+        when(mockClient.random(anyInt())).thenAnswer(invocation -> {
+            int bytes = invocation.getArgument(0);
+            ByteBuffer block = ByteBuffer.allocate(bytes);
+            while (block.remaining() >= Long.BYTES) {
+                block.putLong(counter.incrementAndGet());
+            }
+            return block.array();
+        });
+    }
+
+    @Test
+    void testNextBytesShouldBeServedFromBlocks() throws Exception {
+        stubSequence();
+        SecureRandom random = SecureRandom.getInstance("VaultRandom",
+                new VaultRandomParameters(mockClient, 64), new VaultProvider());
+
+        byte[] bytes = new byte[8];
+        for (long i = 1; i <= 20; i++) {
+            random.nextBytes(bytes);
+            assertEquals(i, ByteBuffer.wrap(bytes).getLong());
+        }
+
+        // 160 bytes are 2.5 blocks, plus at most one refill ahead
+        verify(mockClient, atMost(4)).random(64);
+    }
+
+    @Test
+    void testGetInstanceShouldRequireParameters() {
+        // Never a default SecureRandom, nor authenticated from the environment
+        Assertions.assertThrows(NoSuchAlgorithmException.class, () -> {
+            SecureRandom.getInstance("VaultRandom", new VaultProvider());
+        });
+    }
+
+    @Test
+    void testNextBytesShouldSpanBlocks() throws Exception {
+        stubSequence();
+        VaultSecureRandom random = new VaultSecureRandom(new VaultRandomParameters(mockClient, 16));
+
+        byte[] bytes = new byte[40];
+        random.engineNextBytes(bytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        for (long i = 1; i <= 5; i++) {
+            assertEquals(i, buffer.getLong());
+        }
+    }
+
+    @Test
+    void testConcurrentReadersShouldNeverShareBytes() throws Exception {
+        stubSequence();
+        VaultSecureRandom random = new VaultSecureRandom(new VaultRandomParameters(mockClient, 1024));
+
+        int threads = 8;
+        int draws = 2000;
+        List<long[]> results = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long[] values = new long[draws];
+            results.add(values);
+            workers.add(new Thread(() -> {
+                byte[] bytes = new byte[8];
+                for (int i = 0; i < draws; i++) {
+                    random.engineNextBytes(bytes);
+                    values[i] = ByteBuffer.wrap(bytes).getLong();
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Set<Long> seen = new HashSet<>();
+        for (long[] values : results) {
+            for (long value : values) {
+                assertTrue(value != 0, "zeroed bytes were served");
+                assertTrue(seen.add(value), "bytes were served twice");
+            }
+        }
+        assertEquals(threads * draws, seen.size());
+    }
+
+    @Test
+    void testNextBytesShouldFailAndRetryWhenVaultFails() throws Exception {
+        when(mockClient.random(anyInt()))
+                .thenThrow(new IllegalStateException("sealed"))
+                .thenReturn(new byte[] { 1, 2, 3, 4 });
+        VaultSecureRandom random = new VaultSecureRandom(new VaultRandomParameters(mockClient, 4));
+
+        Assertions.assertThrows(ProviderException.class, () -> {
+            random.engineNextBytes(new byte[2]);
+        });
+
+        byte[] bytes = new byte[2];
+        random.engineNextBytes(bytes);
+        assertArrayEquals(new byte[] { 1, 2 }, bytes);
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.mbreban.vault;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Signature;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the cost of creating signature engines, run with
+ * {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+public class VaultSignatureBenchmarkTest {
+
+    static final int WARMUP = 200_000;
+    static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 1_000_000);
+
+    static final Provider provider = new VaultProvider();
+
+    interface Task {
+        Object run() throws Exception;
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        Object sink = null;
+        for (int i = 0; i < WARMUP; i++) {
+            sink = task.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%-40s %8d ns/op%n", name, elapsed / ITERATIONS);
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Test
+    void benchmarkInstanceCreation() throws Exception {
+        measure("MessageDigest.getInstance", () -> MessageDigest.getInstance("SHA-256"));
+        measure("HashAlgorithmRef.newMessageDigest", () -> HashAlgorithmRef.newMessageDigest("SHA-256"));
+        measure("new VaultSignature.SHA256RSA", () -> new VaultSignature.SHA256RSA());
+        measure("Signature.getInstance", () -> Signature.getInstance("SHA256withRSA", provider));
+    }
+}
@@ -214,6 +214,23 @@ public class VaultSignatureTest {
         }
     }
 
+    @Test
+    void testEngineSignShouldSucceedWhenReinitializedWithAnotherKey() throws Exception {
+        Keyset otherKeyset = new Keyset.RSA3072();
+        byte[] emptyArrayDigest = MessageDigest.getInstance("SHA-256").digest(emptyArray);
+        byte[] expected = new byte[] { 0x01 };
+
+        when(mockClient.sign(otherKeyset.getName(), emptyArrayDigest, "sha2-256", "pkcs1v15", true, "")).thenReturn(expected);
+
+        VaultSignature signature = new VaultSignature.SHA256RSA();
+        signature.engineInitSign(rsaKeyset.getVaultKey(mockClient));
+        signature.engineUpdate(new byte[] { 0x00, 0x01, 0x02 }, 0, 3);
+
+        // Pending input is discarded on init
+        signature.engineInitSign(otherKeyset.getVaultKey(mockClient));
+        assertArrayEquals(expected, signature.engineSign());
+    }
+
     @Test
     void testEngineSignShouldFailWhenNotInitialized() {
         SignatureException thrown = Assertions.assertThrows(SignatureException.class, () -> {